@@ -2,6 +2,8 @@ package org.cobbzilla.wizard.client;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
@@ -11,10 +13,13 @@ import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.apache.http.protocol.HttpContext;
 import org.cobbzilla.util.http.*;
 import org.cobbzilla.util.reflect.ReflectionUtil;
@@ -28,11 +33,12 @@ import org.cobbzilla.wizard.util.RestResponse;
 import java.io.*;
 import java.util.Map;
 import java.util.Stack;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.*;
 import static org.cobbzilla.util.http.HttpStatusCodes.*;
 import static org.cobbzilla.util.io.FileUtil.getDefaultTempDir;
+import static org.cobbzilla.util.json.JsonUtil.FULL_MAPPER;
 import static org.cobbzilla.util.json.JsonUtil.fromJson;
 import static org.cobbzilla.util.json.JsonUtil.toJson;
 import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
@@ -55,8 +61,13 @@ public class ApiClientBase implements Cloneable {
 
     // the server may be coming up, and either not accepting connections or issuing 503 Service Unavailable.
     @Getter @Setter protected int numTries = 5;
+    // initial delay before a retry; each request doubles its own delay per attempt, with jitter
     @Getter @Setter protected long retryDelay = TimeUnit.SECONDS.toMillis(1);
 
+    // connection pool limits, applied when the sync or async client is first created
+    @Getter @Setter protected int maxConnections = 200;
+    @Getter @Setter protected int maxConnectionsPerRoute = 100;
+
     @Getter @Setter protected boolean captureHeaders = false;
     @Getter @Setter private HttpContext httpContext = null;
     @Getter private Map<String, String> headers = null;
@@ -96,11 +107,39 @@ public class ApiClientBase implements Cloneable {
 
     protected HttpClient httpClient;
     public HttpClient getHttpClient() {
-        if (httpClient == null) httpClient = HttpClients.createDefault();
+        if (httpClient == null) {
+            httpClient = HttpClients.custom()
+                    .setMaxConnTotal(maxConnections)
+                    .setMaxConnPerRoute(maxConnectionsPerRoute)
+                    .build();
+        }
         return httpClient;
     }
     public void setHttpClient(HttpClient httpClient) { this.httpClient = httpClient; }
 
+    protected CloseableHttpAsyncClient asyncClient;
+    public synchronized CloseableHttpAsyncClient getAsyncClient() {
+        if (asyncClient == null) {
+            asyncClient = HttpAsyncClients.custom()
+                    .setMaxConnTotal(maxConnections)
+                    .setMaxConnPerRoute(maxConnectionsPerRoute)
+                    .build();
+        }
+        if (!asyncClient.isRunning()) asyncClient.start();
+        return asyncClient;
+    }
+    public synchronized void setAsyncClient(CloseableHttpAsyncClient asyncClient) { this.asyncClient = asyncClient; }
+
+    public synchronized void closeAsyncClient() {
+        if (asyncClient == null) return;
+        try {
+            asyncClient.close();
+        } catch (IOException e) {
+            log.warn("closeAsyncClient: "+e);
+        }
+        asyncClient = null;
+    }
+
     public RestResponse process(HttpRequestBean requestBean) throws Exception {
         switch (requestBean.getMethod()) {
             case HttpMethods.GET:
@@ -131,6 +170,21 @@ public class ApiClientBase implements Cloneable {
         }
     }
 
+    public ListenableFuture<RestResponse> processAsync(HttpRequestBean requestBean) throws Exception {
+        switch (requestBean.getMethod()) {
+            case HttpMethods.GET:
+                return doGetAsync(requestBean.getUri());
+            case HttpMethods.POST:
+                return doPostAsync(requestBean.getUri(), getJson(requestBean), CONTENT_TYPE_JSON);
+            case HttpMethods.PUT:
+                return doPutAsync(requestBean.getUri(), getJson(requestBean), CONTENT_TYPE_JSON);
+            case HttpMethods.DELETE:
+                return doDeleteAsync(requestBean.getUri());
+            default:
+                return die("Unsupported request method: "+requestBean.getMethod());
+        }
+    }
+
     protected void assertStatusOK(RestResponse response) {
         if (response.status != HttpStatusCodes.OK
                 && response.status != HttpStatusCodes.CREATED
@@ -178,6 +232,43 @@ public class ApiClientBase implements Cloneable {
         return fromJson(get(path).json, responseClass);
     }
 
+    /**
+     * Stream the elements of a JSON array response without buffering the body. The caller should close the
+     * iterator if it stops before the end, to release the connection.
+     */
+    public <T> ApiStreamIterator<T> stream(String path, Class<T> elementClass) throws Exception {
+        return stream(path, elementClass, null);
+    }
+
+    /** Like stream(path, elementClass), for a response that is an object with the array in arrayField */
+    public <T> ApiStreamIterator<T> stream(String path, Class<T> elementClass, String arrayField) throws Exception {
+        return stream(new HttpGet(getUrl(path, getBaseUri())), elementClass, arrayField);
+    }
+
+    public <T> ApiStreamIterator<T> streamPost(String path, Object request, Class<T> elementClass, String arrayField) throws Exception {
+        final HttpPost httpPost = new HttpPost(getUrl(path, getBaseUri()));
+        setRequestEntity(httpPost, request instanceof String ? request : toJson(request), CONTENT_TYPE_JSON);
+        return stream(httpPost, elementClass, arrayField);
+    }
+
+    protected <T> ApiStreamIterator<T> stream(HttpRequestBase request, Class<T> elementClass, String arrayField) throws Exception {
+        request = beforeSend(request);
+        boolean streaming = false;
+        try {
+            final HttpResponse response = getHttpClient().execute(request, httpContext);
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (!RestResponse.isSuccess(statusCode)) throw specializeApiException(null, toRestResponse(response));
+            final HttpEntity entity = response.getEntity();
+            if (entity == null) die("stream("+request.getURI().toASCIIString()+"): No entity");
+            final ApiStreamIterator<T> iterator = new ApiStreamIterator<>(request, entity.getContent(), elementClass, FULL_MAPPER, arrayField);
+            streaming = true;
+            return iterator;
+
+        } finally {
+            if (!streaming) request.releaseConnection();
+        }
+    }
+
     protected <T> void setRequestEntity(HttpEntityEnclosingRequest entityRequest, T data, ContentType contentType) {
         if (data != null) {
             if (data instanceof InputStream) {
@@ -270,6 +361,26 @@ public class ApiClientBase implements Cloneable {
         return getResponse(client, httpDelete);
     }
 
+    public ListenableFuture<RestResponse> doGetAsync(String path) {
+        return getResponseAsync(new HttpGet(getUrl(path, getBaseUri())));
+    }
+
+    public <T> ListenableFuture<RestResponse> doPostAsync(String path, T data, ContentType contentType) {
+        final HttpPost httpPost = new HttpPost(getUrl(path, getBaseUri()));
+        setRequestEntity(httpPost, data, contentType);
+        return getResponseAsync(httpPost);
+    }
+
+    public <T> ListenableFuture<RestResponse> doPutAsync(String path, T data, ContentType contentType) {
+        final HttpPut httpPut = new HttpPut(getUrl(path, getBaseUri()));
+        setRequestEntity(httpPut, data, contentType);
+        return getResponseAsync(httpPut);
+    }
+
+    public ListenableFuture<RestResponse> doDeleteAsync(String path) {
+        return getResponseAsync(new HttpDelete(getUrl(path, getBaseUri())));
+    }
+
     public RestResponse delete(String path) throws Exception {
         final RestResponse restResponse = doDelete(path);
         if (!restResponse.isSuccess()) throw specializeApiException(HttpRequestBean.delete(path), restResponse);
@@ -290,50 +401,140 @@ public class ApiClientBase implements Cloneable {
         request = beforeSend(request);
         RestResponse restResponse = null;
         IOException exception = null;
+        long delay = retryDelay;
         for (int i=0; i<numTries; i++) {
             if (i > 0) {
-                sleep(retryDelay);
-                retryDelay *= 2;
+                sleep(jitter(delay));
+                delay *= 2;
             }
             try {
-                final HttpResponse response = client.execute(request, httpContext);
-                final int statusCode = response.getStatusLine().getStatusCode();
-                String responseJson = null;
-                byte[] responseBytes = null;
-                final HttpEntity entity = response.getEntity();
-                if (entity != null) {
-                    try (InputStream in = entity.getContent()) {
-                        if (isCaptureHeaders() && response.containsHeader("content-disposition")) {
-                            responseBytes = IOUtils.toByteArray(in);
-                        } else {
-                            responseJson = IOUtils.toString(in, UTF8cs);
-                            log.debug("response: " + responseJson);
-                        }
-                    }
-                } else {
-                    responseJson = null;
-                }
-
-                restResponse = empty(responseBytes)
-                        ? new RestResponse(statusCode, responseJson, getLocationHeader(response))
-                        : new RestResponse(statusCode, responseBytes, getLocationHeader(response));
-                if (isCaptureHeaders()) {
-                    for (Header header : response.getAllHeaders()) {
-                        restResponse.addHeader(header.getName(), header.getValue());
-                    }
-                }
-                if (statusCode != SERVER_UNAVAILABLE) return restResponse;
-                log.warn("getResponse("+request.getMethod()+" "+request.getURI().toASCIIString()+", attempt="+i+"/"+numTries+") returned "+SERVER_UNAVAILABLE+", will " + ((i+1)>=numTries ? "NOT":"sleep for "+formatDuration(retryDelay)+" then") + " retry the request");
+                restResponse = toRestResponse(client.execute(request, httpContext));
+                if (restResponse.status != SERVER_UNAVAILABLE || !canResend(request)) return restResponse;
+                log.warn("getResponse("+request.getMethod()+" "+request.getURI().toASCIIString()+", attempt="+i+"/"+numTries+") returned "+SERVER_UNAVAILABLE+", will " + ((i+1)>=numTries ? "NOT":"sleep for about "+formatDuration(delay)+" then") + " retry the request");
 
             } catch (IOException e) {
-                log.warn("getResponse("+request.getMethod()+" "+request.getURI().toASCIIString()+", attempt="+i+"/"+numTries+") threw exception "+e+", will " + ((i+1)>=numTries ? "NOT":"sleep for "+formatDuration(retryDelay)+" then") + " retry the request");
+                log.warn("getResponse("+request.getMethod()+" "+request.getURI().toASCIIString()+", attempt="+i+"/"+numTries+") threw exception "+e+", will " + ((i+1)>=numTries || !canResend(request) ? "NOT":"sleep for about "+formatDuration(delay)+" then") + " retry the request");
                 exception = e;
+                if (!canResend(request)) break;
             }
         }
         if (restResponse != null) return restResponse;
         throw exception;
     }
 
+    /**
+     * A request can be sent again if it has no body (GET, HEAD, DELETE, OPTIONS) or its body is repeatable.
+     * A body streamed from an InputStream is consumed by the first attempt, so such a request is never retried.
+     */
+    protected static boolean canResend(HttpRequestBase request) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) return true;
+        final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        return entity == null || entity.isRepeatable();
+    }
+
+    protected RestResponse toRestResponse(HttpResponse response) throws IOException {
+        final int statusCode = response.getStatusLine().getStatusCode();
+        String responseJson = null;
+        byte[] responseBytes = null;
+        final HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            try (InputStream in = entity.getContent()) {
+                if (isCaptureHeaders() && response.containsHeader("content-disposition")) {
+                    responseBytes = IOUtils.toByteArray(in);
+                } else {
+                    responseJson = IOUtils.toString(in, UTF8cs);
+                    log.debug("response: " + responseJson);
+                }
+            }
+        }
+
+        final RestResponse restResponse = empty(responseBytes)
+                ? new RestResponse(statusCode, responseJson, getLocationHeader(response))
+                : new RestResponse(statusCode, responseBytes, getLocationHeader(response));
+        if (isCaptureHeaders()) {
+            for (Header header : response.getAllHeaders()) {
+                restResponse.addHeader(header.getName(), header.getValue());
+            }
+        }
+        return restResponse;
+    }
+
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ApiClientBase-retry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Send a request on the async client without blocking the caller. Connection failures and 503 responses
+     * are retried like getResponse does, but the wait between attempts is scheduled on a timer instead of
+     * sleeping, so no thread is held while a request is pending.
+     */
+    protected ListenableFuture<RestResponse> getResponseAsync(HttpRequestBase request) {
+        final SettableFuture<RestResponse> result = SettableFuture.create();
+        new AsyncAttempt(beforeSend(request), result).execute();
+        return result;
+    }
+
+    @AllArgsConstructor
+    private class AsyncAttempt implements FutureCallback<HttpResponse>, Runnable {
+
+        private final HttpRequestBase request;
+        private final SettableFuture<RestResponse> result;
+        private int attempt;
+        private long delay;
+
+        AsyncAttempt(HttpRequestBase request, SettableFuture<RestResponse> result) {
+            this(request, result, 0, retryDelay);
+        }
+
+        void execute() {
+            if (result.isCancelled()) return;
+            try {
+                getAsyncClient().execute(request, httpContext, this);
+            } catch (Exception e) {
+                result.setException(e);
+            }
+        }
+
+        @Override public void run() { execute(); }
+
+        @Override public void completed(HttpResponse response) {
+            final RestResponse restResponse;
+            try {
+                restResponse = toRestResponse(response);
+            } catch (Exception e) {
+                failed(e);
+                return;
+            }
+            if (restResponse.status == SERVER_UNAVAILABLE && retry(SERVER_UNAVAILABLE+" response")) return;
+            result.set(restResponse);
+        }
+
+        @Override public void failed(Exception e) {
+            if (e instanceof IOException && retry("exception "+e)) return;
+            result.setException(e);
+        }
+
+        @Override public void cancelled() { result.cancel(false); }
+
+        private boolean retry(String reason) {
+            if (++attempt >= numTries || result.isCancelled() || !canResend(request)) return false;
+            final long wait = jitter(delay);
+            delay *= 2;
+            log.warn("getResponseAsync("+request.getMethod()+" "+request.getURI().toASCIIString()+", attempt="+attempt+"/"+numTries+") got "+reason+", will retry in "+formatDuration(wait));
+            RETRY_TIMER.schedule(this, wait, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    // a random delay between half and all of the given delay, so clients that failed together do not retry together
+    protected static long jitter(long delay) {
+        return delay <= 1 ? delay : delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1);
+    }
+
     public File getFile (String path) throws IOException {
 
         final HttpClient client = getHttpClient();
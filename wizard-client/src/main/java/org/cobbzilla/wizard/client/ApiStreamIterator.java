@@ -0,0 +1,116 @@
+package org.cobbzilla.wizard.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
+
+/**
+ * Reads the elements of a JSON array from a response body one at a time, so only the current element
+ * is in memory. The array is either the whole body or the value of a field of the top-level object.
+ *
+ * The connection is released when the array is exhausted or close is called. Closing before the end
+ * aborts the request rather than reading the rest of the body.
+ */
+@Slf4j
+public class ApiStreamIterator<T> implements Iterator<T>, Closeable {
+
+    private final HttpRequestBase request;
+    private final Class<T> elementClass;
+    private final ObjectMapper mapper;
+    private final JsonParser parser;
+
+    // an element can be a JSON null, so whether one is buffered is tracked separately
+    private T next = null;
+    private boolean buffered = false;
+    private boolean done = false;
+
+    public ApiStreamIterator(HttpRequestBase request, InputStream in, Class<T> elementClass, ObjectMapper mapper, String arrayField) throws IOException {
+        this.request = request;
+        this.elementClass = elementClass;
+        this.mapper = mapper;
+        this.parser = mapper.getFactory().createParser(in);
+        try {
+            seekArray(arrayField);
+        } catch (IOException|RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void seekArray(String arrayField) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (empty(arrayField)) {
+            if (token != JsonToken.START_ARRAY) die("seekArray: expected a JSON array, found "+token);
+            return;
+        }
+        if (token != JsonToken.START_OBJECT) die("seekArray: expected a JSON object, found "+token);
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            token = parser.nextToken();
+            if (field.equals(arrayField)) {
+                if (token != JsonToken.START_ARRAY) die("seekArray: expected field "+arrayField+" to be an array, found "+token);
+                return;
+            }
+            parser.skipChildren();
+        }
+        die("seekArray: field not found: "+arrayField);
+    }
+
+    @Override public boolean hasNext() {
+        if (buffered) return true;
+        if (done) return false;
+        try {
+            final JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.END_ARRAY) {
+                close();
+                return false;
+            }
+            next = mapper.readValue(parser, elementClass);
+            buffered = true;
+            return true;
+
+        } catch (IOException e) {
+            close();
+            return die("hasNext: error reading "+elementClass.getSimpleName()+": "+e, e);
+        }
+    }
+
+    @Override public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final T value = next;
+        next = null;
+        buffered = false;
+        return value;
+    }
+
+    @Override public void remove() { notSupported("remove"); }
+
+    @Override public void close() {
+        if (done) return;
+        done = true;
+        next = null;
+        buffered = false;
+        try {
+            // anything left unread would have to be downloaded before the connection could be reused
+            if (!parser.isClosed() && parser.getCurrentToken() != JsonToken.END_ARRAY) request.abort();
+            parser.close();
+        } catch (Exception e) {
+            log.warn("close: "+e);
+        } finally {
+            request.releaseConnection();
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package org.cobbzilla.wizard.client.script;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.jknack.handlebars.Handlebars;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.handlebars.HandlebarsUtil;
+import org.cobbzilla.util.javascript.StandardJsEngine;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.cobbzilla.util.json.JsonUtil.FULL_MAPPER;
+
+/**
+ * Evaluates response check conditions, compiling each condition template once per thread.
+ *
+ * A condition is a handlebars template that renders to javascript. Rather than rendering it and parsing the
+ * result on every poll, the template is compiled once by the StandardJsEngine into a javascript function: each
+ * handlebars expression becomes a parameter, and so does each context variable the condition refers to. Every
+ * evaluation renders the handlebars expressions alone and calls the function with the values. The function is
+ * compiled by the StandardJsEngine, so it sees the same helper functions as an uncompiled condition, and both
+ * true and false results are returned as they are. The first result of each compiled condition is compared
+ * once with the StandardJsEngine's own evaluation of the rendered text; a condition whose results differ, or
+ * that does not compile, is rendered and evaluated by the StandardJsEngine from then on.
+ *
+ * Compiled conditions are not shared between threads; the threads of a load run are long-lived, so each
+ * condition is still compiled only a handful of times.
+ */
+@Slf4j
+public class ApiConditionCache {
+
+    public static final int DEFAULT_MAX_CONDITIONS = 1000;
+
+    /** Implemented in javascript by each compiled condition. The args are the values of its parameters, in order */
+    public interface Condition { Object test(Object[] args); }
+
+    public static final String ARGS = "__args";
+    public static final String PLACEHOLDER = "__h";
+
+    // marks a condition that must be rendered and evaluated by the StandardJsEngine
+    private static final Compiled UNSUPPORTED = new Compiled(null, null, null);
+
+    // a handlebars expression rendered outside a javascript string must render a literal to be passed as a value
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+    private static final Object NOT_A_LITERAL = new Object();
+
+    private final int maxConditions;
+
+    public ApiConditionCache() { this(DEFAULT_MAX_CONDITIONS); }
+    public ApiConditionCache(int maxConditions) { this.maxConditions = maxConditions; }
+
+    private final ThreadLocal<Map<String, Compiled>> compiled = new ThreadLocal<Map<String, Compiled>>() {
+        @Override protected Map<String, Compiled> initialValue() {
+            return new LinkedHashMap<String, Compiled>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<String, Compiled> eldest) { return size() > maxConditions; }
+            };
+        }
+    };
+
+    public boolean evaluateBoolean(StandardJsEngine js, Handlebars handlebars, String condition, Map<String, Object> ctx) {
+        final Compiled c = compile(js, condition, ctx);
+        final Object[] args = c == UNSUPPORTED ? null : c.args(handlebars, ctx);
+        if (args != null) {
+            Object result = null;
+            try {
+                result = c.condition.test(args);
+            } catch (Exception e) {
+                log.debug("evaluateBoolean: compiled condition failed, trying StandardJsEngine: " + e);
+            }
+            if (result instanceof Boolean) {
+                if (c.verified) return (Boolean) result;
+                final boolean expected = js.evaluateBoolean(HandlebarsUtil.apply(handlebars, condition, ctx), ctx);
+                if (expected == (Boolean) result) {
+                    c.verified = true;
+                } else {
+                    compiled.get().put(condition, UNSUPPORTED);
+                }
+                return expected;
+            }
+        }
+        return js.evaluateBoolean(HandlebarsUtil.apply(handlebars, condition, ctx), ctx);
+    }
+
+    private Compiled compile(StandardJsEngine js, String condition, Map<String, Object> ctx) {
+        final Map<String, Compiled> cache = compiled.get();
+        Compiled c = cache.get(condition);
+        if (c == UNSUPPORTED) return c;
+
+        final ConditionTemplate template = c != null ? c.template : new ConditionTemplate(condition);
+        if (!template.isSupported()) {
+            cache.put(condition, UNSUPPORTED);
+            return UNSUPPORTED;
+        }
+        final List<String> params = template.getParams(ctx);
+        if (c != null && c.params.equals(params)) return c;
+
+        // not compiled yet, or the context now has a different set of the variables the condition refers to
+        try {
+            final Object created = js.evaluate(template.getSource(params), new HashMap<String, Object>());
+            c = created instanceof Condition ? new Compiled(template, params, (Condition) created) : UNSUPPORTED;
+        } catch (Exception e) {
+            log.debug("compile: condition does not compile, using StandardJsEngine ("+condition+"): " + e);
+            c = UNSUPPORTED;
+        }
+        cache.put(condition, c);
+        return c;
+    }
+
+    private static class Compiled {
+        private final ConditionTemplate template;
+        private final List<String> params;
+        private final Condition condition;
+        private boolean verified = false;
+
+        Compiled(ConditionTemplate template, List<String> params, Condition condition) {
+            this.template = template;
+            this.params = params;
+            this.condition = condition;
+        }
+
+        // the context variables, then the rendered handlebars expressions; null if they cannot be passed as values
+        Object[] args(Handlebars handlebars, Map<String, Object> ctx) {
+            final List<String> expressions = template.getExpressions();
+            final Object[] args = new Object[params.size() + expressions.size()];
+            int i = 0;
+            for (String param : params) args[i++] = toJs(ctx.get(param));
+            for (int e=0; e<expressions.size(); e++) {
+                final String rendered = HandlebarsUtil.apply(handlebars, expressions.get(e), ctx);
+                final Object value = template.isQuoted(e) ? quoted(rendered, template.getQuote(e)) : literal(rendered);
+                if (value == NOT_A_LITERAL) return null;
+                args[i++] = value;
+            }
+            return args;
+        }
+    }
+
+    private static Object toJs(Object value) {
+        if (value instanceof JsonNode) {
+            final JsonNode node = (JsonNode) value;
+            if (node.isArray()) return FULL_MAPPER.convertValue(node, Object[].class);
+            return FULL_MAPPER.convertValue(node, Object.class);
+        }
+        return value;
+    }
+
+    // within a string, the rendered text is a value unless it would have been read as an escape or ended the string
+    private static Object quoted(String rendered, char quote) {
+        if (rendered.indexOf('\\') != -1 || rendered.indexOf(quote) != -1 || rendered.indexOf('\n') != -1) return NOT_A_LITERAL;
+        return rendered;
+    }
+
+    private static Object literal(String rendered) {
+        final String text = rendered.trim();
+        switch (text) {
+            case "true": return Boolean.TRUE;
+            case "false": return Boolean.FALSE;
+            case "null": return null;
+        }
+        // doubles, not longs: the script engine treats them as javascript numbers
+        return NUMBER.matcher(text).matches() ? Double.valueOf(text) : NOT_A_LITERAL;
+    }
+
+    /**
+     * A condition template split into javascript and handlebars expressions. Each expression is replaced by a
+     * placeholder: a string concatenation inside a javascript string, a plain variable outside one.
+     */
+    private static class ConditionTemplate {
+
+        private final StringBuilder body = new StringBuilder();
+        private final List<String> expressions = new ArrayList<>();
+        private final List<Character> quotes = new ArrayList<>(); // the enclosing string's quote, or 0
+        private final Set<String> identifiers = new LinkedHashSet<>();
+        private boolean supported = true;
+
+        ConditionTemplate(String condition) {
+            char quote = 0;
+            int i = 0;
+            while (i < condition.length()) {
+                final char c = condition.charAt(i);
+                if (condition.startsWith("{{", i)) {
+                    final String close = condition.startsWith("{{{", i) ? "}}}" : "}}";
+                    final int end = condition.indexOf(close, i);
+                    if (end == -1 || !isSimpleExpression(condition.substring(i+close.length(), end))) {
+                        supported = false;
+                        return;
+                    }
+                    final String placeholder = PLACEHOLDER + expressions.size();
+                    if (quote != 0) {
+                        body.append(quote).append('+').append(placeholder).append('+').append(quote);
+                    } else {
+                        body.append(placeholder);
+                    }
+                    expressions.add(condition.substring(i, end+close.length()));
+                    quotes.add(quote);
+                    i = end + close.length();
+
+                } else if (quote != 0) {
+                    if (c == '\\' && i+1 < condition.length()) {
+                        body.append(c);
+                        i++;
+                    } else if (c == quote) {
+                        quote = 0;
+                    }
+                    body.append(condition.charAt(i++));
+
+                } else if (c == '\'' || c == '"') {
+                    quote = c;
+                    body.append(condition.charAt(i++));
+
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    final int start = i;
+                    while (i < condition.length() && Character.isJavaIdentifierPart(condition.charAt(i))) i++;
+                    final String name = condition.substring(start, i);
+                    if (!isPropertyAccess()) identifiers.add(name);
+                    body.append(name);
+
+                } else {
+                    body.append(condition.charAt(i++));
+                }
+            }
+        }
+
+        // the last non-blank character of the body is a dot
+        private boolean isPropertyAccess() {
+            for (int j=body.length()-1; j>=0; j--) {
+                if (!Character.isWhitespace(body.charAt(j))) return body.charAt(j) == '.';
+            }
+            return false;
+        }
+
+        // blocks, partials and comments cannot be rendered one expression at a time
+        private static boolean isSimpleExpression(String expression) {
+            final String e = expression.trim();
+            return !e.isEmpty() && "#/>!^&".indexOf(e.charAt(0)) == -1 && !e.startsWith("else");
+        }
+
+        boolean isSupported() { return supported; }
+
+        List<String> getExpressions() { return expressions; }
+
+        boolean isQuoted(int expression) { return quotes.get(expression) != 0; }
+
+        char getQuote(int expression) { return quotes.get(expression); }
+
+        // the context variables the condition refers to; the others are left to the global scope, for helpers
+        List<String> getParams(Map<String, Object> ctx) {
+            final List<String> params = new ArrayList<>();
+            for (String name : identifiers) if (ctx.containsKey(name)) params.add(name);
+            return params;
+        }
+
+        String getSource(List<String> params) {
+            final StringBuilder b = new StringBuilder("new Packages.").append(Condition.class.getName())
+                    .append("({ test: function (").append(ARGS).append(") { ");
+            int i = 0;
+            for (String param : params) b.append("var ").append(param).append(" = ").append(ARGS).append("[").append(i++).append("]; ");
+            for (int e=0; e<expressions.size(); e++) {
+                b.append("var ").append(PLACEHOLDER).append(e).append(" = ").append(ARGS).append("[").append(i++).append("]; ");
+            }
+            return b.append("return (").append(body).append("); } })").toString();
+        }
+    }
+
+}
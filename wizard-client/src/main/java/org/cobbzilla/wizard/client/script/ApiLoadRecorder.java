@@ -0,0 +1,115 @@
+package org.cobbzilla.wizard.client.script;
+
+import lombok.Getter;
+import org.cobbzilla.wizard.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * Shared by the virtual users of an ApiLoadRunner. Paces requests to the target rate, and records the
+ * latency and outcome of every request, keyed by request template.
+ */
+public class ApiLoadRecorder {
+
+    private final ApiLoadTest test;
+    @Getter private final long start = now();
+    private final long startNanos = System.nanoTime();
+    private final long rampUpNanos;
+
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final AtomicLong scripts = new AtomicLong();
+    private final AtomicLong scriptsFailed = new AtomicLong();
+
+    private long nextSend;
+
+    public ApiLoadRecorder(ApiLoadTest test) {
+        this.test = test;
+        this.rampUpNanos = TimeUnit.MILLISECONDS.toNanos(test.getRampUpMillis());
+        this.nextSend = startNanos;
+    }
+
+    /**
+     * Wait for this request's turn under the target rate.
+     * @return the time the request is being sent, in nanos, to pass to record
+     */
+    public long beforeRequest() throws InterruptedException {
+        if (!test.hasTargetRate()) return System.nanoTime();
+        final long slot = nextSlot();
+        final long wait = slot - System.nanoTime();
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        return System.nanoTime();
+    }
+
+    // unused slots are not saved up: a user that falls behind does not get to send a burst later
+    private synchronized long nextSlot() {
+        final long slot = Math.max(nextSend, System.nanoTime());
+        nextSend = slot + (long) (TimeUnit.SECONDS.toNanos(1) / currentRate(slot));
+        return slot;
+    }
+
+    private double currentRate(long nanos) {
+        final double target = test.getTargetRate();
+        final long elapsed = nanos - startNanos;
+        if (rampUpNanos <= 0 || elapsed >= rampUpNanos) return target;
+        return Math.max(target * elapsed / rampUpNanos, Math.min(target, 1.0));
+    }
+
+    public void record(String template, long sentNanos, boolean success) {
+        LatencyHistogram latency = latencies.get(template);
+        if (latency == null) {
+            latencies.putIfAbsent(template, new LatencyHistogram());
+            latency = latencies.get(template);
+        }
+        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos));
+        if (!success) errorCount(template).incrementAndGet();
+    }
+
+    private AtomicLong errorCount(String template) {
+        AtomicLong count = errors.get(template);
+        if (count == null) {
+            errors.putIfAbsent(template, new AtomicLong());
+            count = errors.get(template);
+        }
+        return count;
+    }
+
+    public void scriptCompleted(boolean success) {
+        scripts.incrementAndGet();
+        if (!success) scriptsFailed.incrementAndGet();
+    }
+
+    public ApiLoadReport report() {
+        final long end = now();
+        final long duration = end - start;
+        final LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        final List<ApiLoadTemplateReport> templates = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            final AtomicLong templateErrors = errors.get(entry.getKey());
+            final long errorCount = templateErrors == null ? 0 : templateErrors.get();
+            allErrors += errorCount;
+            all.add(entry.getValue());
+            templates.add(new ApiLoadTemplateReport(entry.getKey(), entry.getValue(), errorCount, duration));
+        }
+        return new ApiLoadReport()
+                .setStart(start)
+                .setEnd(end)
+                .setDurationMillis(duration)
+                .setTest(test)
+                .setScripts(scripts.get())
+                .setScriptsFailed(scriptsFailed.get())
+                .setTotal(new ApiLoadTemplateReport("*", all, allErrors, duration))
+                .setTemplates(templates);
+    }
+
+}
@@ -0,0 +1,25 @@
+package org.cobbzilla.wizard.client.script;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Results of an ApiLoadRunner run, overall and per request template. Latencies are in milliseconds */
+@Accessors(chain=true)
+public class ApiLoadReport {
+
+    @Getter @Setter private long start;
+    @Getter @Setter private long end;
+    @Getter @Setter private long durationMillis;
+    @Getter @Setter private ApiLoadTest test;
+
+    @Getter @Setter private long scripts;
+    @Getter @Setter private long scriptsFailed;
+
+    @Getter @Setter private ApiLoadTemplateReport total;
+    @Getter @Setter private List<ApiLoadTemplateReport> templates = new ArrayList<>();
+
+}
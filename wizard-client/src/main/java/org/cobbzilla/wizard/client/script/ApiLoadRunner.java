@@ -0,0 +1,104 @@
+package org.cobbzilla.wizard.client.script;
+
+import lombok.AllArgsConstructor;
+import lombok.Cleanup;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.toFileOrDie;
+import static org.cobbzilla.util.json.JsonUtil.jsonWithComments;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Replays a script with many virtual users at once, for load testing. Each user has its own copy of the
+ * prototype ApiRunner (and so its own context and session), and all users share one pooled HTTP client.
+ * Failed checks and errors are counted in the report rather than stopping the run.
+ */
+@Slf4j
+public class ApiLoadRunner {
+
+    private final ApiRunner prototype;
+    private final String script;
+    private final ApiLoadTest test;
+
+    public ApiLoadRunner(ApiRunner prototype, String script, ApiLoadTest test) {
+        this.prototype = prototype;
+        this.script = script;
+        this.test = test;
+    }
+
+    public ApiLoadRunner(ApiRunner prototype, ApiScript[] scripts, ApiLoadTest test) {
+        this(prototype, toJsonOrDie(scripts), test);
+    }
+
+    public ApiLoadReport run() throws Exception {
+        final int users = Math.max(test.getUsers(), 1);
+        final ApiLoadRecorder recorder = new ApiLoadRecorder(test);
+        final long deadline = test.hasDuration() ? recorder.getStart() + test.getDurationMillis() : Long.MAX_VALUE;
+        final int iterations = test.getIterations() > 0 ? test.getIterations() : (test.hasDuration() ? Integer.MAX_VALUE : 1);
+
+        @Cleanup final CloseableHttpClient httpClient = HttpClients.custom()
+                .setMaxConnTotal(users)
+                .setMaxConnPerRoute(users)
+                .build();
+        final ExecutorService pool = Executors.newFixedThreadPool(users);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i=0; i<users; i++) {
+                // without a target rate, ramp up by spreading out the users' start times
+                final long startDelay = test.hasTargetRate() ? 0 : test.getRampUpMillis() * i / users;
+                futures.add(pool.submit(new VirtualUser(new ApiRunner(prototype, httpClient), recorder, startDelay, iterations, deadline)));
+            }
+            for (Future<?> f : futures) f.get();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        final ApiLoadReport report = recorder.report();
+        log.info("run: "+report.getScripts()+" scripts ("+report.getScriptsFailed()+" failed), "
+                +report.getTotal().getRequests()+" requests, "+String.format("%.1f", report.getTotal().getThroughput())+"/s, "
+                +"p50="+report.getTotal().getP50()+"ms p95="+report.getTotal().getP95()+"ms p99="+report.getTotal().getP99()+"ms");
+        if (test.hasReportFile()) {
+            toFileOrDie(test.getReportFile(), toJsonOrDie(report));
+            log.info("run: wrote report to "+abs(test.getReportFile()));
+        }
+        return report;
+    }
+
+    @AllArgsConstructor
+    private class VirtualUser implements Runnable {
+
+        private final ApiRunner runner;
+        private final ApiLoadRecorder recorder;
+        private final long startDelay;
+        private final int iterations;
+        private final long deadline;
+
+        @Override public void run() {
+            if (startDelay > 0) sleep(startDelay, "waiting for ramp-up");
+            runner.setLoadRecorder(recorder);
+            // each user parses its own scripts: running a script updates its state
+            final ApiScript[] scripts = jsonWithComments(script, ApiScript[].class);
+            for (int i=0; i<iterations && now() < deadline && !Thread.currentThread().isInterrupted(); i++) {
+                if (i > 0 && test.isResetContext()) runner.getContext().clear();
+                boolean success;
+                try {
+                    success = runner.run(scripts);
+                } catch (Exception e) {
+                    log.debug("run: script failed: "+e);
+                    success = false;
+                }
+                recorder.scriptCompleted(success);
+            }
+        }
+    }
+
+}
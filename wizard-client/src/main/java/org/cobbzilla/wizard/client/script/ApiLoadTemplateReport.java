@@ -0,0 +1,42 @@
+package org.cobbzilla.wizard.client.script;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.cobbzilla.wizard.util.LatencyHistogram;
+
+/** Throughput, error rate and latency percentiles for one request template: the method and unrendered uri */
+@NoArgsConstructor @Accessors(chain=true)
+public class ApiLoadTemplateReport {
+
+    @Getter @Setter private String template;
+    @Getter @Setter private long requests;
+    @Getter @Setter private long errors;
+    @Getter @Setter private double errorRate;
+    @Getter @Setter private double throughput;
+
+    @Getter @Setter private double min;
+    @Getter @Setter private double mean;
+    @Getter @Setter private double p50;
+    @Getter @Setter private double p95;
+    @Getter @Setter private double p99;
+    @Getter @Setter private double max;
+
+    public ApiLoadTemplateReport(String template, LatencyHistogram latency, long errors, long durationMillis) {
+        this.template = template;
+        this.requests = latency.getCount();
+        this.errors = errors;
+        this.errorRate = requests == 0 ? 0 : ((double) errors) / requests;
+        this.throughput = durationMillis == 0 ? 0 : requests * 1000.0 / durationMillis;
+        this.min = millis(latency.getMin());
+        this.mean = latency.getMean() / 1000.0;
+        this.p50 = millis(latency.getPercentile(50));
+        this.p95 = millis(latency.getPercentile(95));
+        this.p99 = millis(latency.getPercentile(99));
+        this.max = millis(latency.getMax());
+    }
+
+    private static double millis(long micros) { return micros / 1000.0; }
+
+}
@@ -0,0 +1,42 @@
+package org.cobbzilla.wizard.client.script;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.io.File;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.time.TimeUtil.parseDuration;
+
+/**
+ * Settings for ApiLoadRunner. Each virtual user runs the script repeatedly until it has run iterations times
+ * or duration has elapsed, whichever comes first; if neither is set each user runs the script once.
+ */
+@Accessors(chain=true)
+public class ApiLoadTest {
+
+    @Getter @Setter private int users = 10;
+    @Getter @Setter private int iterations = 0;
+
+    @Getter @Setter private String duration;
+    public boolean hasDuration () { return !empty(duration); }
+    @JsonIgnore public long getDurationMillis () { return hasDuration() ? parseDuration(duration) : 0; }
+
+    // requests per second across all users. zero means each user sends as fast as it can
+    @Getter @Setter private double targetRate = 0;
+    public boolean hasTargetRate () { return targetRate > 0; }
+
+    // with a target rate, the rate climbs linearly to it over this period; without one, users start evenly spread over it
+    @Getter @Setter private String rampUp;
+    public boolean hasRampUp () { return !empty(rampUp); }
+    @JsonIgnore public long getRampUpMillis () { return hasRampUp() ? parseDuration(rampUp) : 0; }
+
+    // clear each user's context between iterations, so every iteration starts like the first
+    @Getter @Setter private boolean resetContext = true;
+
+    @Getter @Setter private File reportFile;
+    public boolean hasReportFile () { return reportFile != null; }
+
+}
@@ -2,6 +2,7 @@ package org.cobbzilla.wizard.client.script;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.cache.ConcurrentMapTemplateCache;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -48,8 +49,11 @@ public class ApiRunner {
 
     private StandardJsEngine js = new StandardJsEngine();
 
+    // compiled conditions are shared by every runner; each thread compiles its own copy
+    private static final ApiConditionCache conditions = new ApiConditionCache();
+
     @SuppressWarnings("MismatchedQueryAndUpdateOfCollection") // intended for use in debugging
-    @Getter private static Map<String, ApiScript> currentScripts = new HashMap<>();
+    @Getter private static Map<String, ApiScript> currentScripts = new ConcurrentHashMap<>();
 
     public ApiRunner(ApiClientBase api, ApiRunnerListener listener) {
         this.api = api;
@@ -61,7 +65,8 @@ public class ApiRunner {
         this.api = other.api.copy();
         this.api.setHttpClient(httpClient);
         this.api.setHttpContext(HttpClientContext.create());
-        this.listener = copy(other.listener);
+        this.listener = other.listener == null ? null : copy(other.listener);
+        this.handlebars = other.getHandlebars(); // share compiled templates with the original
         this.ctx.putAll(other.ctx);
     }
 
@@ -79,10 +84,23 @@ public class ApiRunner {
     private ApiRunnerListener listener;
     @Getter @Setter private ApiScriptIncludeHandler includeHandler;
 
+    // when set (by ApiLoadRunner), requests are paced and their latencies recorded
+    @Getter @Setter private ApiLoadRecorder loadRecorder;
+
     protected final Map<String, Object> ctx = new ConcurrentHashMap<>();
     public Map<String, Object> getContext () { return ctx; }
 
-    @Getter(lazy=true) private final Handlebars handlebars = initHandlebars();
+    // templates are compiled once per distinct template text, and reused by every copy of this runner
+    private volatile Handlebars handlebars;
+    public Handlebars getHandlebars() {
+        if (handlebars == null) {
+            synchronized (this) {
+                if (handlebars == null) handlebars = initHandlebars().with(new ConcurrentMapTemplateCache());
+            }
+        }
+        return handlebars;
+    }
+
     protected Handlebars initHandlebars() {
         final Handlebars hb = new Handlebars(new HandlebarsUtil("api-runner(" + api + ")"));
         HandlebarsUtil.registerUtilityHelpers(hb);
@@ -202,30 +220,18 @@ public class ApiRunner {
         if (!uri.startsWith("/")) uri = "/" + uri;
 
         boolean success = true;
-        final RestResponse restResponse;
-
         if (listener != null) listener.beforeCall(script, ctx);
-        switch (method) {
-            case HttpMethods.GET:
-                restResponse = api.doGet(uri);
-                break;
-
-            case HttpMethods.PUT:
-                restResponse = api.doPut(uri, subst(request));
-                api.removeHeaders();
-                break;
-
-            case HttpMethods.POST:
-                restResponse = api.doPost(uri, subst(request));
-                api.removeHeaders();
-                break;
-
-            case HttpMethods.DELETE:
-                restResponse = api.doDelete(uri);
-                break;
-
-            default:
-                return die("run("+script+"): invalid request method: "+method);
+        final long sent = loadRecorder == null ? 0 : loadRecorder.beforeRequest();
+        final RestResponse restResponse;
+        try {
+            restResponse = send(script, method, uri);
+        } catch (Exception e) {
+            if (loadRecorder != null) loadRecorder.record(script.getRequestLine(), sent, false);
+            throw e;
+        }
+        if (loadRecorder != null) {
+            final int expected = script.hasResponse() ? script.getResponse().getStatus() : HttpStatusCodes.OK;
+            loadRecorder.record(script.getRequestLine(), sent, restResponse.status == expected);
         }
         if (listener != null) listener.afterCall(script, ctx, restResponse);
 
@@ -236,10 +242,12 @@ public class ApiRunner {
                 if (listener != null) listener.statusCheckFailed(script, restResponse);
             }
 
-            final JsonNode responseEntity = empty(restResponse.json) || response.isRaw() ? null : json(restResponse.json, JsonNode.class);
-            Object responseObject = responseEntity;
+            final boolean hasEntity = !empty(restResponse.json) && !response.isRaw();
+            JsonNode responseEntity = null;
+            Object responseObject = null;
 
             if (response.getStatus() == HttpStatusCodes.UNPROCESSABLE_ENTITY) {
+                responseEntity = hasEntity ? json(restResponse.json, JsonNode.class) : null;
                 responseObject = new ValidationErrors(Arrays.asList(fromJsonOrDie(responseEntity, ConstraintViolationBean[].class)));
             } else {
                 Class<?> storeClass = null;
@@ -249,7 +257,9 @@ public class ApiRunner {
                 } else if (response.hasStore()) {
                     storeClass = storeTypes.get(response.getStore());
                 }
-                if (!response.isRaw() && responseEntity != null) {
+                if (hasEntity) {
+                    // the tree is only needed to infer the type or find the session id; otherwise bind directly
+                    if (storeClass == null || response.hasSession()) responseEntity = json(restResponse.json, JsonNode.class);
                     if (storeClass == null) {
                         if (responseEntity.isArray()) {
                             storeClass = Map[].class;
@@ -266,9 +276,12 @@ public class ApiRunner {
                         }
                     }
                     try {
-                        responseObject = fromJsonOrDie(responseEntity, storeClass);
+                        responseObject = responseEntity != null
+                                ? fromJsonOrDie(responseEntity, storeClass)
+                                : json(restResponse.json, storeClass);
                     } catch (IllegalStateException e) {
                         log.warn("runOnce: error parsing JSON: " + e);
+                        if (responseEntity == null) responseEntity = json(restResponse.json, JsonNode.class);
                         responseObject = responseEntity;
                     }
 
@@ -300,13 +313,13 @@ public class ApiRunner {
 
                 for (ApiScriptResponseCheck check : response.getCheck()) {
                     if (listener != null && listener.skipCheck(script, check)) continue;
-                    final String condition = handlebars(check.getCondition(), localCtx);
+                    final String condition = check.getCondition();
                     Boolean result = null;
                     long timeout = check.getTimeoutMillis();
                     long checkStart = now();
                     do {
                         try {
-                            result = js.evaluateBoolean(condition, localCtx);
+                            result = conditions.evaluateBoolean(js, getHandlebars(), condition, localCtx);
                             if (result) break;
                             if (script.isTimedOut()) {
                                 log.warn("runOnce("+script+"): condition check ("+condition+") returned false");
@@ -340,6 +353,34 @@ public class ApiRunner {
         return success;
     }
 
+    protected RestResponse send(ApiScript script, String method, String uri) throws Exception {
+        final ApiScriptRequest request = script.getRequest();
+        final RestResponse restResponse;
+        switch (method) {
+            case HttpMethods.GET:
+                restResponse = api.doGet(uri);
+                break;
+
+            case HttpMethods.PUT:
+                restResponse = api.doPut(uri, subst(request));
+                api.removeHeaders();
+                break;
+
+            case HttpMethods.POST:
+                restResponse = api.doPost(uri, subst(request));
+                api.removeHeaders();
+                break;
+
+            case HttpMethods.DELETE:
+                restResponse = api.doDelete(uri);
+                break;
+
+            default:
+                return die("run("+script+"): invalid request method: "+method);
+        }
+        return restResponse;
+    }
+
     private boolean runInner(ApiScript script) throws Exception {
         final ApiInnerScript inner = script.getNested();
         inner.setParent(script);
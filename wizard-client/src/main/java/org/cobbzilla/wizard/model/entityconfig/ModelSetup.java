@@ -23,13 +23,12 @@ import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 import static org.cobbzilla.util.daemon.Await.awaitAll;
 import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
 import static org.cobbzilla.util.http.HttpStatusCodes.NOT_FOUND;
 import static org.cobbzilla.util.http.HttpStatusCodes.OK;
@@ -56,7 +55,17 @@ public class ModelSetup {
     public static final long CHILD_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
     static { log.info("ModelSetup: maxConcurrency="+maxConcurrency); }
 
-    public static final Map<Integer, Map<String, Identifiable>> entityCache = new HashMap<>();
+    // load models concurrently on one pool of maxConcurrency threads, each model waiting only for the earlier
+    // models it depends on. listeners must be thread-safe when this is enabled
+    public static volatile boolean parallelLoad = false;
+
+    // check for existing entities with one request to the entity's listUri, instead of one request per entity
+    public static volatile boolean bulkLookup = false;
+
+    // skip a model whose JSON has not changed since it was last loaded into the same API by this JVM
+    public static volatile boolean skipUnchanged = false;
+    private static final Map<String, String> loadedModelHashes = new ConcurrentHashMap<>();
+    public static void forgetLoadedModels () { loadedModelHashes.clear(); }
 
     private static boolean isVerify() { return getVerifyLog() != null; }
 
@@ -100,17 +109,87 @@ public class ModelSetup {
                                                            LinkedHashMap<String, String> models,
                                                            ModelSetupListener listener,
                                                            String runName) throws Exception {
+        return setupModel(api, entityConfigsEndpoint, models, listener, runName, new ModelSetupCache());
+    }
+
+    public static LinkedHashMap<String, String> setupModel(ApiClientBase api,
+                                                           String entityConfigsEndpoint,
+                                                           LinkedHashMap<String, String> models,
+                                                           ModelSetupListener listener,
+                                                           String runName,
+                                                           ModelSetupCache cache) throws Exception {
+        if (parallelLoad) return setupModelParallel(api, entityConfigsEndpoint, models, listener, runName, cache);
         for (Map.Entry<String, String> model : models.entrySet()) {
             String modelName = model.getKey();
             final String json = model.getValue();
             final String entityType = getEntityTypeFromString(modelName);
 
-            setupJson(api, entityConfigsEndpoint, entityType, json, listener, runName);
+            if (isUnchanged(api, modelName, json)) continue;
+            setupJson(api, getEntityConfig(api, entityConfigsEndpoint, entityType, listener), json, listener, runName, cache);
+            modelLoaded(api, modelName, json);
+        }
+        log.info("setupModel("+runName+"): "+cache);
+        return models;
+    }
+
+    /**
+     * Load models concurrently. A model waits for every earlier model of the same entity type, and every earlier
+     * model whose entity type is referenced by a field of its EntityConfig (or of its children's configs).
+     * Entities within one model are still created in order; children are created concurrently on the same pool.
+     */
+    public static LinkedHashMap<String, String> setupModelParallel(ApiClientBase api,
+                                                                   String entityConfigsEndpoint,
+                                                                   LinkedHashMap<String, String> models,
+                                                                   ModelSetupListener listener,
+                                                                   String runName,
+                                                                   ModelSetupCache cache) throws Exception {
+        final Map<String, EntityConfig> configs = new HashMap<>();
+        final List<ModelTask> tasks = new ArrayList<>();
+        for (Map.Entry<String, String> model : models.entrySet()) {
+            final String modelName = model.getKey();
+            if (isUnchanged(api, modelName, model.getValue())) continue;
+
+            final String entityType = getEntityTypeFromString(modelName);
+            EntityConfig config = configs.get(entityType);
+            if (config == null) {
+                config = getEntityConfig(api, entityConfigsEndpoint, entityType, listener);
+                configs.put(entityType, config);
+            }
+            final ModelTask task = new ModelTask(api, modelName, entityType, config, model.getValue(), listener, runName, cache);
+            for (ModelTask earlier : tasks) {
+                if (task.dependsOn(earlier)) task.dependencies.add(earlier);
+            }
+            tasks.add(task);
+        }
+        if (tasks.isEmpty()) return models;
+
+        final ForkJoinPool pool = new ForkJoinPool(maxConcurrency);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override protected void compute() {
+                    for (ModelTask task : tasks) task.fork();
+                    for (ModelTask task : tasks) task.join();
+                }
+            });
+        } finally {
+            pool.shutdownNow();
         }
+        log.info("setupModelParallel("+runName+"): "+cache);
         return models;
     }
 
-    private static Map<String, String> modelHashCache = new HashMap<>();
+    private static boolean isUnchanged(ApiClientBase api, String modelName, String json) {
+        if (!skipUnchanged || !sha256_hex(json).equals(loadedModelHashes.get(api.getBaseUri() + "/" + modelName))) return false;
+        log.info("isUnchanged: skipping unchanged model: "+modelName);
+        return true;
+    }
+
+    private static void modelLoaded(ApiClientBase api, String modelName, String json) {
+        if (skipUnchanged) loadedModelHashes.put(api.getBaseUri() + "/" + modelName, sha256_hex(json));
+    }
+
+    // model files are classpath resources, so their hashes never change
+    private static final Map<String, String> modelHashCache = new ConcurrentHashMap<>();
 
     public static String modelHash(String prefix, String manifest) {
         final String cacheKey = prefix + "/" + manifest;
@@ -133,15 +212,74 @@ public class ModelSetup {
                                  String json,
                                  ModelSetupListener listener,
                                  String runName) throws Exception {
+        setupJson(api, getEntityConfig(api, entityConfigsEndpoint, entityType, listener), json, listener, runName, new ModelSetupCache());
+    }
+
+    public static EntityConfig getEntityConfig(ApiClientBase api,
+                                               String entityConfigsEndpoint,
+                                               String entityType,
+                                               ModelSetupListener listener) throws Exception {
         if (listener != null) listener.preEntityConfig(entityType);
         final EntityConfig entityConfig = api.get(entityConfigsEndpoint + "/" + entityType, EntityConfig.class);
         if (listener != null) listener.postEntityConfig(entityType, entityConfig);
+        return entityConfig;
+    }
 
+    public static void setupJson(ApiClientBase api,
+                                 EntityConfig entityConfig,
+                                 String json,
+                                 ModelSetupListener listener,
+                                 String runName,
+                                 ModelSetupCache cache) throws Exception {
         final Class<? extends Identifiable> entityClass = forName(entityConfig.getClassName());
         final ModelEntity[] entities = parseEntities(json, entityClass);
+        final Map<String, JsonNode> existing = bulkLookup && entities.length > 0
+                ? lookupExisting(api, entityConfig, entityClass, entities[0], new LinkedHashMap<String, Identifiable>())
+                : null;
         for (ModelEntity entity : entities) {
             final LinkedHashMap<String, Identifiable> context = new LinkedHashMap<>();
-            createEntity(api, entityConfig, entity, context, listener, runName);
+            createEntity(api, entityConfig, entity, context, listener, runName, existing, cache);
+        }
+    }
+
+    /**
+     * Fetch every entity the listUri returns (an array, or an object with a results array) and key each by
+     * the uri it would be looked up with. An entity missing from the map can be created without first checking
+     * for it; creating one that exists anyway (say, because the listing was paged) falls back to a lookup.
+     * @return the existing entities, or null if they could not be listed
+     */
+    protected static Map<String, JsonNode> lookupExisting(ApiClientBase api,
+                                                          EntityConfig entityConfig,
+                                                          Class<? extends Identifiable> entityClass,
+                                                          Identifiable sample,
+                                                          LinkedHashMap<String, Identifiable> context) {
+        final String listUri = entityConfig.getListUri();
+        final String updateUri = entityConfig.getUpdateUri();
+        if (empty(listUri) || listUri.equals(URI_NOT_SUPPORTED) || empty(updateUri) || updateUri.equals(URI_NOT_SUPPORTED)) return null;
+        try {
+            final String uri = processUri(context, sample, listUri);
+            if (uri == null) return null;
+            final RestResponse response = api.doGet(uri);
+            if (response.status != OK || empty(response.json)) return null;
+
+            JsonNode list = json(response.json, JsonNode.class);
+            if (list.isObject() && list.has("results")) list = list.get("results");
+            if (!list.isArray()) return null;
+
+            final Map<String, JsonNode> existing = new HashMap<>(list.size());
+            for (JsonNode node : list) {
+                try {
+                    final String getUri = processUri(context, json(node, entityClass), updateUri);
+                    if (getUri != null) existing.put(getUri, node);
+                } catch (Exception e) {
+                    log.debug("lookupExisting: skipping unreadable "+entityConfig.getName()+": "+e);
+                }
+            }
+            return existing;
+
+        } catch (Exception e) {
+            log.warn("lookupExisting: error listing "+entityConfig.getName()+", will look up each entity: "+e);
+            return null;
         }
     }
 
@@ -182,6 +320,17 @@ public class ModelSetup {
                                        final LinkedHashMap<String, Identifiable> context,
                                        final ModelSetupListener listener,
                                        final String runName) throws Exception {
+        createEntity(api, entityConfig, request, context, listener, runName, null, new ModelSetupCache());
+    }
+
+    protected static void createEntity(final ApiClientBase api,
+                                       EntityConfig entityConfig,
+                                       ModelEntity request,
+                                       final LinkedHashMap<String, Identifiable> context,
+                                       final ModelSetupListener listener,
+                                       final String runName,
+                                       Map<String, JsonNode> existing,
+                                       final ModelSetupCache cache) throws Exception {
 
         Identifiable entity = request;
 
@@ -191,11 +340,18 @@ public class ModelSetup {
         final String logPrefix = "createEntity(" + runName + "): " + entityType;
         if (updateUri != null && !updateUri.equals(URI_NOT_SUPPORTED)) {
             final String getUri = processUri(context, entity, updateUri);
-            if (getUri != null) {
+            final boolean verify = isVerify();
+            if (getUri != null && existing != null && !verify && !existing.containsKey(getUri)) {
+                entity = create(api, context, entityConfig, entity, listener, runName);
+
+            } else if (getUri != null && existing != null && !verify && !request.allowUpdate()) {
+                log.info(logPrefix+" already exists: "+getUri);
+                entity = json(existing.get(getUri), request.getEntity().getClass());
+
+            } else if (getUri != null) {
                 if (listener != null) listener.preLookup(entity);
                 final RestResponse response = api.doGet(getUri);
                 if (listener != null) listener.postLookup(entity, request, response);
-                final boolean verify = isVerify();
                 switch (response.status) {
                     case OK:
                         if (verify) {
@@ -206,7 +362,7 @@ public class ModelSetup {
                             getVerifyLog().logDifference(entityConfig, entity, request);
 
                         } else if (request.allowUpdate()) {
-                            final Identifiable existing = getCached(api, json(response.json, request.getEntity().getClass()));
+                            final Identifiable existing = cache.getOrPut(json(response.json, request.getEntity().getClass()));
                             final Identifiable toUpdate;
                             if (existing != null) {
                                 ReflectionUtil.copy(existing, entity);
@@ -239,7 +395,7 @@ public class ModelSetup {
         }
         if (entity == null) return;
 
-        addToCache(api, entity);
+        cache.put(entity);
 
         // copy children if present in request (they wouldn't be in object returned from server)
         if (entity instanceof ParentEntity) {
@@ -270,51 +426,37 @@ public class ModelSetup {
                     if (childClassName == null) childClassName = entity.getClass().getPackage().getName() + "." + childEntityType;
                     final Class<? extends Identifiable> childClass = forName(childClassName);
 
-                    @Cleanup("shutdownNow") final ExecutorService exec = fixedPool(Math.min(children.length, maxConcurrency));
-                    final Set<Future<?>> futures = new HashSet<>();
+                    final List<CreateEntityJob> jobs = new ArrayList<>();
+                    Map<String, JsonNode> existingChildren = null;
                     for (final JsonNode child : children) {
                         if (!(child instanceof ObjectNode)) {
                             log.error("createEntity: not an ObjectNode: "+child);
                             continue;
                         }
-                        futures.add(exec.submit(new CreateEntityJob(api, childConfig, child, childClass, context, listener, runName)));
+                        final ModelEntity childEntity = buildModelEntity((ObjectNode) child, childClass);
+                        if (bulkLookup && jobs.isEmpty()) existingChildren = lookupExisting(api, childConfig, childClass, childEntity, context);
+                        jobs.add(new CreateEntityJob(api, childConfig, childEntity, context, listener, runName, existingChildren, cache));
+                    }
+                    if (jobs.isEmpty()) continue;
+
+                    if (ForkJoinTask.inForkJoinPool()) {
+                        // loading in parallel: share the pool, whose workers help with queued jobs while waiting
+                        final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                        for (CreateEntityJob job : jobs) tasks.add(ForkJoinTask.adapt(job));
+                        ForkJoinTask.invokeAll(tasks);
+
+                    } else {
+                        @Cleanup("shutdownNow") final ExecutorService exec = fixedPool(Math.min(jobs.size(), maxConcurrency));
+                        final Set<Future<?>> futures = new HashSet<>();
+                        for (CreateEntityJob job : jobs) futures.add(exec.submit(job));
+                        final AwaitResult<?> result = awaitAll(futures, CHILD_TIMEOUT);
+                        if (!result.allSucceeded()) die("createEntity: "+result);
                     }
-                    final AwaitResult<?> result = awaitAll(futures, CHILD_TIMEOUT);
-                    if (!result.allSucceeded()) die("createEntity: "+result);
                 }
             }
         }
     }
 
-    private static void addToCache(ApiClientBase api, Identifiable entity) {
-        synchronized (entityCache) {
-            Map<String, Identifiable> cache = entityCache.get(api.hashCode());
-            if (cache == null) {
-                cache = new HashMap<>();
-                entityCache.put(api.hashCode(), cache);
-            }
-            final String key = cacheKey(entity);
-            cache.put(key, entity);
-        }
-    }
-
-    private static Identifiable getCached(ApiClientBase api, Identifiable entity) {
-        synchronized (entityCache) {
-            final Map<String, Identifiable> cache = entityCache.get(api.hashCode());
-            final String key = cacheKey(entity);
-            Identifiable cachedEntity = null;
-            if (cache != null) cachedEntity = cache.get(key);
-            if (cachedEntity != null) return cachedEntity;
-            addToCache(api, entity);
-            return entity;
-        }
-    }
-
-    private static String cacheKey(Identifiable entity) {
-        if (entity instanceof ModelEntity) entity = ((ModelEntity) entity).getEntity();
-        return getRawClass(entity.getClass().getName())+"/"+entity.getUuid();
-    }
-
     protected static <T extends Identifiable> T create(ApiClientBase api,
                                                        LinkedHashMap<String, Identifiable> ctx,
                                                        EntityConfig entityConfig,
@@ -522,18 +664,80 @@ public class ModelSetup {
     private static class CreateEntityJob implements Runnable {
         private final ApiClientBase api;
         private final EntityConfig childConfig;
-        private final JsonNode child;
-        private final Class<? extends Identifiable> childClass;
+        private final ModelEntity child;
         private final LinkedHashMap<String, Identifiable> context;
         private final ModelSetupListener listener;
         private final String runName;
+        private final Map<String, JsonNode> existing;
+        private final ModelSetupCache cache;
 
         @Override public void run() {
             try {
-                createEntity((ApiClientBase) api.clone(), childConfig, buildModelEntity((ObjectNode) child, childClass), new LinkedHashMap<>(context), listener, runName);
+                createEntity((ApiClientBase) api.clone(), childConfig, child, new LinkedHashMap<>(context), listener, runName, existing, cache);
             } catch (Exception e) {
                 die("run: "+e, e);
             }
         }
     }
+
+    private static class ModelTask extends RecursiveAction {
+
+        private final ApiClientBase api;
+        private final String modelName;
+        private final EntityConfig config;
+        private final String json;
+        private final ModelSetupListener listener;
+        private final String runName;
+        private final ModelSetupCache cache;
+
+        private final Set<String> types = new HashSet<>();
+        private final Set<String> references = new HashSet<>();
+        private final List<ModelTask> dependencies = new ArrayList<>();
+
+        ModelTask(ApiClientBase api, String modelName, String entityType, EntityConfig config, String json, ModelSetupListener listener, String runName, ModelSetupCache cache) {
+            this.api = api;
+            this.modelName = modelName;
+            this.config = config;
+            this.json = json;
+            this.listener = listener;
+            this.runName = runName;
+            this.cache = cache;
+            addTypes(entityType, config);
+            addReferences(config);
+        }
+
+        // the model's entity type, and those of the children it creates, which later models may reference
+        private void addTypes(String entityType, EntityConfig config) {
+            types.add(entityType.toLowerCase());
+            if (!empty(config.getName())) types.add(config.getName().toLowerCase());
+            if (!empty(config.getClassName())) types.add(config.getClassName().substring(config.getClassName().lastIndexOf('.')+1).toLowerCase());
+            for (Map.Entry<String, EntityConfig> child : config.getChildren().entrySet()) addTypes(child.getKey(), child.getValue());
+        }
+
+        private void addReferences(EntityConfig config) {
+            for (EntityFieldConfig field : config.getFields().values()) {
+                final EntityFieldReference ref = field.getReference();
+                if (ref != null && !empty(ref.getEntity()) && !ref.getEntity().equals(REF_PARENT)) references.add(ref.getEntity().toLowerCase());
+            }
+            for (EntityConfig child : config.getChildren().values()) addReferences(child);
+        }
+
+        boolean dependsOn(ModelTask earlier) {
+            for (String type : earlier.types) {
+                if (types.contains(type) || references.contains(type)) return true;
+            }
+            return false;
+        }
+
+        @Override protected void compute() {
+            for (ModelTask dependency : dependencies) dependency.join();
+            try {
+                log.info("compute: loading model "+modelName);
+                setupJson((ApiClientBase) api.clone(), config, json, listener, runName, cache);
+                modelLoaded(api, modelName, json);
+            } catch (Exception e) {
+                die("compute: error loading model "+modelName+": "+e, e);
+            }
+        }
+    }
 }
@@ -0,0 +1,51 @@
+package org.cobbzilla.wizard.model.entityconfig;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.cobbzilla.wizard.model.Identifiable;
+
+/**
+ * Entities created or updated during one ModelSetup run, keyed by class and uuid. Safe for the run's
+ * concurrent jobs to share; holds at most maxSize entities, evicting the least recently used.
+ */
+public class ModelSetupCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final Cache<String, Identifiable> cache;
+
+    public ModelSetupCache() { this(DEFAULT_MAX_SIZE); }
+
+    public ModelSetupCache(int maxSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(ModelSetup.maxConcurrency)
+                .recordStats()
+                .build();
+    }
+
+    public void put(Identifiable entity) { cache.put(key(entity), entity); }
+
+    /** @return the cached entity with the same class and uuid, or if there is none, cache and return this one */
+    public Identifiable getOrPut(Identifiable entity) {
+        final String key = key(entity);
+        final Identifiable cached = cache.getIfPresent(key);
+        if (cached != null) return cached;
+        final Identifiable raced = cache.asMap().putIfAbsent(key, entity);
+        return raced != null ? raced : entity;
+    }
+
+    public long size() { return cache.size(); }
+    public CacheStats stats() { return cache.stats(); }
+    public void clear() { cache.invalidateAll(); }
+
+    private static String key(Identifiable entity) {
+        if (entity instanceof ModelEntity) entity = ((ModelEntity) entity).getEntity();
+        final String className = entity.getClass().getName();
+        return (className.contains("$$") ? className.substring(0, className.indexOf("$$")) : className) + "/" + entity.getUuid();
+    }
+
+    @Override public String toString() { return "ModelSetupCache{size="+size()+", "+stats()+"}"; }
+
+}
@@ -59,6 +59,12 @@ public class AuditLog extends StrongIdentifiableBase {
     @Transient public long getCreateTime () { return getCtime(); }
     public void setCreateTime () {} // noop
 
+    /** a log written after the audited write (see AuditLogWriter) keeps the ctime of the write */
+    public <E extends AuditLog> E restoreCtime(long ctime) {
+        initCtime(ctime);
+        return (E) this;
+    }
+
     public <E extends AuditLog> E encrypt(String key) {
         setKeyHash(sha256_hex(key));
         setRecordHash(sha256_hex(toString()));
@@ -74,6 +74,8 @@ public class IdentifiableBase implements Identifiable {
     @Column(updatable=false, nullable=false)
     @Getter @JsonIgnore private long ctime = now();
     public void setCtime (long time) { /*noop*/ }
+    // setCtime is a noop so that json and copied properties cannot change it; subclasses that must can use this
+    protected void initCtime (long time) { this.ctime = time; }
     @JsonIgnore @Transient public long getCtimeAge () { return now() - ctime; }
 
     @Column(nullable=false)
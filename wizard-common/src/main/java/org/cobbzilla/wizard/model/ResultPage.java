@@ -7,6 +7,7 @@ import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
 import lombok.experimental.Accessors;
+import org.apache.commons.codec.binary.Base64;
 import org.cobbzilla.util.collection.MapUtil;
 import org.cobbzilla.util.json.JsonUtil;
 import org.cobbzilla.util.string.StringUtil;
@@ -17,6 +18,7 @@ import java.util.Map;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
 
 @NoArgsConstructor @Accessors(chain=true) @ToString
 public class ResultPage {
@@ -31,6 +33,8 @@ public class ResultPage {
     public static final String PARAM_SORT_ORDER     = "so";
     public static final String PARAM_FILTER         = "q";
     public static final String PARAM_BOUNDS         = "b";
+    public static final String PARAM_CURSOR         = "c";
+    public static final String PARAM_COUNT          = "ct";
 
     public static final int MAX_FILTER_LENGTH = 50;
     public static final int MAX_SORTFIELD_LENGTH = 50;
@@ -44,6 +48,15 @@ public class ResultPage {
     }
     public static final String DEFAULT_SORT = SortOrder.DESC.name();
 
+    /**
+     * How a search determines totalCount. EXACT runs a count query every time; CACHED reuses an exact count
+     * for the same filter for a while; ESTIMATE asks the database planner; NONE leaves totalCount null.
+     */
+    public enum CountStrategy {
+        EXACT, CACHED, ESTIMATE, NONE;
+        @JsonCreator public static CountStrategy create(String val) { return valueOf(val.toUpperCase()); }
+    }
+
     public static final ResultPage DEFAULT_PAGE = new ResultPage();
     public static final ResultPage FIRST_RESULT = new ResultPage(1, 1);
     public static final int INFINITE = Integer.MAX_VALUE;
@@ -63,6 +76,8 @@ public class ResultPage {
         this.setSortField(other.getSortField());
         this.setSortOrder(other.getSortOrder());
         this.setBounds(other.getBounds());
+        this.setCursor(other.getCursor());
+        this.setCount(other.getCount());
     }
 
     public ResultPage(Integer pageNumber, Integer pageSize, String sortField, String sortOrder, String filter, Map<String, String> bounds) {
@@ -112,7 +127,8 @@ public class ResultPage {
     @Getter private int pageSize = 10;
     public ResultPage setPageSize(int pageSize) { this.pageSize = pageSize <= 0 ? 10 : pageSize; return this; }
 
-    @JsonIgnore public int getPageOffset () { return (getPageNumber()-1) * pageSize; }
+    // with a cursor, the page starts right after the cursor's row
+    @JsonIgnore public int getPageOffset () { return getHasCursor() ? 0 : (getPageNumber()-1) * pageSize; }
     public boolean containsResult(int i) { return (i >= getPageOffset() && i <= getPageOffset()+getPageSize()); }
 
     @JsonIgnore public boolean isInfinitePage () { return pageSize == INFINITE_PAGE.pageSize; }
@@ -174,6 +190,35 @@ public class ResultPage {
     public void unsetBound(String name) { bounds.remove(name); }
     public void unsetBounds() { bounds.clear(); }
 
+    /**
+     * A seek position from a previous page (see SearchResults.nextCursor): the sort value and uuid of the last
+     * row returned. When set, the page starts after that row, so deep pages cost the same as the first one.
+     */
+    @Getter @Setter private String cursor;
+    @JsonIgnore public boolean getHasCursor() { return !empty(cursor); }
+
+    public static String cursor(Object sortValue, String uuid) {
+        return Base64.encodeBase64URLSafeString(JsonUtil.toJsonOrDie(new Object[] {sortValue, uuid}).getBytes(UTF8cs));
+    }
+
+    /** @return the sort value and uuid from the cursor, or null if there is no cursor */
+    @JsonIgnore public Object[] getCursorValues() {
+        if (!getHasCursor()) return null;
+        final Object[] values;
+        try {
+            values = JsonUtil.fromJson(new String(Base64.decodeBase64(cursor), UTF8cs), Object[].class);
+        } catch (Exception e) {
+            return die("invalid cursor: "+cursor);
+        }
+        if (values == null || values.length != 2 || values[0] == null || !(values[1] instanceof String)) die("invalid cursor: "+cursor);
+        return values;
+    }
+    @JsonIgnore public Object getCursorSortValue() { return getCursorValues()[0]; }
+    @JsonIgnore public String getCursorUuid() { return (String) getCursorValues()[1]; }
+
+    @Getter @Setter private CountStrategy count;
+    public CountStrategy countStrategy(CountStrategy defaultStrategy) { return count != null ? count : defaultStrategy; }
+
     @JsonIgnore @Getter @Setter private SearchScrubber scrubber;
     public boolean hasScrubber () { return scrubber != null; }
 
@@ -190,6 +235,8 @@ public class ResultPage {
         if (filter != null ? !filter.equals(that.filter) : that.filter != null) return false;
         if (sortField != null ? !sortField.equals(that.sortField) : that.sortField != null) return false;
         if (sortOrder != null ? !sortOrder.equals(that.sortOrder) : that.sortOrder != null) return false;
+        if (cursor != null ? !cursor.equals(that.cursor) : that.cursor != null) return false;
+        if (count != that.count) return false;
 
         return true;
     }
@@ -202,6 +249,8 @@ public class ResultPage {
         result = 31 * result + (sortOrder != null ? sortOrder.hashCode() : 0);
         result = 31 * result + (filter != null ? filter.hashCode() : 0);
         result = 31 * result + (bounds != null ? MapUtil.deepHash(bounds) : 0);
+        result = 31 * result + (cursor != null ? cursor.hashCode() : 0);
+        result = 31 * result + (count != null ? count.hashCode() : 0);
         return result;
     }
 }
@@ -0,0 +1,80 @@
+package org.cobbzilla.wizard.model.shard;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Maps an id to a logical shard. Changing the hash of an existing shard set moves every row to a different
+ * logical shard, so sets created before murmur3 was available must stay on sha256.
+ */
+public enum ShardHash {
+
+    /** first 28 bits of the sha256 of the UTF-8 id, the original (and default) mapping */
+    sha256 {
+        @Override public int logicalShard(String id, int logicalShards) {
+            final byte[] digest = SHA256.get().digest(id.getBytes(UTF8));
+            final int val = ((digest[0] & 0xff) << 20) | ((digest[1] & 0xff) << 12) | ((digest[2] & 0xff) << 4) | ((digest[3] & 0xff) >>> 4);
+            return val % logicalShards;
+        }
+    },
+
+    /** murmur3 (32-bit) over the chars of the id. much cheaper than sha256, and allocates nothing */
+    murmur3 {
+        @Override public int logicalShard(String id, int logicalShards) {
+            return (murmur3_32(id) & Integer.MAX_VALUE) % logicalShards;
+        }
+    };
+
+    @JsonCreator public static ShardHash create (String val) { return valueOf(val.toLowerCase()); }
+
+    public abstract int logicalShard(String id, int logicalShards);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available: "+e, e);
+            }
+        }
+    };
+
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    static int murmur3_32(CharSequence s) {
+        int h = 0;
+        final int len = s.length();
+        int i = 1;
+        for (; i < len; i += 2) {
+            final int k = s.charAt(i-1) | (s.charAt(i) << 16);
+            h = mixH(h, mixK(k));
+        }
+        if ((len & 1) == 1) h ^= mixK(s.charAt(len-1));
+        h ^= 2 * len;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixK(int k) {
+        k *= C1;
+        k = Integer.rotateLeft(k, 15);
+        return k * C2;
+    }
+
+    private static int mixH(int h, int k) {
+        h ^= k;
+        h = Integer.rotateLeft(h, 13);
+        return h * 5 + 0xe6546b64;
+    }
+
+}
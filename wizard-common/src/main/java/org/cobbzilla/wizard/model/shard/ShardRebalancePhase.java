@@ -0,0 +1,13 @@
+package org.cobbzilla.wizard.model.shard;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+public enum ShardRebalancePhase {
+
+    pending, dual_write, backfill, verify, flip, cleanup, completed, failed, cancelled;
+
+    @JsonCreator public static ShardRebalancePhase create (String val) { return valueOf(val.toLowerCase()); }
+
+    public boolean isDone () { return this == completed || this == failed || this == cancelled; }
+
+}
@@ -0,0 +1,38 @@
+package org.cobbzilla.wizard.model.shard;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+/**
+ * Describes a topology change: a new shard (url) that should serve a logical range.
+ * When move is true (a split), the range is taken away from the shards that currently serve it
+ * and their copies of the rows are deleted once the new shard is readable.
+ * When move is false, the new shard is an additional replica of the range.
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class ShardRebalanceRequest {
+
+    @NotNull(message="err.range.required")
+    @Getter @Setter private ShardRange range;
+
+    @NotNull(message="err.url.required") @Size(max=1024, message="err.url.length")
+    @Getter @Setter private String url;
+
+    @Getter @Setter private boolean move = true;
+
+    // rows copied, verified or deleted per statement, and the pause between batches
+    @Getter @Setter private int batchSize = 500;
+    @Getter @Setter private long pauseMillis = 100;
+
+    // how long to wait after a topology change for every node to see it. -1 means the ShardMapDAO cache timeout
+    @Getter @Setter private long propagationMillis = -1;
+
+    // verify passes re-copy mismatched rows; give up if rows still differ after this many passes
+    @Getter @Setter private int maxVerifyPasses = 3;
+
+}
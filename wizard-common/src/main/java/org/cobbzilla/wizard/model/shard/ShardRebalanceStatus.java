@@ -0,0 +1,39 @@
+package org.cobbzilla.wizard.model.shard;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+@NoArgsConstructor @Accessors(chain=true)
+public class ShardRebalanceStatus {
+
+    @Getter @Setter private String id;
+    @Getter @Setter private String shardSet;
+    @Getter @Setter private ShardRebalanceRequest request;
+    @Getter @Setter private String targetShard;
+
+    @Getter @Setter private volatile ShardRebalancePhase phase = ShardRebalancePhase.pending;
+    @Getter @Setter private volatile String error;
+
+    @Getter @Setter private volatile long rowsScanned;
+    @Getter @Setter private volatile long rowsCopied;
+    @Getter @Setter private volatile long rowsVerified;
+    @Getter @Setter private volatile long mismatches;
+    @Getter @Setter private volatile long rowsDeleted;
+    @Getter @Setter private volatile int verifyPasses;
+
+    @Getter @Setter private long started = now();
+    @Getter @Setter private volatile long lastUpdated = now();
+
+    public ShardRebalanceStatus setPhase (ShardRebalancePhase phase) {
+        this.phase = phase;
+        this.lastUpdated = now();
+        return this;
+    }
+
+    public boolean isDone () { return phase.isDone(); }
+
+}
@@ -0,0 +1,11 @@
+package org.cobbzilla.wizard.task;
+
+/**
+ * A task that declares its priority. When a TaskServiceBase uses priority scheduling, queued tasks with
+ * a higher priority run first; tasks that do not implement this have priority 0.
+ */
+public interface PrioritizedTask {
+
+    public int getPriority();
+
+}
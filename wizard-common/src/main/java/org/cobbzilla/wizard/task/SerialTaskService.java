@@ -1,13 +1,13 @@
 package org.cobbzilla.wizard.task;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 
 public abstract class SerialTaskService<T extends ITask<R>, R extends TaskResult> extends TaskServiceBase<T, R> {
 
-    private final Map<String, T> tasksBySerial = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, T> tasksBySerial = new ConcurrentHashMap<>();
 
     protected abstract String getSerialIdentifier(T task);
     protected abstract T mergeTask(T task, T found);
@@ -26,6 +26,8 @@ public abstract class SerialTaskService<T extends ITask<R>, R extends TaskResult
         return super.execute(task);
     }
 
+    @Override protected void evicted(T task) { tasksBySerial.remove(getSerialIdentifier(task), task); }
+
     public boolean isRunning(String id) { return isRunning(getTask(id)); }
     public boolean isRunning(T found) { return found != null && !found.getResult().isComplete(); }
 
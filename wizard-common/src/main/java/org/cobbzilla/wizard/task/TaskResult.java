@@ -33,6 +33,24 @@ public class TaskResult<E extends TaskEvent> {
         }
     }
 
+    /** @return the events from index since onwards; pass the previous eventCount to get only new events */
+    public List<E> getEventsSince (int since) {
+        synchronized (events) {
+            if (since <= 0) return new ArrayList<>(events);
+            if (since >= events.size()) return new ArrayList<>();
+            return new ArrayList<>(events.subList(since, events.size()));
+        }
+    }
+
+    public int getEventCount () {
+        synchronized (events) {
+            return events.size();
+        }
+    }
+
+    // so json won't complain
+    public void setEventCount(int ignored) {}
+
     public void add(E event) {
         synchronized (events) {
             this.events.add(event);
@@ -65,12 +83,17 @@ public class TaskResult<E extends TaskEvent> {
     public void initRetry() { exception = null; success = false; }
 
     public String getErrorMessageKey() {
-        return hasError() && !getEvents().isEmpty() ? getMostRecentEvent().getMessageKey() : null;
+        final E mostRecent = hasError() ? getMostRecentEvent() : null;
+        return mostRecent != null ? mostRecent.getMessageKey() : null;
     }
 
     // so json won't complain
     public void setErrorMessageKey(String ignored) {}
 
-    @JsonIgnore public E getMostRecentEvent() { return events.isEmpty() ? null : events.get(events.size() - 1); }
+    @JsonIgnore public E getMostRecentEvent() {
+        synchronized (events) {
+            return events.isEmpty() ? null : events.get(events.size() - 1);
+        }
+    }
 
 }
@@ -1,35 +1,107 @@
 package org.cobbzilla.wizard.task;
 
 import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * Runs tasks on a pool of getPoolSize() threads, in submission order or, with priority scheduling, highest
+ * PrioritizedTask priority first. Completed tasks stay available for polling until they are older than
+ * getCompletedTaskTtl(), or more than getMaxCompletedTasks() tasks have completed since.
+ */
+@Slf4j
 public class TaskServiceBase<T extends ITask<R>, R extends TaskResult> {
 
-    protected final ExecutorService executor = Executors.newFixedThreadPool(5);
+    public static final int DEFAULT_POOL_SIZE = 5;
+    public static final long DEFAULT_COMPLETED_TASK_TTL = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_MAX_COMPLETED_TASKS = 1000;
+    private static final long EVICT_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    // subclasses may override these. the executor settings are read once, by the constructor, so they must not
+    // depend on the subclass's own fields
+    protected int getPoolSize() { return DEFAULT_POOL_SIZE; }
+    protected boolean isPriorityScheduling() { return false; }
+    protected long getCompletedTaskTtl() { return DEFAULT_COMPLETED_TASK_TTL; }
+    protected int getMaxCompletedTasks() { return DEFAULT_MAX_COMPLETED_TASKS; }
+
+    protected final ThreadPoolExecutor executor;
+
+    public TaskServiceBase() { executor = newExecutor(); }
+
+    // threads are started as tasks are submitted, and stop after a minute idle
+    protected ThreadPoolExecutor newExecutor() {
+        final int size = Math.max(getPoolSize(), 1);
+        final BlockingQueue<Runnable> queue = isPriorityScheduling()
+                ? new PriorityBlockingQueue<Runnable>()
+                : new LinkedBlockingQueue<Runnable>();
+        final String prefix = getClass().getSimpleName() + "-";
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 1, TimeUnit.MINUTES, queue, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override public Thread newThread(Runnable r) { return new Thread(r, prefix + count.incrementAndGet()); }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     protected final Map<String, T> taskMap = new ConcurrentHashMap<>();
+    private final Map<String, TaskFuture> futures = new ConcurrentHashMap<>();
+
+    // ids of completed tasks, oldest first
+    private final ConcurrentLinkedQueue<CompletedTask> completedTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger completedTaskCount = new AtomicInteger();
+    private final AtomicLong lastEviction = new AtomicLong(now());
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong totalRunMillis = new AtomicLong();
+    private final AtomicLong maxRunMillis = new AtomicLong();
 
     public TaskId execute(T task) {
         task.init();
-        executor.submit(new TaskWrapper(task, this));
-        taskMap.put(task.getTaskId().getUuid(), task);
+        final String id = task.getTaskId().getUuid();
+        final int priority = task instanceof PrioritizedTask ? ((PrioritizedTask) task).getPriority() : 0;
+        final TaskFuture future = new TaskFuture(new TaskWrapper(task), priority, sequence.incrementAndGet());
+        taskMap.put(id, task);
+        futures.put(id, future);
+        submitted.incrementAndGet();
+        executor.execute(future);
+        evictIfDue();
         return task.getTaskId();
     }
 
     public R getResult(String taskId) {
+        evictIfDue();
         final T task = taskMap.get(taskId);
         return task == null ? null : task.getResult();
     }
 
+    /** @return the task's events from index since onwards, or null if the task is not found */
+    public List<TaskEvent> getEvents(String taskId, int since) {
+        final R result = getResult(taskId);
+        return result == null ? null : (List<TaskEvent>) result.getEventsSince(since);
+    }
+
     public T cancel(String taskId) {
         final T task = taskMap.remove(taskId);
+        final TaskFuture future = futures.remove(taskId);
+        if (future != null && future.cancel(false)) {
+            executor.remove(future); // if it never started, do not leave it in the queue
+            cancelled.incrementAndGet();
+        }
         if (task != null) task.cancel();
         return task;
-
     }
 
     protected void completed(T task) {
@@ -37,20 +109,104 @@ public class TaskServiceBase<T extends ITask<R>, R extends TaskResult> {
         if (!result.isComplete()) {
             result.setError("task completed with neither success nor error!"); // should never happen
         }
-        // todo: periodically clean out old tasks from taskMap
+    }
+
+    /** called when a completed task is dropped from taskMap */
+    protected void evicted(T task) {}
+
+    public TaskServiceStats getStats() {
+        final long done = completed.get();
+        return new TaskServiceStats()
+                .setService(getClass().getSimpleName())
+                .setPoolSize(executor.getMaximumPoolSize())
+                .setQueued(executor.getQueue().size())
+                .setRunning(running.get())
+                .setTracked(taskMap.size())
+                .setSubmitted(submitted.get())
+                .setCompleted(done)
+                .setFailed(failed.get())
+                .setCancelled(cancelled.get())
+                .setEvicted(evicted.get())
+                .setMeanRunMillis(done == 0 ? 0 : totalRunMillis.get() / done)
+                .setMaxRunMillis(maxRunMillis.get());
+    }
+
+    private void evictIfDue() {
+        final long last = lastEviction.get();
+        if (now() - last > EVICT_INTERVAL && lastEviction.compareAndSet(last, now())) evict();
+    }
+
+    /** drop completed tasks that have expired, then the oldest completed tasks beyond the limit */
+    public synchronized void evict() {
+        final long expired = now() - getCompletedTaskTtl();
+        final int max = getMaxCompletedTasks();
+        CompletedTask oldest;
+        while ((oldest = completedTasks.peek()) != null
+                && (oldest.time < expired || completedTaskCount.get() > max)) {
+            completedTasks.poll();
+            completedTaskCount.decrementAndGet();
+            final T task = taskMap.get(oldest.id);
+            if (task != null && task.getResult().isComplete() && taskMap.remove(oldest.id) != null) {
+                evicted.incrementAndGet();
+                evicted(task);
+            }
+        }
+    }
+
+    private void recordRun(T task, long millis) {
+        completed.incrementAndGet();
+        if (task.getResult().hasError()) failed.incrementAndGet();
+        totalRunMillis.addAndGet(millis);
+        long max;
+        while (millis > (max = maxRunMillis.get()) && !maxRunMillis.compareAndSet(max, millis)) {}
+
+        final String id = task.getTaskId().getUuid();
+        futures.remove(id);
+        completedTasks.add(new CompletedTask(id, now()));
+        completedTaskCount.incrementAndGet();
     }
 
     @AllArgsConstructor
     private class TaskWrapper implements Callable<R> {
         private T task;
-        private TaskServiceBase<T, R> taskService;
         @Override public R call() throws Exception {
+            final long start = now();
+            running.incrementAndGet();
             try {
                 return task.call();
             } finally {
-                taskService.completed(task);
+                running.decrementAndGet();
+                try {
+                    completed(task);
+                } finally {
+                    recordRun(task, now() - start);
+                    evictIfDue();
+                }
             }
         }
+    }
 
+    // orders the priority queue: highest priority first, then first submitted
+    private class TaskFuture extends FutureTask<R> implements Comparable<TaskFuture> {
+        private final int priority;
+        private final long sequence;
+
+        TaskFuture(Callable<R> callable, int priority, long sequence) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override public int compareTo(TaskFuture other) {
+            if (priority != other.priority) return priority > other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
     }
+
+    @AllArgsConstructor
+    private static class CompletedTask {
+        private final String id;
+        private final long time;
+    }
+
 }
@@ -0,0 +1,26 @@
+package org.cobbzilla.wizard.task;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+@Accessors(chain=true)
+public class TaskServiceStats {
+
+    @Getter @Setter private String service;
+
+    @Getter @Setter private int poolSize;
+    @Getter @Setter private int queued;
+    @Getter @Setter private int running;
+    @Getter @Setter private int tracked;
+
+    @Getter @Setter private long submitted;
+    @Getter @Setter private long completed;
+    @Getter @Setter private long failed;
+    @Getter @Setter private long cancelled;
+    @Getter @Setter private long evicted;
+
+    @Getter @Setter private long meanRunMillis;
+    @Getter @Setter private long maxRunMillis;
+
+}
@@ -0,0 +1,123 @@
+package org.cobbzilla.wizard.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of non-negative values (latencies, in whatever unit the caller chooses).
+ * Values under 128 are counted exactly; above that each power of two is split into 64 buckets, so a reported
+ * percentile is at most 1/64 (about 1.6%) above the true value. Negative values are counted as zero.
+ */
+public class LatencyHistogram {
+
+    static final int LINEAR = 128;
+    static final int SUB_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // exponents 1 through 56 cover every value up to Long.MAX_VALUE
+    static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        updateMin(value);
+        updateMax(value);
+    }
+
+    /** add everything recorded by another histogram to this one */
+    public void add(LatencyHistogram other) {
+        if (other.getCount() == 0) return;
+        for (int i=0; i<BUCKETS; i++) {
+            final long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        updateMin(other.getMin());
+        updateMax(other.getMax());
+    }
+
+    /**
+     * Halve every count, so that older values weigh less than newer ones. min and max are narrowed to the
+     * buckets that still hold values. Concurrent records may be halved too, or not; either way they are kept.
+     */
+    public void decay() {
+        long remaining = 0;
+        int lowest = -1, highest = -1;
+        for (int i=0; i<BUCKETS; i++) {
+            long c;
+            do { c = counts.get(i); } while (!counts.compareAndSet(i, c, c / 2));
+            if (c / 2 > 0) {
+                remaining += c / 2;
+                if (lowest == -1) lowest = i;
+                highest = i;
+            }
+        }
+        count.set(remaining);
+        sum.set(sum.get() / 2);
+        min.set(lowest == -1 ? Long.MAX_VALUE : lowerBound(lowest));
+        max.set(highest == -1 ? 0 : upperBound(highest));
+    }
+
+    public long getCount() { return count.get(); }
+    public long getMin() { return count.get() == 0 ? 0 : min.get(); }
+    public long getMax() { return max.get(); }
+    public double getMean() { return count.get() == 0 ? 0 : ((double) sum.get()) / count.get(); }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value in the bucket holding the percentile (never more than getMax), or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        final long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    private void updateMin(long value) {
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {}
+    }
+
+    private void updateMax(long value) {
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {}
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) return (int) Math.max(value, 0);
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        final int sub = (int) (value >>> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+    }
+
+    static long lowerBound(int index) {
+        if (index < LINEAR) return index;
+        final int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        final long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return sub << shift;
+    }
+
+    static long upperBound(int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(index + 1) - 1;
+    }
+
+}
@@ -0,0 +1,193 @@
+package org.cobbzilla.wizard.util;
+
+import com.google.common.primitives.Primitives;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.reflect.ReflectionUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Getters and setters for the properties of one class, looked up once and kept as MethodHandles.
+ * Use forClass to get the shared instance for a class.
+ *
+ * Nested properties ("a.b"), overloaded setters, and values that the setter handle cannot take as-is
+ * (for example an Integer for a long property) are handled by ReflectionUtil, exactly as before.
+ */
+@Slf4j
+public class PropertyAccessors {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final ConcurrentMap<Class<?>, PropertyAccessors> registry = new ConcurrentHashMap<>();
+
+    public static PropertyAccessors forClass(Class<?> clazz) {
+        PropertyAccessors accessors = registry.get(clazz);
+        if (accessors == null) {
+            final PropertyAccessors raced = registry.putIfAbsent(clazz, accessors = new PropertyAccessors(clazz));
+            if (raced != null) accessors = raced;
+        }
+        return accessors;
+    }
+
+    public static Object get(Object target, String property) { return forClass(target.getClass()).getter(property).get(target); }
+
+    public static void set(Object target, String property, Object value) { forClass(target.getClass()).setter(property).set(target, value); }
+
+    public static void setNull(Object target, String property, Class type) { forClass(target.getClass()).setter(property).setNull(target, type); }
+
+    private final Class<?> clazz;
+    private final ConcurrentMap<String, Getter> getters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Setter> setters = new ConcurrentHashMap<>();
+
+    private PropertyAccessors(Class<?> clazz) { this.clazz = clazz; }
+
+    public Getter getter(String property) {
+        Getter getter = getters.get(property);
+        if (getter == null) {
+            getter = findGetter(property);
+            getters.putIfAbsent(property, getter);
+        }
+        return getter;
+    }
+
+    public Setter setter(String property) {
+        Setter setter = setters.get(property);
+        if (setter == null) {
+            setter = findSetter(property);
+            setters.putIfAbsent(property, setter);
+        }
+        return setter;
+    }
+
+    private Getter findGetter(String property) {
+        return new Getter(property, findGetterHandle(property));
+    }
+
+    private Setter findSetter(String property) {
+        final Method m = findSetterMethod(property);
+        return m == null
+                ? new Setter(property, null, null)
+                : new Setter(property, toHandle(m, SETTER_TYPE), m.getParameterTypes()[0]);
+    }
+
+    private MethodHandle findGetterHandle(String property) {
+        if (property.contains(".")) return null;
+        final String suffix = capitalize(property);
+        for (String name : new String[] {"get"+suffix, "is"+suffix}) {
+            try {
+                final Method m = clazz.getMethod(name);
+                if (m.getReturnType() == void.class || Modifier.isStatic(m.getModifiers())) continue;
+                return toHandle(m, GETTER_TYPE);
+            } catch (NoSuchMethodException ignored) {
+                // try the next name
+            }
+        }
+        return null;
+    }
+
+    private Method findSetterMethod(String property) {
+        if (property.contains(".")) return null;
+        final String name = "set" + capitalize(property);
+        Method found = null;
+        for (Method m : clazz.getMethods()) {
+            if (!m.getName().equals(name) || m.getParameterTypes().length != 1 || Modifier.isStatic(m.getModifiers())) continue;
+            if (found != null && !found.getParameterTypes()[0].equals(m.getParameterTypes()[0])) return null; // overloaded, let ReflectionUtil pick
+            if (found == null || found.isBridge()) found = m;
+        }
+        return found;
+    }
+
+    private MethodHandle toHandle(Method m, MethodType type) {
+        try {
+            m.setAccessible(true); // the class itself may not be public
+            return MethodHandles.lookup().unreflect(m).asType(type);
+        } catch (Exception e) {
+            log.debug("toHandle: "+clazz.getName()+"."+m.getName()+" will use ReflectionUtil: "+e);
+            return null;
+        }
+    }
+
+    private static String capitalize(String property) {
+        return property.isEmpty() ? property : Character.toUpperCase(property.charAt(0)) + property.substring(1);
+    }
+
+    public static class Getter {
+
+        private final String property;
+        private final MethodHandle handle;
+
+        private Getter(String property, MethodHandle handle) {
+            this.property = property;
+            this.handle = handle;
+        }
+
+        public Object get(Object target) {
+            if (handle == null) return ReflectionUtil.get(target, property);
+            try {
+                return (Object) handle.invokeExact(target);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                return die("get("+property+"): "+t, t);
+            }
+        }
+    }
+
+    public static class Setter {
+
+        private final String property;
+        private final MethodHandle handle;
+        private final Class<?> type;
+        private final Class<?> wrappedType;
+
+        private Setter(String property, MethodHandle handle, Class<?> type) {
+            this.property = property;
+            this.handle = handle;
+            this.type = type;
+            this.wrappedType = type == null ? null : Primitives.wrap(type);
+        }
+
+        // values the handle would have to convert (or a null for a primitive) go to ReflectionUtil, which knows how
+        private boolean accepts(Object value) {
+            return handle != null && (value == null ? !type.isPrimitive() : wrappedType.isInstance(value));
+        }
+
+        public void set(Object target, Object value) {
+            if (!accepts(value)) {
+                ReflectionUtil.set(target, property, value);
+                return;
+            }
+            try {
+                handle.invokeExact(target, value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                die("set("+property+"): "+t, t);
+            }
+        }
+
+        public void setNull(Object target, Class valueType) {
+            if (!accepts(null)) {
+                ReflectionUtil.setNull(target, property, valueType);
+                return;
+            }
+            try {
+                handle.invokeExact(target, (Object) null);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                die("setNull("+property+"): "+t, t);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.cobbzilla.wizard.task;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TaskServiceBaseTest {
+
+    public static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    @Test public void testEvictBeyondMaxCompletedTasks () throws Exception {
+        final TestService service = new TestService(TimeUnit.HOURS.toMillis(1), 2);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final List<TaskId> ids = new ArrayList<>();
+        for (int i=0; i<5; i++) ids.add(service.execute(new TestTask("t"+i, 0, null, ran)));
+        awaitCompletion(service);
+
+        service.evict();
+        assertEquals(5, service.getStats().getCompleted());
+        assertEquals(3, service.getStats().getEvicted());
+        assertEquals(2, service.getStats().getTracked());
+        for (int i=0; i<5; i++) {
+            final TestResult result = service.getResult(ids.get(i).getUuid());
+            if (i < 3) {
+                assertNull(result); // the oldest completed tasks go first
+            } else {
+                assertTrue(result.isSuccess());
+            }
+        }
+    }
+
+    @Test public void testEvictExpiredTasks () throws Exception {
+        final TestService service = new TestService(0, 1000);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        for (int i=0; i<3; i++) service.execute(new TestTask("t"+i, 0, null, ran));
+        awaitCompletion(service);
+
+        Thread.sleep(10);
+        service.evict();
+        assertEquals(3, service.getStats().getEvicted());
+        assertEquals(0, service.getStats().getTracked());
+    }
+
+    @Test public void testPriorityOrdering () throws Exception {
+        final TestService service = new PriorityService();
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+        // the first task holds the only thread until everything else has been queued
+        final CountDownLatch gate = new CountDownLatch(1);
+        service.execute(new TestTask("blocker", 0, gate, ran));
+        service.execute(new TestTask("low", 1, null, ran));
+        service.execute(new TestTask("high1", 5, null, ran));
+        service.execute(new TestTask("medium", 3, null, ran));
+        service.execute(new TestTask("high2", 5, null, ran));
+        assertEquals(4, service.getStats().getQueued());
+        gate.countDown();
+        awaitCompletion(service);
+
+        // highest priority first, first submitted first within a priority
+        assertEquals(Arrays.asList("blocker", "high1", "high2", "medium", "low"), ran);
+    }
+
+    private void awaitCompletion(TestService service) throws InterruptedException {
+        service.executor.shutdown();
+        assertTrue(service.executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    public static class TestResult extends TaskResult<TaskEvent> {}
+
+    public static class TestTask extends TaskBase<TestResult, TaskEvent> implements PrioritizedTask {
+
+        private final String name;
+        private final int priority;
+        private final CountDownLatch gate;
+        private final List<String> ran;
+
+        public TestTask(String name, int priority, CountDownLatch gate, List<String> ran) {
+            this.name = name;
+            this.priority = priority;
+            this.gate = gate;
+            this.ran = ran;
+        }
+
+        @Override public int getPriority() { return priority; }
+
+        @Override public TestResult execute() {
+            try {
+                if (gate != null && !gate.await(TIMEOUT, TimeUnit.MILLISECONDS)) result.setError("gate timed out");
+            } catch (InterruptedException e) {
+                result.setError("interrupted");
+            }
+            ran.add(name);
+            if (!result.hasError()) result.setSuccess(true);
+            return result;
+        }
+    }
+
+    // one thread, so tasks complete in the order they run
+    public static class TestService extends TaskServiceBase<TestTask, TestResult> {
+
+        private final long completedTaskTtl;
+        private final int maxCompletedTasks;
+
+        public TestService(long completedTaskTtl, int maxCompletedTasks) {
+            this.completedTaskTtl = completedTaskTtl;
+            this.maxCompletedTasks = maxCompletedTasks;
+        }
+
+        @Override protected int getPoolSize() { return 1; }
+        @Override protected long getCompletedTaskTtl() { return completedTaskTtl; }
+        @Override protected int getMaxCompletedTasks() { return maxCompletedTasks; }
+    }
+
+    public static class PriorityService extends TestService {
+        public PriorityService() { super(TimeUnit.HOURS.toMillis(1), 1000); }
+        @Override protected boolean isPriorityScheduling() { return true; }
+    }
+
+}
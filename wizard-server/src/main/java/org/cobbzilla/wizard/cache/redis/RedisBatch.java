@@ -0,0 +1,128 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cobbzilla.wizard.cache.redis.RedisService.MAX_RETRIES;
+
+/**
+ * Collects redis commands and sends them in a single pipeline (one round trip) when exec is called.
+ * Keys are prefixed and values encrypted/decrypted by the RedisService that created the batch.
+ */
+@Slf4j
+public class RedisBatch {
+
+    private final RedisService service;
+    private final List<BatchOp> ops = new ArrayList<>();
+
+    RedisBatch(RedisService service) { this.service = service; }
+
+    public int size() { return ops.size(); }
+
+    public RedisBatch get(final String key) {
+        ops.add(new BatchOp(true) {
+            @Override Response<?> apply(Pipeline p) { return p.get(service.prefix(key)); }
+        });
+        return this;
+    }
+
+    public RedisBatch set(final String key, final String value) {
+        final String encrypted = service.encrypt(value);
+        ops.add(new BatchOp() {
+            @Override Response<?> apply(Pipeline p) { return p.set(service.prefix(key), encrypted); }
+        });
+        return this;
+    }
+
+    public RedisBatch set(final String key, final String value, final String nxxx, final String expx, final long time) {
+        final String encrypted = service.encrypt(value);
+        ops.add(new BatchOp() {
+            @Override Response<?> apply(Pipeline p) { return p.set(service.prefix(key), encrypted, nxxx, expx, time); }
+        });
+        return this;
+    }
+
+    public RedisBatch lpush(final String key, final String value) {
+        final String encrypted = service.encrypt(value);
+        ops.add(new BatchOp() {
+            @Override Response<?> apply(Pipeline p) { return p.lpush(service.prefix(key), encrypted); }
+        });
+        return this;
+    }
+
+    public RedisBatch del(final String key) {
+        ops.add(new BatchOp() {
+            @Override Response<?> apply(Pipeline p) { return p.del(service.prefix(key)); }
+        });
+        return this;
+    }
+
+    public RedisBatch incrBy(final String key, final long value) {
+        ops.add(new BatchOp() {
+            @Override Response<?> apply(Pipeline p) { return p.incrBy(service.prefix(key), value); }
+        });
+        return this;
+    }
+
+    public RedisBatch expire(final String key, final int seconds) {
+        ops.add(new BatchOp() {
+            @Override Response<?> apply(Pipeline p) { return p.expire(service.prefix(key), seconds); }
+        });
+        return this;
+    }
+
+    public RedisBatch pttl(final String key) {
+        ops.add(new BatchOp() {
+            @Override Response<?> apply(Pipeline p) { return p.pttl(service.prefix(key)); }
+        });
+        return this;
+    }
+
+    /**
+     * Send all commands in one pipeline. If the connection fails before every reply has been read, the whole batch
+     * is retried, up to MAX_RETRIES times (commands that reached redis before the failure may then run twice).
+     * Errors in individual replies, and in decrypting them, are never retried: by then every command has run.
+     * @return one result per command, in the order the commands were added. results of get are decrypted.
+     */
+    public List<Object> exec() {
+        if (ops.isEmpty()) return new ArrayList<>();
+        final List<Response<?>> responses = sync(0, MAX_RETRIES);
+        final List<Object> results = new ArrayList<>(responses.size());
+        for (int i=0; i<responses.size(); i++) {
+            final Object result = responses.get(i).get();
+            results.add(ops.get(i).decrypt ? service.decrypt((String) result) : result);
+        }
+        return results;
+    }
+
+    private List<Response<?>> sync(int attempt, int maxRetries) {
+        try {
+            final List<Response<?>> responses = new ArrayList<>(ops.size());
+            try (Jedis redis = service.getRedis()) {
+                final Pipeline pipeline = redis.pipelined();
+                for (BatchOp op : ops) responses.add(op.apply(pipeline));
+                pipeline.sync();
+            }
+            return responses;
+
+        } catch (JedisConnectionException e) {
+            if (attempt >= maxRetries) throw e;
+            service.resetForRetry(attempt, "retrying RedisBatch.exec");
+            return sync(attempt+1, maxRetries);
+        }
+    }
+
+    private abstract static class BatchOp {
+        final boolean decrypt;
+        BatchOp() { this(false); }
+        BatchOp(boolean decrypt) { this.decrypt = decrypt; }
+        abstract Response<?> apply(Pipeline p);
+    }
+
+}
@@ -14,6 +14,11 @@ public class RedisConfiguration {
     @Setter private String prefix;
     public String getPrefix () { return prefix == null ? "" : prefix; }
 
+    // connection pool settings
+    @Getter @Setter private int maxConnections = 50;
+    @Getter @Setter private int maxIdleConnections = 10;
+    @Getter @Setter private int timeout = 2000;
+
     public RedisConfiguration (String key) { this.key = key; }
 
 }
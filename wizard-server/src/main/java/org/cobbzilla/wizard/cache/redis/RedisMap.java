@@ -47,8 +47,7 @@ public class RedisMap<V> implements Map<String, V> {
         } else if (duration == null) {
             redis.set(keyName(key), toJsonOrDie(value));
         } else {
-            redis.set(keyName(key), toJsonOrDie(value), "NX", "PX", duration);
-            redis.set(keyName(key), toJsonOrDie(value), "XX", "PX", duration);
+            redis.set(keyName(key), toJsonOrDie(value), "PX", duration);
         }
         return null;
     }
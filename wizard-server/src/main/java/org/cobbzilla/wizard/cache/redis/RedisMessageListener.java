@@ -0,0 +1,7 @@
+package org.cobbzilla.wizard.cache.redis;
+
+public interface RedisMessageListener {
+
+    void onMessage (String channel, String message);
+
+}
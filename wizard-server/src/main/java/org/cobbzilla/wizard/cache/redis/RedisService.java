@@ -7,8 +7,11 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -31,8 +34,17 @@ public class RedisService {
     @Getter @Setter private String key;
     protected boolean hasKey () { return !empty(getKey()); }
 
-    private final AtomicReference<Jedis> redis = new AtomicReference<>();
-    private Jedis newJedis() { return new Jedis(configuration.getRedis().getHost(), configuration.getRedis().getPort()); }
+    // shared by every prefixNamespace'd service derived from this one
+    private AtomicReference<JedisPool> pool = new AtomicReference<>();
+    private AtomicReference<RedisSubscriber> subscriber = new AtomicReference<>();
+
+    private JedisPool newPool() {
+        final RedisConfiguration redis = configuration.getRedis();
+        final JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(redis.getMaxConnections());
+        poolConfig.setMaxIdle(redis.getMaxIdleConnections());
+        return new JedisPool(poolConfig, redis.getHost(), redis.getPort(), redis.getTimeout());
+    }
 
     @Getter @Setter private String prefix = null;
 
@@ -46,6 +58,13 @@ public class RedisService {
         this.key = key;
     }
 
+    private RedisService(HasRedisConfiguration configuration, String prefix, String key,
+                         AtomicReference<JedisPool> pool, AtomicReference<RedisSubscriber> subscriber) {
+        this(configuration, prefix, key);
+        this.pool = pool;
+        this.subscriber = subscriber;
+    }
+
     private Map<String, RedisService> prefixServiceCache = new ConcurrentHashMap<>();
 
     public RedisService prefixNamespace(String prefix) { return prefixNamespace(prefix, configuration.getRedis().getKey()); }
@@ -55,7 +74,7 @@ public class RedisService {
         if (r == null) {
             String basePrefix = (this.prefix != null) ? this.prefix : configuration.getRedis().getPrefix();
             basePrefix = empty(basePrefix) ? "" : basePrefix + ".";
-            r = new RedisService(configuration, basePrefix + prefix, key);
+            r = new RedisService(configuration, basePrefix + prefix, key, pool, subscriber);
             prefixServiceCache.put(prefix, r);
         }
         return r;
@@ -64,24 +83,30 @@ public class RedisService {
 
     public void reconnect () {
         log.debug("marking redis for reconnection...");
-        synchronized (redis) {
-            if (redis.get() != null) {
-                try { redis.get().disconnect(); } catch (Exception e) {
-                    log.warn("error disconnecting from redis before reconnecting: "+e);
+        synchronized (pool) {
+            if (pool.get() != null) {
+                try { pool.get().destroy(); } catch (Exception e) {
+                    log.warn("error destroying redis pool before reconnecting: "+e);
                 }
             }
-            redis.set(null);
+            pool.set(null);
         }
     }
 
-    private Jedis getRedis () {
-        synchronized (redis) {
-            if (redis.get() == null) {
-                log.debug("connecting to redis...");
-                redis.set(newJedis());
+    /** callers must close the returned connection to return it to the pool */
+    protected Jedis getRedis () {
+        JedisPool p = pool.get();
+        if (p == null) {
+            synchronized (pool) {
+                p = pool.get();
+                if (p == null) {
+                    log.debug("connecting to redis...");
+                    p = newPool();
+                    pool.set(p);
+                }
             }
         }
-        return redis.get();
+        return p.getResource();
     }
 
     public <V> RedisMap<V> map (String prefix) { return map(prefix, null); }
@@ -104,9 +129,15 @@ public class RedisService {
         __set(key, value, nxxx, expx, time, 0, MAX_RETRIES);
     }
 
+    /** @return true if the key did not exist and was set, false if it already existed */
+    public boolean setIfAbsent(String key, String value, String expx, long time) {
+        return "OK".equals(__set(key, value, "NX", expx, time, 0, MAX_RETRIES));
+    }
+
     public void set(String key, String value, String expx, long time) {
-        __set(key, value, "XX", expx, time, 0, MAX_RETRIES);
-        __set(key, value, "NX", expx, time, 0, MAX_RETRIES);
+        batch().set(key, value, "XX", expx, time)
+               .set(key, value, "NX", expx, time)
+               .exec();
     }
 
     public void set(String key, String value) { __set(key, value, 0, MAX_RETRIES); }
@@ -125,6 +156,30 @@ public class RedisService {
         __set(key, value, 0, MAX_RETRIES);
     }
 
+    public void expire(String key, int seconds) { __expire(key, seconds, 0, MAX_RETRIES); }
+
+    public void publish(String channel, String message) { __publish(channel, message, 0, MAX_RETRIES); }
+
+    /**
+     * Deliver every message published on the channel (within this service's namespace) to the listener.
+     * All subscriptions of this service and its prefixNamespace'd services share a single connection and thread.
+     * @return the subscription; call shutdown on it to stop receiving messages
+     */
+    public RedisSubscriber.Subscription subscribe(String channel, RedisMessageListener listener) {
+        RedisSubscriber s = subscriber.get();
+        if (s == null) {
+            synchronized (subscriber) {
+                s = subscriber.get();
+                if (s == null) {
+                    s = new RedisSubscriber(this);
+                    s.start();
+                    subscriber.set(s);
+                }
+            }
+        }
+        return s.add(this, channel, listener);
+    }
+
     public Long incr(String key) { return __incrBy(key, 1, 0, MAX_RETRIES); }
 
     public Long incrBy(String key, long value) { return __incrBy(key, value, 0, MAX_RETRIES); }
@@ -134,6 +189,52 @@ public class RedisService {
 
     public List<String> list(String key) { return __list(key, 0, MAX_RETRIES); }
 
+    /**
+     * @param keys the keys to get
+     * @return the values, in the same order as the keys (null for keys that do not exist), in one round trip
+     */
+    public List<String> mget(List<String> keys) {
+        if (empty(keys)) return new ArrayList<>();
+        final String[] prefixed = new String[keys.size()];
+        for (int i=0; i<prefixed.length; i++) prefixed[i] = prefix(keys.get(i));
+        final List<String> values = __mget(prefixed, 0, MAX_RETRIES);
+        final List<String> list = new ArrayList<>(values.size());
+        for (String value : values) list.add(decrypt(value));
+        return list;
+    }
+
+    /** set every key/value in one round trip */
+    public void mset(Map<String, String> values) {
+        final RedisBatch batch = batch();
+        for (Map.Entry<String, String> entry : values.entrySet()) batch.set(entry.getKey(), entry.getValue());
+        batch.exec();
+    }
+
+    /** set every key/value with the same expiration in one round trip */
+    public void mset(Map<String, String> values, String expx, long time) {
+        final RedisBatch batch = batch();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            batch.set(entry.getKey(), entry.getValue(), "XX", expx, time)
+                 .set(entry.getKey(), entry.getValue(), "NX", expx, time);
+        }
+        batch.exec();
+    }
+
+    /** delete all the keys in one round trip */
+    public void del(Collection<String> keys) {
+        if (empty(keys)) return;
+        final String[] prefixed = new String[keys.size()];
+        int i = 0;
+        for (String k : keys) prefixed[i++] = prefix(k);
+        __del(prefixed, 0, MAX_RETRIES);
+    }
+
+    /**
+     * Start a batch of commands that will be sent to redis in a single pipeline.
+     * Keys are namespaced and values are encrypted exactly as with the non-batched methods.
+     */
+    public RedisBatch batch() { return new RedisBatch(this); }
+
     // override these for full control
     protected String encrypt(String data) {
         if (!hasKey()) return data;
@@ -146,19 +247,17 @@ public class RedisService {
         return string_decrypt(data, getKey());
     }
 
-    private void resetForRetry(int attempt, String reason) {
-        reconnect();
-        sleep(attempt * 10, reason);
-    }
+    // a broken connection is discarded by the pool when it is closed, so there is nothing to reset
+    void resetForRetry(int attempt, String reason) { sleep(attempt * 10, reason); }
 
-    private String prefix (String key) {
+    String prefix (String key) {
         return empty(prefix) ? key : prefix + "." + key;
     }
 
     private String __get(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().get(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.get(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -169,8 +268,8 @@ public class RedisService {
 
     private boolean __exists(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().exists(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.exists(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -181,8 +280,8 @@ public class RedisService {
 
     private String __set(String key, String value, String nxxx, String expx, long time, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().set(prefix(key), encrypt(value), nxxx, expx, time);
+            try (Jedis redis = getRedis()) {
+                return redis.set(prefix(key), encrypt(value), nxxx, expx, time);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -193,8 +292,8 @@ public class RedisService {
 
     private String __set(String key, String value, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().set(prefix(key), encrypt(value));
+            try (Jedis redis = getRedis()) {
+                return redis.set(prefix(key), encrypt(value));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -205,8 +304,8 @@ public class RedisService {
 
     private Long __lpush(String key, String value, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().lpush(prefix(key), encrypt(value));
+            try (Jedis redis = getRedis()) {
+                return redis.lpush(prefix(key), encrypt(value));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -217,8 +316,8 @@ public class RedisService {
 
     private String __lpop(String data, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().lpop(data);
+            try (Jedis redis = getRedis()) {
+                return redis.lpop(data);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -229,8 +328,8 @@ public class RedisService {
 
     private Long __del(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().del(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.del(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -239,10 +338,34 @@ public class RedisService {
         }
     }
 
+    private Long __expire(String key, int seconds, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.expire(prefix(key), seconds);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__expire");
+            return __expire(key, seconds, attempt+1, maxRetries);
+        }
+    }
+
+    private Long __publish(String channel, String message, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.publish(prefix(channel), encrypt(message));
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__publish");
+            return __publish(channel, message, attempt+1, maxRetries);
+        }
+    }
+
     private Long __incrBy(String key, long value, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().incrBy(prefix(key), value);
+            try (Jedis redis = getRedis()) {
+                return redis.incrBy(prefix(key), value);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -253,8 +376,8 @@ public class RedisService {
 
     private Long __decrBy(String key, long value, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().decrBy(prefix(key), value);
+            try (Jedis redis = getRedis()) {
+                return redis.decrBy(prefix(key), value);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -265,16 +388,12 @@ public class RedisService {
 
     private List<String> __list(String key, int attempt, int maxRetries) {
         try {
-            final Long llen;
-            synchronized (redis) {
-                llen = getRedis().llen(prefix(key));
-            }
-            if (llen == null) return null;
-
             final List<String> range;
-            synchronized (redis) {
-                range = getRedis().lrange(prefix(key), 0, llen);
+            try (Jedis redis = getRedis()) {
+                range = redis.lrange(prefix(key), 0, -1);
             }
+            if (range == null) return null;
+
             final List<String> list = new ArrayList<>(range.size());
             for (String item : range) list.add(decrypt(item));
 
@@ -287,4 +406,28 @@ public class RedisService {
         }
     }
 
+    private List<String> __mget(String[] keys, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.mget(keys);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__mget");
+            return __mget(keys, attempt+1, maxRetries);
+        }
+    }
+
+    private Long __del(String[] keys, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.del(keys);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__del");
+            return __del(keys, attempt+1, maxRetries);
+        }
+    }
+
 }
@@ -0,0 +1,141 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Holds one dedicated pooled connection, shared by a RedisService and every prefixNamespace'd service derived
+ * from it, subscribed to every channel that any of them has listeners on. Messages are decrypted by the service
+ * that registered the listener before being handed to it. Resubscribes if the connection drops.
+ *
+ * Channels are only ever added to the subscription: when a channel's last listener is removed, its messages
+ * are simply dropped.
+ */
+@Slf4j
+public class RedisSubscriber extends Thread {
+
+    private static final long RESUBSCRIBE_DELAY = TimeUnit.SECONDS.toMillis(2);
+
+    private final RedisService service;
+
+    // guards listeners, pubSub and requested
+    private final Object lock = new Object();
+    private final Map<String, List<Subscription>> listeners = new HashMap<>();
+    private JedisPubSub pubSub;
+    private final Set<String> requested = new HashSet<>();
+
+    RedisSubscriber(RedisService service) {
+        super("RedisSubscriber");
+        this.service = service;
+        setDaemon(true);
+    }
+
+    Subscription add(RedisService channelService, String channel, RedisMessageListener listener) {
+        final Subscription subscription = new Subscription(channelService, channel, listener);
+        final String prefixed = channelService.prefix(channel);
+        synchronized (lock) {
+            List<Subscription> subs = listeners.get(prefixed);
+            if (subs == null) {
+                subs = new CopyOnWriteArrayList<>();
+                listeners.put(prefixed, subs);
+            }
+            subs.add(subscription);
+            // if the connection is not subscribed yet, onSubscribe picks up the new channel
+            if (pubSub != null && pubSub.isSubscribed()) requestMissing();
+            lock.notifyAll();
+        }
+        return subscription;
+    }
+
+    private void remove(Subscription subscription) {
+        synchronized (lock) {
+            final List<Subscription> subs = listeners.get(subscription.service.prefix(subscription.channel));
+            if (subs != null) subs.remove(subscription);
+        }
+    }
+
+    // call with the lock held
+    private void requestMissing() {
+        final List<String> missing = new ArrayList<>();
+        for (String ch : listeners.keySet()) if (!requested.contains(ch)) missing.add(ch);
+        if (missing.isEmpty()) return;
+        try {
+            pubSub.subscribe(missing.toArray(new String[missing.size()]));
+            requested.addAll(missing);
+        } catch (Exception e) {
+            log.warn("requestMissing: error subscribing to "+missing+" (will retry on reconnect): "+e);
+        }
+    }
+
+    @Override public void run() {
+        while (true) {
+            final String[] channels;
+            final JedisPubSub p = new ListenerPubSub();
+            synchronized (lock) {
+                while (listeners.isEmpty()) {
+                    try { lock.wait(); } catch (InterruptedException e) { return; }
+                }
+                channels = listeners.keySet().toArray(new String[listeners.size()]);
+                requested.clear();
+                requested.addAll(Arrays.asList(channels));
+                pubSub = p;
+            }
+            try (Jedis redis = service.getRedis()) {
+                redis.subscribe(p, channels);
+            } catch (Exception e) {
+                log.warn("run: subscription failed, retrying: "+e);
+                sleep(RESUBSCRIBE_DELAY, "resubscribing");
+            } finally {
+                synchronized (lock) { pubSub = null; }
+            }
+        }
+    }
+
+    private class ListenerPubSub extends JedisPubSub {
+        @Override public void onMessage(String ch, String message) {
+            final List<Subscription> subs;
+            synchronized (lock) { subs = listeners.get(ch); }
+            if (subs == null) return;
+            for (Subscription sub : subs) sub.deliver(message);
+        }
+        @Override public void onSubscribe(String ch, int subscribedChannels) {
+            synchronized (lock) { if (pubSub == this) requestMissing(); }
+        }
+        @Override public void onPMessage(String pattern, String ch, String message) {}
+        @Override public void onUnsubscribe(String ch, int subscribedChannels) {}
+        @Override public void onPUnsubscribe(String pattern, int subscribedChannels) {}
+        @Override public void onPSubscribe(String pattern, int subscribedChannels) {}
+    }
+
+    /** one listener on one channel. call shutdown to stop receiving messages */
+    public class Subscription {
+
+        private final RedisService service;
+        private final String channel;
+        private final RedisMessageListener listener;
+
+        private Subscription(RedisService service, String channel, RedisMessageListener listener) {
+            this.service = service;
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        private void deliver(String message) {
+            try {
+                listener.onMessage(channel, service.decrypt(message));
+            } catch (Exception e) {
+                log.warn("onMessage("+channel+"): listener error: "+e, e);
+            }
+        }
+
+        public void shutdown() { remove(this); }
+    }
+
+}
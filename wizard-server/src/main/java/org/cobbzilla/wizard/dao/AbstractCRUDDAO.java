@@ -5,11 +5,14 @@ package org.cobbzilla.wizard.dao;
  * https://github.com/dropwizard/dropwizard/blob/master/LICENSE
  */
 
+import com.google.common.collect.Lists;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.wizard.api.CrudOperation;
 import org.cobbzilla.wizard.model.AuditLog;
 import org.cobbzilla.wizard.model.Identifiable;
+import org.cobbzilla.wizard.server.config.HibernateConfiguration;
 import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
@@ -35,6 +38,9 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
     @Transactional(readOnly=true)
     @Override public List<E> findAll() { return list(criteria()); }
 
+    /** like findAll, but hands each entity to the handler as it is read. see AbstractDAO.stream */
+    public int streamAll(EntityHandler<E> handler) { return stream(sort(criteria()), handler); }
+
     @Transactional(readOnly=true)
     @Override public E findByUuid(String uuid) { return findByUniqueField("uuid", uuid); }
 
@@ -46,21 +52,19 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
     @Transactional(readOnly=true)
     @Override public boolean exists(String uuid) { return findByUuid(uuid) != null; }
 
-    @Override public Object preCreate(@Valid E entity) {
-        return auditingEnabled() ? audit(null, entity, CrudOperation.create) : entity;
-    }
-    @Override public E postCreate(E entity, Object context) {
-        return auditingEnabled() ? commit_audit(entity, context) : entity;
-    }
+    @Override public Object preCreate(@Valid E entity) { return entity; }
+    @Override public E postCreate(E entity, Object context) { return entity; }
 
     @Override public E create(@Valid E entity) { return AbstractCRUDDAO.create(entity, this); }
 
     public static <E extends Identifiable> E create(E entity, AbstractCRUDDAO<E> dao) {
         entity.beforeCreate();
         final Object ctx = dao.preCreate(entity);
+        final Object audit = dao.auditingEnabled() ? dao.audit(null, entity, CrudOperation.create) : null;
         setFlushMode(dao.getHibernateTemplate());
         entity.setUuid((String) dao.getHibernateTemplate().save(checkNotNull(entity)));
         dao.getHibernateTemplate().flush();
+        if (audit != null) dao.commit_audit(audit);
         return dao.postCreate(entity, ctx);
     }
 
@@ -76,22 +80,19 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
         return exists(entity.getUuid()) ? update(entity) : create(entity);
     }
 
-    @Override public Object preUpdate(@Valid E entity) {
-        return auditingEnabled() ? audit(findByUuid(entity.getUuid()), entity, CrudOperation.update) : entity;
-    }
-
-    @Override public E postUpdate(E entity, Object context) {
-        return auditingEnabled() ? commit_audit(entity, context) : entity;
-    }
+    @Override public Object preUpdate(@Valid E entity) { return entity; }
+    @Override public E postUpdate(E entity, Object context) { return entity; }
 
     @Override public E update(@Valid E entity) { return update(entity, this); }
 
     public static <E extends Identifiable> E update(@Valid E entity, AbstractCRUDDAO<E> dao) {
         entity.beforeUpdate();
         final Object ctx = dao.preUpdate(entity);
+        final Object audit = dao.auditingEnabled() ? dao.audit(dao.findByUuid(entity.getUuid()), entity, CrudOperation.update) : null;
         setFlushMode(dao.getHibernateTemplate());
         entity = dao.getHibernateTemplate().merge(checkNotNull(entity));
         dao.getHibernateTemplate().flush();
+        if (audit != null) dao.commit_audit(audit);
         return dao.postUpdate(entity, ctx);
     }
 
@@ -106,6 +107,136 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
         }
     }
 
+    // subclasses may override. how many entities the bulk operations write between flushes
+    protected int getBatchSize() { return HibernateConfiguration.DEFAULT_JDBC_BATCH_SIZE; }
+
+    /**
+     * Batch hooks for createAll and updateAll. By default they call preCreate/postCreate and preUpdate/postUpdate
+     * for each entity of the batch, so the bulk operations behave like create and update; subclasses may override
+     * them to do the work of a whole batch at once. Each batch has already had beforeCreate/beforeUpdate called on
+     * its entities. The post hooks are called before the session is cleared.
+     */
+    public Object preCreateBatch(List<E> batch) {
+        final List<Object> contexts = new ArrayList<>(batch.size());
+        for (E entity : batch) contexts.add(preCreate(entity));
+        return contexts;
+    }
+    public List<E> postCreateBatch(List<E> batch, Object context) {
+        final List<Object> contexts = (List<Object>) context;
+        final List<E> created = new ArrayList<>(batch.size());
+        for (int i=0; i<batch.size(); i++) created.add(postCreate(batch.get(i), contexts.get(i)));
+        return created;
+    }
+    public Object preUpdateBatch(List<E> batch) {
+        final List<Object> contexts = new ArrayList<>(batch.size());
+        for (E entity : batch) contexts.add(preUpdate(entity));
+        return contexts;
+    }
+    public List<E> postUpdateBatch(List<E> batch, Object context) {
+        final List<Object> contexts = (List<Object>) context;
+        final List<E> updated = new ArrayList<>(batch.size());
+        for (int i=0; i<batch.size(); i++) updated.add(postUpdate(batch.get(i), contexts.get(i)));
+        return updated;
+    }
+
+    /**
+     * Create many entities, flushing (and clearing the session) every getBatchSize() entities, so that inserts
+     * go out as JDBC batches. If auditing is enabled, each batch's audit logs are inserted together once the
+     * batch has been flushed. Entities loaded earlier in the same session are detached by the clear.
+     */
+    public List<E> createAll(Collection<E> entities) {
+        final List<E> created = new ArrayList<>(entities.size());
+        final Session session = currentSession();
+        for (List<E> batch : Lists.partition(new ArrayList<>(entities), getBatchSize())) {
+            for (E entity : batch) checkNotNull(entity).beforeCreate();
+            final Object ctx = preCreateBatch(batch);
+            for (E entity : batch) entity.setUuid((String) session.save(entity));
+            session.flush();
+            if (auditingEnabled()) auditBatch(null, batch, CrudOperation.create);
+            created.addAll(postCreateBatch(batch, ctx));
+            session.flush(); // anything the post hooks changed
+            session.clear();
+        }
+        return created;
+    }
+
+    /** Update many entities, in batches like createAll */
+    public List<E> updateAll(Collection<E> entities) {
+        final List<E> updated = new ArrayList<>(entities.size());
+        final Session session = currentSession();
+        for (List<E> batch : Lists.partition(new ArrayList<>(entities), getBatchSize())) {
+            for (E entity : batch) checkNotNull(entity).beforeUpdate();
+            final Map<String, String> prevStates = auditingEnabled() ? currentStates(batch) : null;
+            final Object ctx = preUpdateBatch(batch);
+            final List<E> merged = new ArrayList<>(batch.size());
+            for (E entity : batch) merged.add((E) session.merge(entity));
+            session.flush();
+            if (auditingEnabled()) auditBatch(prevStates, merged, CrudOperation.update);
+            updated.addAll(postUpdateBatch(merged, ctx));
+            session.flush();
+            session.clear();
+        }
+        return updated;
+    }
+
+    /**
+     * Delete many entities by uuid, in batches like createAll. Uuids that are not found are ignored.
+     * @return the number of entities deleted
+     */
+    public int deleteAll(Collection<String> uuids) {
+        int deleted = 0;
+        final Session session = currentSession();
+        for (List<String> batch : Lists.partition(new ArrayList<>(uuids), getBatchSize())) {
+            final List<E> found = list(criteria().add(in("uuid", batch)));
+            final List<AuditLog> auditLogs = auditingEnabled() ? new ArrayList<AuditLog>(found.size()) : null;
+            for (E entity : found) {
+                if (auditLogs != null) auditLogs.add(newAuditLog(toJsonOrDie(toMap(entity)), null, entity.getUuid(), CrudOperation.delete));
+                session.delete(entity);
+            }
+            session.flush();
+            if (auditLogs != null) writeAuditLogs(auditLogs);
+            session.clear();
+            deleted += found.size();
+        }
+        return deleted;
+    }
+
+    protected Session currentSession() {
+        final Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+        session.setFlushMode(FlushMode.COMMIT);
+        return session;
+    }
+
+    // the current (pre-update) state of each entity, read in one query
+    private Map<String, String> currentStates(List<E> batch) {
+        final List<String> uuids = new ArrayList<>(batch.size());
+        for (E entity : batch) uuids.add(entity.getUuid());
+        final Map<String, String> states = new HashMap<>();
+        for (E prev : list(criteria().add(in("uuid", uuids)))) states.put(prev.getUuid(), toJsonOrDie(toMap(prev)));
+        return states;
+    }
+
+    private void auditBatch(Map<String, String> prevStates, List<E> batch, CrudOperation operation) {
+        final List<AuditLog> auditLogs = new ArrayList<>(batch.size());
+        for (E entity : batch) {
+            final String prevState = prevStates == null ? null : prevStates.get(entity.getUuid());
+            final String newState = toJsonOrDie(toMap(entity, getAuditFields(), getAuditExcludeFields()));
+            auditLogs.add(newAuditLog(prevState, newState, entity.getUuid(), operation));
+        }
+        writeAuditLogs(auditLogs);
+    }
+
+    // the writes these record have already been flushed, so the logs are created as successful
+    private void writeAuditLogs(List<AuditLog> auditLogs) {
+        if (getAuditLogDAO().isAsync()) {
+            final AuditLogWriter writer = getAuditLogDAO().getWriter();
+            for (AuditLog auditLog : auditLogs) writer.submit(auditLog);
+            return;
+        }
+        for (AuditLog auditLog : auditLogs) auditLog.setSuccess(true);
+        getAuditLogDAO().createAll(auditLogs);
+    }
+
     @Transactional(readOnly=true)
     @Override public E findByUniqueField(String field, Object value) {
         return uniqueResult(value == null ? isNull(field) : eq(field, value));
@@ -236,12 +367,12 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
 
         if (newEntity == null) die("audit("+operation.name()+"): newEntity cannot be null");
 
-        AuditLog auditLog = getAuditLogDAO().newEntity()
-                .setEntityType(getEntityClass().getName())
-                .setEntityUuid(newEntity.getUuid())
-                .setOperation(operation)
-                .setPrevState(prevEntity == null ? null : toJsonOrDie(toMap(prevEntity)))
-                .setNewState(toJsonOrDie(toMap(newEntity, getAuditFields(), getAuditExcludeFields())));
+        AuditLog auditLog = newAuditLog(prevEntity == null ? null : toJsonOrDie(toMap(prevEntity)),
+                                        toJsonOrDie(toMap(newEntity, getAuditFields(), getAuditExcludeFields())),
+                                        newEntity.getUuid(), operation);
+
+        // an async audit log is only captured here, and handed to the writer once the write has succeeded
+        if (getAuditLogDAO().isAsync()) return auditLog;
 
         auditLog = getAuditLogDAO().create(auditLog);
 
@@ -250,29 +381,39 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
         return ctx;
     }
 
+    private AuditLog newAuditLog(String prevState, String newState, String uuid, CrudOperation operation) {
+        return getAuditLogDAO().newEntity()
+                .setEntityType(getEntityClass().getName())
+                .setEntityUuid(uuid)
+                .setOperation(operation)
+                .setPrevState(prevState)
+                .setNewState(newState);
+    }
+
     protected String[] getAuditFields() { return null; }
     protected String[] getAuditExcludeFields() { return null; }
 
-    private E commit_audit(E entity, Object context) {
+    private void commit_audit(Object context) {
+        if (context instanceof AuditLog) {
+            getAuditLogDAO().getWriter().submit((AuditLog) context);
+            return;
+        }
         final Map<String, Object> ctx = (Map<String, Object>) context;
         final AuditLog auditLog = (AuditLog) ctx.get(PROP_AUDIT_LOG);
         auditLog.setSuccess(true);
         getAuditLogDAO().update(auditLog);
-        return entity;
     }
 
     private AuditLog audit_delete(E found) {
-        AuditLog auditLog = getAuditLogDAO().newEntity()
-                .setEntityType(getEntityClass().getName())
-                .setEntityUuid(found.getUuid())
-                .setOperation(CrudOperation.delete)
-                .setPrevState(toJsonOrDie(toMap(found)))
-                .setNewState(null);
-
-        return getAuditLogDAO().create(auditLog);
+        final AuditLog auditLog = newAuditLog(toJsonOrDie(toMap(found)), null, found.getUuid(), CrudOperation.delete);
+        return getAuditLogDAO().isAsync() ? auditLog : getAuditLogDAO().create(auditLog);
     }
 
     private void commit_audit_delete(AuditLog auditLog) {
+        if (getAuditLogDAO().isAsync()) {
+            getAuditLogDAO().getWriter().submit(auditLog);
+            return;
+        }
         auditLog.setSuccess(true);
         getAuditLogDAO().update(auditLog);
     }
@@ -12,12 +12,12 @@ import org.cobbzilla.util.string.StringUtil;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.cobbzilla.wizard.model.IdentifiableBase;
 import org.cobbzilla.wizard.model.ResultPage;
-import org.hibernate.Criteria;
-import org.hibernate.Hibernate;
-import org.hibernate.HibernateException;
-import org.hibernate.Session;
+import org.cobbzilla.wizard.util.PropertyAccessors;
+import org.hibernate.*;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.orm.hibernate4.HibernateTemplate;
 
@@ -158,6 +158,49 @@ public abstract class AbstractDAO<E> implements DAO<E> {
         return results;
     }
 
+    public static final int STREAM_FETCH_SIZE = 500;
+
+    /**
+     * Pass each result of a {@link Criteria} query to the handler as it is read, without loading them all.
+     * Runs in its own read-only session, which is cleared every STREAM_FETCH_SIZE rows; lazy associations
+     * can be loaded from within the handler.
+     *
+     * @param criteria the {@link Criteria} query to run
+     * @param handler called with each result
+     * @return the number of results
+     */
+    @SuppressWarnings("unchecked")
+    public int stream(DetachedCriteria criteria, EntityHandler<E> handler) throws HibernateException {
+        final Session session = getHibernateTemplate().getSessionFactory().openSession();
+        try {
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+            session.setCacheMode(CacheMode.IGNORE);
+            // postgres only uses a cursor (instead of reading every row up front) inside a transaction
+            final Transaction tx = session.beginTransaction();
+            try {
+                final ScrollableResults results = checkNotNull(criteria).getExecutableCriteria(session)
+                        .setFetchSize(STREAM_FETCH_SIZE)
+                        .setReadOnly(true)
+                        .scroll(ScrollMode.FORWARD_ONLY);
+                int count = 0;
+                try {
+                    while (results.next()) {
+                        handler.handle((E) results.get(0));
+                        if (++count % STREAM_FETCH_SIZE == 0) session.clear();
+                    }
+                } finally {
+                    results.close();
+                }
+                return count;
+            } finally {
+                tx.rollback(); // nothing to commit
+            }
+        } finally {
+            session.close();
+        }
+    }
+
     /**
      * Get the first results of a {@link Criteria} query.
      * @param criteria the {@link Criteria} query to run
@@ -236,17 +279,24 @@ public abstract class AbstractDAO<E> implements DAO<E> {
         return search(resultPage, getEntityClass().getSimpleName());
     }
 
+    public static final String CURSOR_SORT_PARAM = "cursorSort";
+    public static final String CURSOR_UUID_PARAM = "cursorUuid";
+
+    // subclasses may override these
+    protected ResultPage.CountStrategy getDefaultCountStrategy() { return ResultPage.CountStrategy.EXACT; }
+    protected long getCountCacheTtl() { return SearchCountCache.DEFAULT_TTL; }
+
+    private final SearchCountCache countCache = new SearchCountCache();
+    SearchCountCache getCountCache() { return countCache; }
+
     @Override public SearchResults<E> search(ResultPage resultPage, String entityType) {
         String filterClause = "";
-        String[] params;
-        Object[] values;
+        final List<String> params = new ArrayList<>();
+        final List<Object> values = new ArrayList<>();
         if (resultPage.getHasFilter()) {
-            params = PARAM_FILTER;
-            values = new Object[] { getFilterString(resultPage.getFilter()) };
+            params.add(FILTER_PARAM);
+            values.add(getFilterString(resultPage.getFilter()));
             filterClause = getFilterClause(entityAlias, FILTER_PARAM);
-        } else {
-            params = EMPTY_PARAMS;
-            values = EMPTY_VALUES;
         }
         if (resultPage.getHasBounds()) {
             for (String bound : resultPage.getBounds().keySet()) {
@@ -254,22 +304,91 @@ public abstract class AbstractDAO<E> implements DAO<E> {
                 filterClause += formatBound(entityAlias, bound, resultPage.getBounds().get(bound));
             }
         }
-        if (filterClause.length() > 0) filterClause = "where "+filterClause;
+        final boolean filtered = filterClause.length() > 0;
+        final String from = "from " + getEntityClass().getSimpleName() + " " + entityAlias + " ";
+        final String countQuery = "select count(*) " + from + (filtered ? "where " + filterClause : "");
+        final String[] countParams = params.toArray(new String[params.size()]);
+        final Object[] countValues = values.toArray();
+
+        // keyset pagination: with uuid as a tie-breaker, each page starts after the cursor's (sort value, uuid)
+        final boolean seekable = Identifiable.class.isAssignableFrom(getEntityClass());
+        final String sortField = entityAlias + "." + resultPage.getSortField();
+        final String sortType = resultPage.getSortType().name();
+        if (resultPage.getHasCursor()) {
+            if (!seekable) notSupported("search: cursor not supported for "+getEntityClass().getSimpleName());
+            final String cmp = resultPage.getSortType().isAscending() ? ">" : "<";
+            if (filterClause.length() > 0) filterClause += "and ";
+            filterClause += "(" + sortField + " " + cmp + " :" + CURSOR_SORT_PARAM
+                    + " or (" + sortField + " = :" + CURSOR_SORT_PARAM + " and " + entityAlias + ".uuid " + cmp + " :" + CURSOR_UUID_PARAM + ")) ";
+            params.add(CURSOR_SORT_PARAM);
+            values.add(resultPage.getCursorSortValue());
+            params.add(CURSOR_UUID_PARAM);
+            values.add(resultPage.getCursorUuid());
+        }
 
-        final StringBuilder qBuilder = new StringBuilder().append("from ").append(getEntityClass().getSimpleName()).append(" ").append(entityAlias).append(" ").append(filterClause);
+        final StringBuilder query = new StringBuilder(from);
+        if (filterClause.length() > 0) query.append("where ").append(filterClause);
+        query.append(" order by ").append(sortField).append(" ").append(sortType);
+        if (seekable) query.append(", ").append(entityAlias).append(".uuid ").append(sortType);
 
-        final String countQuery = "select count(*) " + qBuilder.toString();
-        final String query = qBuilder.append(" order by ").append(entityAlias).append(".").append(resultPage.getSortField()).append(" ").append(resultPage.getSortType().name()).toString();
+        List<E> results = query(query.toString(), resultPage, params.toArray(new String[params.size()]), values.toArray());
+        final Integer totalCount = count(resultPage.countStrategy(getDefaultCountStrategy()), countQuery, countParams, countValues, filtered);
 
-        List<E> results = query(query, resultPage, params, values);
-        final int totalCount = Integer.valueOf(""+query(countQuery, ResultPage.INFINITE_PAGE, params, values).get(0));
+        final String nextCursor = seekable ? nextCursor(results, resultPage) : null;
 
         // the caller may want the results filtered (remove sensitive fields)
         if (resultPage.hasScrubber() && !results.isEmpty()) {
             results = resultPage.getScrubber().scrub(results);
         }
 
-        return new SearchResults<>(results, totalCount);
+        return new SearchResults<>(results, totalCount).setNextCursor(nextCursor);
+    }
+
+    protected Integer count(ResultPage.CountStrategy strategy, String countQuery, String[] params, Object[] values, boolean filtered) {
+        switch (strategy) {
+            case NONE: return null;
+            case ESTIMATE:
+                // the table statistics only help when the whole table is counted, otherwise use a cached count
+                if (!filtered) {
+                    final Integer estimate = estimateCount();
+                    if (estimate != null) return estimate;
+                }
+            case CACHED:
+                final String key = SearchCountCache.key(countQuery, values);
+                Integer count = countCache.get(key);
+                if (count == null) {
+                    count = exactCount(countQuery, params, values);
+                    countCache.put(key, count, getCountCacheTtl());
+                }
+                return count;
+            default: return exactCount(countQuery, params, values);
+        }
+    }
+
+    protected int exactCount(String countQuery, String[] params, Object[] values) {
+        return Integer.valueOf(""+query(countQuery, ResultPage.INFINITE_PAGE, params, values).get(0));
+    }
+
+    /** @return the planner's row estimate for the entity's table, or null if there is none (the table was never analyzed) */
+    protected Integer estimateCount() {
+        final ClassMetadata metadata = getHibernateTemplate().getSessionFactory().getClassMetadata(getEntityClass());
+        if (!(metadata instanceof AbstractEntityPersister)) return null;
+        String table = ((AbstractEntityPersister) metadata).getTableName();
+        if (table.contains(".")) table = table.substring(table.lastIndexOf('.')+1);
+        final List found = query(SQL_QUERY + "select cast(reltuples as bigint) from pg_class where relname = :table",
+                ResultPage.INFINITE_PAGE, new String[] {"table"}, new Object[] {table});
+        if (found.isEmpty() || found.get(0) == null) return null;
+        final long estimate = ((Number) found.get(0)).longValue();
+        return estimate <= 0 ? null : (int) Math.min(estimate, Integer.MAX_VALUE);
+    }
+
+    /** @return a cursor for the page after this one, or null if this is the last page or the sort value cannot be a cursor */
+    protected String nextCursor(List<E> results, ResultPage resultPage) {
+        if (results.isEmpty() || resultPage.isInfinitePage() || results.size() < resultPage.getPageSize()) return null;
+        final Identifiable last = (Identifiable) results.get(results.size()-1);
+        final Object sortValue = PropertyAccessors.get(last, resultPage.getSortField());
+        if (!(sortValue instanceof String || sortValue instanceof Long || sortValue instanceof Integer)) return null;
+        return ResultPage.cursor(sortValue, last.getUuid());
     }
 
     public List query(String queryString, ResultPage resultPage, String[] params, Object[] values) {
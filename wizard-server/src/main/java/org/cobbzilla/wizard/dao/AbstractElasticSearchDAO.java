@@ -1,6 +1,5 @@
 package org.cobbzilla.wizard.dao;
 
-import lombok.AllArgsConstructor;
 import lombok.Cleanup;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -20,31 +19,39 @@ import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.update.UpdateRequest;
-import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.IndicesAdminClient;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 
+import javax.annotation.PreDestroy;
 import java.io.Closeable;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.*;
 import static org.cobbzilla.util.json.JsonUtil.*;
 import static org.cobbzilla.util.reflect.ReflectionUtil.getFirstTypeParam;
 import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
+import static org.cobbzilla.util.system.Bytes.MB;
+import static org.cobbzilla.util.time.TimeUtil.formatDurationFrom;
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 
 @Slf4j
@@ -104,15 +111,108 @@ public abstract class AbstractElasticSearchDAO<E extends Identifiable, Q, R exte
 
     protected boolean shouldIndex(E entity) { return true; }
 
-    private ExecutorService indexPool = Executors.newFixedThreadPool(getIndexPoolSize());
-    protected int getIndexPoolSize() { return 100; }
+    // index() buffers requests and sends them with the bulk API; see ElasticSearchBulkIndexer
+    protected int getBulkActions() { return 500; }
+    protected long getBulkBytes() { return 5 * MB; }
+    protected long getBulkFlushMillis() { return TimeUnit.SECONDS.toMillis(1); }
+    protected int getBulkConcurrentRequests() { return 4; }
+    protected int getBulkMaxRetries() { return 3; }
+    protected long getBulkRetryDelayMillis() { return 200; }
+    protected long getBulkDrainTimeout() { return TimeUnit.MINUTES.toMillis(10); }
+    protected long getBulkShutdownTimeout() { return TimeUnit.SECONDS.toMillis(30); }
+
+    // the bulk indexer keeps one pooled client borrowed until it is shut down
+    private ElasticSearchBulkIndexer bulkIndexer;
+    private ESClientReference bulkClient;
+    private boolean bulkShutdown = false;
+
+    public synchronized ElasticSearchBulkIndexer getBulkIndexer() {
+        if (bulkShutdown) die("getBulkIndexer: shut down");
+        if (bulkIndexer == null) {
+            bulkClient = getClient();
+            bulkIndexer = newBulkIndexer("index-"+getIndexName(), bulkClient.get(), getBulkConcurrentRequests());
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() { @Override public void run() { shutdownIndex(); } }));
+        }
+        return bulkIndexer;
+    }
+
+    /** send whatever index() has buffered, waiting up to getBulkShutdownTimeout, then return the client to the pool */
+    @PreDestroy public synchronized void shutdownIndex() {
+        if (bulkShutdown) return;
+        bulkShutdown = true;
+        if (bulkIndexer == null) return;
+        try {
+            if (!bulkIndexer.drain(getBulkShutdownTimeout())) {
+                log.warn("shutdownIndex: timed out with "+bulkIndexer.getPendingCount()+" documents pending");
+            }
+            bulkIndexer.close();
+        } finally {
+            bulkClient.close();
+        }
+    }
 
+    protected ElasticSearchBulkIndexer newBulkIndexer(String name, Client client, int concurrentRequests) {
+        return new ElasticSearchBulkIndexer(name, client, getBulkActions(), getBulkBytes(), getBulkFlushMillis(),
+                                            concurrentRequests, getBulkMaxRetries(), getBulkRetryDelayMillis());
+    }
+
+    /**
+     * Queue the entity for indexing. Blocks if too many bulk requests are already in flight.
+     * @return a Future that completes when the entity has been indexed, or null if shouldIndex refused it
+     */
     public Future<?> index (E entity) {
         if (!shouldIndex(entity)) {
             log.warn("index: refusing to index: "+getSearchId(entity));
             return null;
         }
-        return indexPool.submit(new ESIndexJob(entity));
+        final String json = toJsonOrDie(entity);
+        final String searchId = getSearchId(entity);
+        return getBulkIndexer().add(new UpdateRequest(getIndexName(), getTypeName(), searchId)
+                .doc(json)
+                .upsert(new IndexRequest(getIndexName(), getTypeName(), searchId).source(json)));
+    }
+
+    /** send anything buffered by index() now, without waiting for the flush interval */
+    public void flushIndex () { getBulkIndexer().flush(); }
+
+    public static final String REFRESH_INTERVAL = "index.refresh_interval";
+    public static final String DEFAULT_REFRESH_INTERVAL = "1s";
+
+    /**
+     * Bulk-load every entity, replacing any existing document. Index refresh is disabled while loading,
+     * then restored and a refresh is forced once all documents have been indexed.
+     * @param entities the entities to index
+     * @return the number of entities indexed successfully
+     */
+    public long reindexAll (Iterator<E> entities) {
+        final long start = now();
+        @Cleanup final ESClientReference clientRef = getClient();
+        final Client client = clientRef.get();
+        final IndicesAdminClient indices = client.admin().indices();
+        final String refreshInterval = indices.prepareGetSettings(getIndexName()).get().getSetting(getIndexName(), REFRESH_INTERVAL);
+        indices.prepareUpdateSettings(getIndexName()).setSettings(Settings.settingsBuilder().put(REFRESH_INTERVAL, "-1")).get();
+
+        final ElasticSearchBulkIndexer loader = newBulkIndexer("reindex-"+getIndexName(), client, getBulkConcurrentRequests());
+        long submitted = 0;
+        try {
+            while (entities.hasNext()) {
+                final E entity = entities.next();
+                if (!shouldIndex(entity)) continue;
+                loader.add(new IndexRequest(getIndexName(), getTypeName(), getSearchId(entity)).source(toJsonOrDie(entity)));
+                submitted++;
+            }
+            if (!loader.drain(getBulkDrainTimeout())) log.warn("reindexAll: timed out with "+loader.getPendingCount()+" documents pending");
+
+        } finally {
+            loader.close();
+            indices.prepareUpdateSettings(getIndexName())
+                    .setSettings(Settings.settingsBuilder().put(REFRESH_INTERVAL, refreshInterval == null ? DEFAULT_REFRESH_INTERVAL : refreshInterval))
+                    .get();
+            indices.prepareRefresh(getIndexName()).get();
+        }
+        final long indexed = loader.getIndexed().get();
+        log.info("reindexAll: indexed "+indexed+"/"+submitted+" ("+loader.getFailed().get()+" failed) in "+formatDurationFrom(start));
+        return indexed;
     }
 
     public boolean delete (String id) {
@@ -132,40 +232,84 @@ public abstract class AbstractElasticSearchDAO<E extends Identifiable, Q, R exte
     protected abstract R toSearchResult(E entity);
     protected abstract Comparator<? super R> getComparator(Q searchQuery);
 
-    public SearchResults<R> search(Q searchQuery) {
+    /**
+     * Sorts applied by the search engine. When empty (the default), results are sorted in memory using getComparator,
+     * which only sorts the page that was returned.
+     */
+    protected List<SortBuilder> getSorts(Q searchQuery) { return null; }
+
+    public SearchResults<R> search(Q searchQuery) { return search(searchQuery, 0, getMaxResults()); }
+
+    /**
+     * @param searchQuery the query
+     * @param from offset of the first result. for deep paging use iterate instead
+     * @param size max results to return, at most getMaxResults
+     * @return one page of results, with totalCount set to the total number of matches
+     */
+    public SearchResults<R> search(Q searchQuery, int from, int size) {
 
         // empty query returns nothing
         if (isEmptyQuery(searchQuery)) return new SearchResults<>();
 
         final SearchResults<R> results = new SearchResults<>();
+        final List<SortBuilder> sorts = getSorts(searchQuery);
         final SearchResponse response;
-
-        @Cleanup final ESClientReference client = getClient();
-        synchronized (client.get()) {
+        try (ESClientReference client = getClient()) {
             final SearchRequestBuilder requestBuilder = prepareSearch(client.get())
                     .setQuery(getQuery(searchQuery))
                     .setPostFilter(getPostFilter(searchQuery))
-                    .setFrom(0).setSize(getMaxResults());
+                    .setFrom(from).setSize(Math.min(size, getMaxResults()));
+            if (!empty(sorts)) for (SortBuilder sort : sorts) requestBuilder.addSort(sort);
 
-            log.info("search: sending to ES:\n"+requestBuilder.toString()+"\n---END JSON\n");
+            if (log.isDebugEnabled()) log.debug("search: sending to ES:\n"+requestBuilder.toString()+"\n---END JSON\n");
             response = requestBuilder.execute().actionGet();
         }
         final SearchHits hits = response.getHits();
+        results.setTotalCount((int) hits.getTotalHits());
+        for (SearchHit hit : hits) results.addResult(toSearchResult(toEntity(hit)));
 
-        for (SearchHit hit : hits) {
-            final E entity = fromJsonOrDie(hit.getSourceAsString(), getEntityType());
-            results.addResult(toSearchResult(entity));
+        if (empty(sorts)) Collections.sort(results.getResults(), getComparator(searchQuery));
+        return results;
+    }
+
+    protected int getScrollPageSize() { return 500; }
+    protected long getScrollKeepAliveMillis() { return TimeUnit.MINUTES.toMillis(1); }
+
+    /**
+     * Iterate over every match using the scroll API. Only one page of hits is held at a time, and each hit is
+     * turned into an entity only when it is returned. Results follow getSorts, or index order if there are none.
+     * Close the iterator if it is abandoned before it is exhausted, to release the scroll.
+     */
+    public ESScrollIterator iterate(Q searchQuery) {
+        final List<SortBuilder> sorts = getSorts(searchQuery);
+        final SearchResponse response;
+        try (ESClientReference client = getClient()) {
+            final SearchRequestBuilder requestBuilder = prepareSearch(client.get())
+                    .setQuery(getQuery(searchQuery))
+                    .setPostFilter(getPostFilter(searchQuery))
+                    .setScroll(TimeValue.timeValueMillis(getScrollKeepAliveMillis()))
+                    .setSize(getScrollPageSize());
+            if (empty(sorts)) {
+                requestBuilder.addSort(SortBuilders.fieldSort("_doc"));
+            } else {
+                for (SortBuilder sort : sorts) requestBuilder.addSort(sort);
+            }
+            response = requestBuilder.execute().actionGet();
         }
+        return new ESScrollIterator(response);
+    }
 
-        Collections.sort(results.getResults(), getComparator(searchQuery));
-        return results;
+    protected E toEntity(SearchHit hit) {
+        // read straight from the source bytes, rather than copying them into a String first
+        try (InputStream in = hit.getSourceRef().streamInput()) {
+            return FULL_MAPPER.readValue(in, getEntityType());
+        } catch (Exception e) {
+            return die("toEntity: "+e, e);
+        }
     }
 
     public SearchResponse debugSearch(DebugSearchQuery query) {
-//        final List<R> results = new ArrayList<>();
-        final SearchResponse response;
-        @Cleanup final ESClientReference client = getClient();
-        synchronized (client.get()) {
+        try (ESClientReference client = getClient()) {
             final SearchRequestBuilder requestBuilder;
             if (query.hasSearchPreparer()) {
                 final SearchPreparer preparer = instantiate(query.getSearchPreparer());
@@ -183,40 +327,53 @@ public abstract class AbstractElasticSearchDAO<E extends Identifiable, Q, R exte
             }
 
             log.info("search: sending to ES:\n"+requestBuilder.toString()+"\n---END JSON\n");
-            response = requestBuilder.execute().actionGet();
+            return requestBuilder.execute().actionGet();
         }
-//        for (SearchHit hit : response) {
-//
-//        }
-        return response;
     }
 
-    @AllArgsConstructor
-    private class ESIndexJob implements Runnable {
-        private final E entity;
+    public class ESScrollIterator implements Iterator<E>, Closeable {
 
-        @Override public void run() {
-            @Cleanup final ESClientReference client = getClient();
-            synchronized (client.get()) {
-                try {
-                    final String json = toJson(entity);
+        private String scrollId;
+        private SearchHit[] hits;
+        private int index = 0;
 
-                    final String searchId = getSearchId(entity);
-                    final IndexRequest indexRequest = new IndexRequest(getIndexName(), getTypeName(), searchId).source(json);
-                    final UpdateRequest updateRequest = new UpdateRequest(getIndexName(), getTypeName(), searchId)
-                            .doc(json)
-                            .upsert(indexRequest);
-                    final UpdateResponse response = client.get().update(updateRequest).get();
+        ESScrollIterator(SearchResponse response) { setPage(response); }
 
-                    if (response.getShardInfo().getSuccessful() == 0 && response.getShardInfo().getFailed() > 0) {
-                        log.warn("Error indexing: " + toJsonOrErr(response));
-                    }
+        private void setPage(SearchResponse response) {
+            scrollId = response.getScrollId();
+            hits = response.getHits().getHits();
+            index = 0;
+            if (hits.length == 0) close();
+        }
 
-                } catch (Exception e) {
-                    final String msg = "index: " + e;
-                    log.error(msg, e);
-                    die(msg, e);
-                }
+        @Override public boolean hasNext() {
+            if (index < hits.length) return true;
+            if (scrollId == null) return false;
+            try (ESClientReference client = getClient()) {
+                setPage(client.get().prepareSearchScroll(scrollId)
+                        .setScroll(TimeValue.timeValueMillis(getScrollKeepAliveMillis()))
+                        .execute().actionGet());
+            }
+            return index < hits.length;
+        }
+
+        @Override public E next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final SearchHit hit = hits[index];
+            hits[index++] = null; // let the hit be collected once it has been consumed
+            return toEntity(hit);
+        }
+
+        @Override public void remove() { notSupported("remove"); }
+
+        @Override public void close() {
+            if (scrollId == null) return;
+            final String id = scrollId;
+            scrollId = null;
+            try (ESClientReference client = getClient()) {
+                client.get().prepareClearScroll().addScrollId(id).execute().actionGet();
+            } catch (Exception e) {
+                log.warn("close: error clearing scroll: "+e);
             }
         }
     }
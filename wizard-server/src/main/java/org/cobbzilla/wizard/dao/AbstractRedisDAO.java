@@ -63,8 +63,7 @@ public abstract class AbstractRedisDAO<E extends ExpirableBase> implements DAO<E
 
     @Override public E update(@Valid E entity) {
         if (entity.shouldExpire()) {
-            getRedis().set(entity.getUuid(), toJsonOrDie(entity), "XX", "EX", entity.getExpirationSeconds());
-            getRedis().set(entity.getUuid(), toJsonOrDie(entity), "NX", "EX", entity.getExpirationSeconds());
+            getRedis().set(entity.getUuid(), toJsonOrDie(entity), "EX", entity.getExpirationSeconds());
         } else {
             getRedis().set(entity.getUuid(), toJsonOrDie(entity));
         }
@@ -1,8 +1,13 @@
 package org.cobbzilla.wizard.dao;
 
+import lombok.Getter;
+import org.cobbzilla.util.io.FileUtil;
 import org.cobbzilla.wizard.model.AuditLog;
+import org.hibernate.cfg.ImprovedNamingStrategy;
 
 import javax.validation.Valid;
+import java.io.File;
+import java.util.List;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
@@ -10,6 +15,24 @@ public abstract class AuditLogDAO<E extends AuditLog> extends AbstractCRUDDAO<E>
 
     public abstract String getEncryptionKey ();
 
+    /**
+     * SYNC: audit logs are encrypted and written by the caller, within its transaction (the default).
+     * ASYNC and OUTBOX: the caller only captures the log; an AuditLogWriter encrypts and writes it later.
+     * See AuditLogWriter for what each mode guarantees.
+     */
+    public enum WriteMode { SYNC, ASYNC, OUTBOX }
+
+    // subclasses may override these
+    public WriteMode getWriteMode() { return WriteMode.SYNC; }
+    public int getWriterQueueSize() { return 10_000; }
+    public int getWriterBatchSize() { return getBatchSize(); }
+    public File getSpillFile() { return new File(FileUtil.getDefaultTempDir(), getClass().getSimpleName()+"-spill.ndjson"); }
+    public String getOutboxTable() { return ImprovedNamingStrategy.INSTANCE.classToTableName(getEntityClass().getName())+"_outbox"; }
+
+    public boolean isAsync() { return getWriteMode() != WriteMode.SYNC; }
+
+    @Getter(lazy=true) private final AuditLogWriter writer = new AuditLogWriter(this);
+
     @Override public Object preCreate(@Valid E entity) {
         entity = prepare(entity);
         return super.preCreate(entity);
@@ -20,6 +43,16 @@ public abstract class AuditLogDAO<E extends AuditLog> extends AbstractCRUDDAO<E>
         return super.preUpdate(entity);
     }
 
+    @Override public Object preCreateBatch(List<E> batch) {
+        for (E entity : batch) prepare(entity);
+        return super.preCreateBatch(batch);
+    }
+
+    @Override public Object preUpdateBatch(List<E> batch) {
+        for (E entity : batch) prepare(entity);
+        return super.preUpdateBatch(batch);
+    }
+
     protected E prepare(@Valid E entity) {
         final String key = getEncryptionKey();
         if (empty(key)) {
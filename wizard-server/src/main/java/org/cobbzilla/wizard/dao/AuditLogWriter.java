@@ -0,0 +1,383 @@
+package org.cobbzilla.wizard.dao;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.model.AuditLog;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.json.JsonUtil.FULL_MAPPER;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Writes audit logs for an AuditLogDAO whose write mode is ASYNC or OUTBOX. Callers hand over the plain
+ * (not yet encrypted) log once the audited write has succeeded; a background thread encrypts the logs and
+ * inserts them in batches, each in a single insert with success=true. Logs keep the ctime of the audited
+ * write, not the time they are inserted.
+ *
+ * ASYNC: logs are queued after the caller's transaction commits. When the queue is full, when a batch fails,
+ * and at shutdown, logs are encrypted and appended to the DAO's spill file (created owner-only), which is
+ * replayed when the writer is idle. A crash can still lose whatever was queued.
+ *
+ * OUTBOX: logs are inserted into the DAO's outbox table within the caller's transaction, so they commit or
+ * roll back with the audited write. The writer moves them from the outbox into the audit log table.
+ * Until then the outbox holds the log's states unencrypted. Each batch is claimed with SELECT ... FOR UPDATE
+ * SKIP LOCKED and moved in the same transaction, so the writers of several nodes sharing the outbox each
+ * move different rows (this needs PostgreSQL 9.5 or later).
+ */
+@Slf4j
+public class AuditLogWriter {
+
+    public static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    public static final long ERROR_BACKOFF = TimeUnit.SECONDS.toMillis(10);
+
+    public static final String REPLAY_SUFFIX = ".replay";
+    public static final String REJECTED_SUFFIX = ".rejected";
+
+    // the ctime property is @JsonIgnore'd and its setter is a noop, so it is carried alongside the log
+    private static final String CTIME = "ctime";
+
+    private final AuditLogDAO dao;
+    private final AuditLogDAO.WriteMode mode;
+    private final int batchSize;
+    private final BlockingQueue<AuditLog> queue;
+    private final Semaphore outboxReady = new Semaphore(0);
+    private final File spillFile;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    public AuditLogWriter(AuditLogDAO dao) {
+        this.dao = dao;
+        this.mode = dao.getWriteMode();
+        if (mode == AuditLogDAO.WriteMode.SYNC) die("AuditLogWriter: "+dao.getClass().getSimpleName()+" writes synchronously");
+        this.batchSize = Math.max(dao.getWriterBatchSize(), 1);
+        this.queue = new ArrayBlockingQueue<>(Math.max(dao.getWriterQueueSize(), 1));
+        this.spillFile = dao.getSpillFile();
+
+        if (mode == AuditLogDAO.WriteMode.OUTBOX) createOutbox();
+
+        thread = new Thread(new Runnable() { @Override public void run() { writeLoop(); } },
+                            getClass().getSimpleName()+"-"+dao.getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() { @Override public void run() { stop(); } }));
+    }
+
+    /**
+     * Hand over an audit log for a write that has succeeded (or will, when the current transaction commits).
+     * The log is assigned its uuid here, but is not yet encrypted.
+     */
+    public void submit(final AuditLog auditLog) {
+        if (auditLog.getUuid() == null) auditLog.beforeCreate();
+        auditLog.setSuccess(true);
+        switch (mode) {
+            case OUTBOX:
+                writeOutbox(auditLog);
+                if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                        @Override public void afterCommit() { outboxReady.release(); }
+                    });
+                }
+                return;
+
+            case ASYNC:
+                if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                        @Override public void afterCommit() { enqueue(auditLog); }
+                    });
+                } else {
+                    enqueue(auditLog);
+                }
+                return;
+
+            default: die("submit: invalid mode: "+mode);
+        }
+    }
+
+    public int getQueued() { return queue.size(); }
+
+    /** stop the writer thread, spilling anything still queued */
+    public void stop() {
+        if (stopped) return;
+        stopped = true;
+        thread.interrupt();
+        final List<AuditLog> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) spill(prepare(remaining));
+    }
+
+    private void enqueue(AuditLog auditLog) {
+        if (stopped || !queue.offer(auditLog)) spill(prepare(Collections.singletonList(auditLog)));
+    }
+
+    private void writeLoop() {
+        while (!stopped) {
+            try {
+                if (mode == AuditLogDAO.WriteMode.OUTBOX) {
+                    if (drainOutbox() == 0) outboxReady.tryAcquire(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    outboxReady.drainPermits();
+                    continue;
+                }
+                final AuditLog first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!replaySpill()) sleep(ERROR_BACKOFF, "writeLoop: backing off after replay error");
+                    continue;
+                }
+                final List<AuditLog> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                final List<AuditLog> prepared = prepare(batch);
+                try {
+                    insert(prepared, false);
+                } catch (Exception e) {
+                    log.error("writeLoop: error writing "+batch.size()+" audit logs, spilling to "+spillFile+": "+e, e);
+                    spill(prepared);
+                    sleep(ERROR_BACKOFF, "writeLoop: backing off after error");
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("writeLoop: "+e, e);
+                if (!stopped) sleep(ERROR_BACKOFF, "writeLoop: backing off after error");
+            }
+        }
+    }
+
+    // encrypted copies of plain audit logs, with the same uuid and ctime
+    private List<AuditLog> prepare(List<AuditLog> auditLogs) {
+        final List<AuditLog> prepared = new ArrayList<>(auditLogs.size());
+        for (AuditLog auditLog : auditLogs) prepared.add(dao.prepare(fromLine(toLine(auditLog))));
+        return prepared;
+    }
+
+    /**
+     * Insert prepared (encrypted) audit logs in one transaction.
+     * @param skipExisting when true, logs whose uuid is already in the audit log table are not inserted again
+     * @return the number of logs inserted
+     */
+    private int insert(List<AuditLog> prepared, boolean skipExisting) {
+        final Session session = dao.getHibernateTemplate().getSessionFactory().openSession();
+        try {
+            final Transaction tx = session.beginTransaction();
+            try {
+                final int count = save(session, prepared, skipExisting);
+                session.flush();
+                tx.commit();
+                return count;
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private int save(Session session, List<AuditLog> prepared, boolean skipExisting) {
+        final Set<String> existing = skipExisting ? existingUuids(session, prepared) : Collections.<String>emptySet();
+        int count = 0;
+        for (AuditLog auditLog : prepared) {
+            if (existing.contains(auditLog.getUuid())) continue;
+            session.save(auditLog);
+            count++;
+        }
+        return count;
+    }
+
+    private Set<String> existingUuids(Session session, List<AuditLog> auditLogs) {
+        final List<String> uuids = new ArrayList<>(auditLogs.size());
+        for (AuditLog auditLog : auditLogs) uuids.add(auditLog.getUuid());
+        final List found = session.createQuery("select x.uuid from " + dao.getEntityClass().getName() + " x where x.uuid in (:uuids)")
+                .setParameterList("uuids", uuids)
+                .list();
+        return new HashSet<String>(found);
+    }
+
+    private void createOutbox() {
+        final Session session = dao.getHibernateTemplate().getSessionFactory().openSession();
+        try {
+            final Transaction tx = session.beginTransaction();
+            session.createSQLQuery("CREATE TABLE IF NOT EXISTS " + dao.getOutboxTable()
+                    + " (uuid varchar(100) PRIMARY KEY, ctime bigint NOT NULL, record text NOT NULL)").executeUpdate();
+            tx.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    // runs in the caller's session and transaction
+    private void writeOutbox(AuditLog auditLog) {
+        dao.getHibernateTemplate().getSessionFactory().getCurrentSession()
+                .createSQLQuery("INSERT INTO " + dao.getOutboxTable() + " (uuid, ctime, record) VALUES (:uuid, :ctime, :record)")
+                .setParameter("uuid", auditLog.getUuid())
+                .setParameter("ctime", auditLog.getCtime())
+                .setParameter("record", toLine(auditLog))
+                .executeUpdate();
+    }
+
+    /**
+     * Move a batch from the outbox: claim the rows, insert their logs and delete them, in one transaction.
+     * Rows claimed by another writer are skipped, and stay locked until that writer has deleted them.
+     * @return the number of audit logs moved from the outbox
+     */
+    private int drainOutbox() {
+        final Session session = dao.getHibernateTemplate().getSessionFactory().openSession();
+        try {
+            final Transaction tx = session.beginTransaction();
+            try {
+                final List rows = session.createSQLQuery("SELECT uuid, ctime, record FROM " + dao.getOutboxTable()
+                        + " ORDER BY ctime LIMIT " + batchSize + " FOR UPDATE SKIP LOCKED").list();
+                if (rows.isEmpty()) {
+                    tx.commit();
+                    return 0;
+                }
+                final List<AuditLog> batch = new ArrayList<>(rows.size());
+                final List<String> uuids = new ArrayList<>(rows.size());
+                for (Object row : rows) {
+                    final Object[] cols = (Object[]) row;
+                    uuids.add(cols[0].toString());
+                    batch.add(fromLine(cols[2].toString()).restoreCtime(((Number) cols[1]).longValue()));
+                }
+                save(session, prepare(batch), false);
+                session.createSQLQuery("DELETE FROM " + dao.getOutboxTable() + " WHERE uuid IN (:uuids)")
+                        .setParameterList("uuids", uuids)
+                        .executeUpdate();
+                session.flush();
+                tx.commit();
+                return batch.size();
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    // appends prepared (encrypted) audit logs to the spill file
+    private synchronized void spill(List<AuditLog> prepared) {
+        spill(spillFile, prepared);
+    }
+
+    private synchronized void spill(File file, List<AuditLog> prepared) {
+        try {
+            createPrivate(file);
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8cs))) {
+                for (AuditLog auditLog : prepared) w.write(toLine(auditLog) + "\n");
+            }
+        } catch (Exception e) {
+            // nowhere left to put them
+            log.error("spill: error writing "+prepared.size()+" audit logs to "+file+", they are lost: "+e, e);
+        }
+    }
+
+    private void createPrivate(File file) throws IOException {
+        if (file.exists()) return;
+        if (!file.createNewFile()) return; // someone else just created it
+        try {
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            if (!file.setReadable(true, true) || !file.setWritable(true, true)) die("createPrivate: error setting permissions on "+file);
+        }
+    }
+
+    /**
+     * Re-insert spilled logs. A replay file left behind by an earlier run is resumed first. Logs that were
+     * already inserted (from a replay that died before it finished) are skipped. A batch that fails is retried
+     * one log at a time: if some succeed, the ones that fail are moved to the rejected file; if none succeed
+     * (the database is likely down) they all go back to the spill file.
+     * @return false if any log had to be spilled again
+     */
+    private boolean replaySpill() {
+        final File replay = new File(spillFile.getAbsolutePath() + REPLAY_SUFFIX);
+        synchronized (this) {
+            if (!replay.exists() && (!spillFile.exists() || !spillFile.renameTo(replay))) return true;
+        }
+        final List<AuditLog> failed = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(replay), UTF8cs))) {
+            final List<AuditLog> batch = new ArrayList<>(batchSize);
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                try {
+                    batch.add(fromLine(line));
+                } catch (Exception e) {
+                    log.error("replaySpill: unreadable line in "+replay+", skipping it: "+e);
+                    continue;
+                }
+                if (batch.size() >= batchSize) replayBatch(batch, failed);
+            }
+            replayBatch(batch, failed);
+        } catch (Exception e) {
+            log.error("replaySpill: error reading "+replay+", leaving it in place: "+e, e);
+            return false;
+        }
+        if (!failed.isEmpty()) spill(failed);
+        if (!replay.delete()) log.warn("replaySpill: error deleting "+replay);
+        return failed.isEmpty();
+    }
+
+    private void replayBatch(List<AuditLog> batch, List<AuditLog> failed) {
+        if (batch.isEmpty()) return;
+        try {
+            insert(batch, true);
+        } catch (Exception e) {
+            log.error("replaySpill: error writing "+batch.size()+" audit logs, retrying one at a time: "+e);
+            final List<AuditLog> rejected = new ArrayList<>();
+            boolean anyWritten = false;
+            for (AuditLog auditLog : batch) {
+                try {
+                    insert(Collections.singletonList(auditLog), true);
+                    anyWritten = true;
+                } catch (Exception e2) {
+                    log.error("replaySpill: error writing audit log "+auditLog.getUuid()+": "+e2);
+                    rejected.add(auditLog);
+                }
+            }
+            if (!rejected.isEmpty()) {
+                if (anyWritten) {
+                    final File rejectFile = new File(spillFile.getAbsolutePath() + REJECTED_SUFFIX);
+                    log.error("replaySpill: moving "+rejected.size()+" audit logs that cannot be written to "+rejectFile);
+                    spill(rejectFile, rejected);
+                } else {
+                    failed.addAll(rejected);
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    // a spill or outbox line is the log's JSON, plus its ctime
+    private String toLine(AuditLog auditLog) {
+        final ObjectNode node = FULL_MAPPER.valueToTree(auditLog);
+        node.put(CTIME, auditLog.getCtime());
+        return node.toString();
+    }
+
+    private AuditLog fromLine(String line) {
+        try {
+            final JsonNode node = FULL_MAPPER.readTree(line);
+            if (!node.has(CTIME)) die("fromLine: no "+CTIME);
+            return ((AuditLog) FULL_MAPPER.treeToValue(node, dao.getEntityClass())).restoreCtime(node.get(CTIME).asLong());
+        } catch (Exception e) {
+            return die("fromLine: "+e, e);
+        }
+    }
+
+}
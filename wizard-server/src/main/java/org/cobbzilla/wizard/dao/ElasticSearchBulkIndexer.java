@@ -0,0 +1,169 @@
+package org.cobbzilla.wizard.dao;
+
+import com.google.common.util.concurrent.SettableFuture;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Buffers index/update/delete requests and sends them with the bulk API. A bulk request is sent when
+ * bulkActions requests or bulkBytes bytes are buffered, or flushMillis after the first buffered request.
+ * At most concurrentRequests bulk requests are in flight; once they are, add blocks the caller until one
+ * completes, which bounds memory and pushes back on producers.
+ *
+ * Items that fail (individually or because their whole bulk request failed) are re-sent with exponential
+ * backoff, up to maxRetries times. Each item's Future completes when it has been indexed or has finally failed.
+ */
+@Slf4j
+public class ElasticSearchBulkIndexer implements BulkProcessor.Listener, Closeable {
+
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ElasticSearchBulkIndexer-retry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final long DRAIN_CHECK_INTERVAL = 50;
+
+    @Getter private final String name;
+    private final BulkProcessor processor;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+
+    private final Map<ActionRequest, PendingItem> pending = Collections.synchronizedMap(new IdentityHashMap<ActionRequest, PendingItem>());
+
+    @Getter private final AtomicLong indexed = new AtomicLong();
+    @Getter private final AtomicLong retried = new AtomicLong();
+    @Getter private final AtomicLong failed = new AtomicLong();
+
+    public ElasticSearchBulkIndexer(String name, Client client,
+                                    int bulkActions, long bulkBytes, long flushMillis,
+                                    int concurrentRequests, int maxRetries, long retryDelayMillis) {
+        this.name = name;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        this.processor = BulkProcessor.builder(client, this)
+                .setName(name)
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkBytes))
+                .setFlushInterval(flushMillis > 0 ? TimeValue.timeValueMillis(flushMillis) : null)
+                .setConcurrentRequests(concurrentRequests)
+                .build();
+    }
+
+    public Future<Boolean> add(ActionRequest request) {
+        final PendingItem item = new PendingItem();
+        pending.put(request, item);
+        try {
+            processor.add(request);
+        } catch (RuntimeException e) {
+            pending.remove(request);
+            throw e;
+        }
+        return item.future;
+    }
+
+    public int getPendingCount() { return pending.size(); }
+
+    public void flush() { processor.flush(); }
+
+    /**
+     * Flush and wait for every added request, including retries, to be indexed or finally fail.
+     * @return true if nothing is pending, false if the timeout elapsed first
+     */
+    public boolean drain(long timeoutMillis) {
+        final long deadline = now() + timeoutMillis;
+        while (!pending.isEmpty() && now() < deadline) {
+            processor.flush();
+            sleep(DRAIN_CHECK_INTERVAL, "drain");
+        }
+        return pending.isEmpty();
+    }
+
+    @Override public void close() {
+        try {
+            if (!processor.awaitClose(1, TimeUnit.MINUTES)) log.warn("close("+name+"): timed out waiting for bulk requests");
+        } catch (InterruptedException e) {
+            log.warn("close("+name+"): interrupted");
+        }
+        synchronized (pending) {
+            for (PendingItem item : pending.values()) item.future.setException(new IllegalStateException("close: indexer closed"));
+            pending.clear();
+        }
+    }
+
+    @Override public void beforeBulk(long executionId, BulkRequest request) {}
+
+    @Override public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+        final List<ActionRequest> requests = request.requests();
+        final BulkItemResponse[] items = response.getItems();
+        for (int i=0; i<items.length; i++) {
+            final ActionRequest itemRequest = requests.get(i);
+            if (items[i].isFailed()) {
+                retryOrFail(itemRequest, items[i].getFailureMessage());
+            } else {
+                final PendingItem item = pending.remove(itemRequest);
+                indexed.incrementAndGet();
+                if (item != null) item.future.set(true);
+            }
+        }
+    }
+
+    @Override public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+        log.warn("afterBulk("+name+"): bulk request of "+request.numberOfActions()+" failed: "+failure);
+        for (ActionRequest itemRequest : request.requests()) retryOrFail(itemRequest, failure.toString());
+    }
+
+    private void retryOrFail(final ActionRequest request, String error) {
+        final PendingItem item = pending.get(request);
+        if (item == null) return;
+        final int attempt = ++item.attempts;
+        if (attempt > maxRetries) {
+            pending.remove(request);
+            failed.incrementAndGet();
+            log.error("retryOrFail("+name+"): giving up after "+maxRetries+" retries: "+error);
+            item.future.setException(new IllegalStateException("index failed: "+error));
+            return;
+        }
+        retried.incrementAndGet();
+        // re-add from the timer thread: adding from a bulk callback could block on the processor's in-flight limit
+        RETRY_TIMER.schedule(new Runnable() {
+            @Override public void run() {
+                try {
+                    processor.add(request);
+                } catch (Exception e) {
+                    if (pending.remove(request) != null) {
+                        failed.incrementAndGet();
+                        item.future.setException(e);
+                    }
+                }
+            }
+        }, retryDelayMillis * (1L << Math.min(attempt-1, 10)), TimeUnit.MILLISECONDS);
+    }
+
+    private static class PendingItem {
+        final SettableFuture<Boolean> future = SettableFuture.create();
+        volatile int attempts = 0;
+    }
+
+}
@@ -0,0 +1,7 @@
+package org.cobbzilla.wizard.dao;
+
+public interface EntityHandler<E> {
+
+    public void handle (E entity);
+
+}
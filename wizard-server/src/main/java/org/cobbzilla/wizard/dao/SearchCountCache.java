@@ -0,0 +1,52 @@
+package org.cobbzilla.wizard.dao;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AllArgsConstructor;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.security.ShaUtil.sha256_hex;
+
+/**
+ * Search totals for the CACHED count strategy, keyed by a hash of the count query and its parameters.
+ * Each entry expires after the ttl it was stored with.
+ */
+public class SearchCountCache {
+
+    public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(1);
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final Cache<String, CachedCount> cache;
+
+    public SearchCountCache() { this(DEFAULT_MAX_SIZE); }
+
+    public SearchCountCache(int maxSize) { cache = CacheBuilder.newBuilder().maximumSize(maxSize).build(); }
+
+    public static String key(String countQuery, Object[] args) {
+        return sha256_hex(countQuery + "\n" + Arrays.deepToString(args));
+    }
+
+    public Integer get(String key) {
+        final CachedCount cached = cache.getIfPresent(key);
+        if (cached == null) return null;
+        if (cached.expires < now()) {
+            cache.invalidate(key);
+            return null;
+        }
+        return cached.count;
+    }
+
+    public void put(String key, int count, long ttl) { cache.put(key, new CachedCount(count, now() + ttl)); }
+
+    public void clear() { cache.invalidateAll(); }
+
+    @AllArgsConstructor
+    private static class CachedCount {
+        private final int count;
+        private final long expires;
+    }
+
+}
@@ -2,7 +2,6 @@ package org.cobbzilla.wizard.dao;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JavaType;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -19,7 +18,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
-@NoArgsConstructor @AllArgsConstructor @Accessors(chain=true)
+@NoArgsConstructor @Accessors(chain=true)
 public class SearchResults<E> implements Scrubbable {
 
     public static final ScrubbableField[] SCRUBBABLE_FIELDS = new ScrubbableField[]{
@@ -40,6 +39,10 @@ public class SearchResults<E> implements Scrubbable {
     @Getter @Setter private List<E> results = new ArrayList<>();
     @Getter @Setter private Integer totalCount;
 
+    // pass this as the ResultPage cursor to get the next page; null on the last page
+    @Getter @Setter private String nextCursor;
+    @JsonIgnore public boolean hasNextCursor() { return nextCursor != null; }
+
     @JsonIgnore public int total() {
         if (totalCount == null) die("total is unknown");
         return totalCount;
@@ -52,6 +55,11 @@ public class SearchResults<E> implements Scrubbable {
 
     public SearchResults(List<E> results) { this.results = results; }
 
+    public SearchResults(List<E> results, Integer totalCount) {
+        this.results = results;
+        this.totalCount = totalCount;
+    }
+
     public E getResult(int i) {
         return (i < 0 || i > results.size()-1) ? null : results.get(i);
     }
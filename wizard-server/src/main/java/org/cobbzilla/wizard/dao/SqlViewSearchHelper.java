@@ -1,31 +1,49 @@
 package org.cobbzilla.wizard.dao;
 
+import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.util.jdbc.ResultSetBean;
-import org.cobbzilla.util.reflect.ReflectionUtil;
+import org.cobbzilla.wizard.dao.sql.SQLRowHandler;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.cobbzilla.wizard.model.ResultPage;
+import org.cobbzilla.wizard.model.ResultPage.CountStrategy;
 import org.cobbzilla.wizard.model.SqlViewField;
 import org.cobbzilla.wizard.model.SqlViewSearchResult;
 import org.cobbzilla.wizard.server.config.RestServerConfiguration;
+import org.cobbzilla.wizard.util.PropertyAccessors;
 import org.jasypt.hibernate4.encryptor.HibernatePBEStringEncryptor;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
 import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
 
 @Slf4j
 public class SqlViewSearchHelper {
 
+    public static final String UUID_COLUMN = "uuid";
+
+    // the sort expression is also selected under this alias, so the next cursor can be read back from the row
+    public static final String SORT_ALIAS = "search_sort_value";
+
+    // for DAOs that are not AbstractDAOs, which have their own count cache and ttl
+    private static final SearchCountCache countCache = new SearchCountCache();
+
     public static <E extends Identifiable, R extends SqlViewSearchResult>
     SearchResults<E> search(SqlViewSearchableDAO<E> dao,
                             ResultPage resultPage,
-                            Class<R> resultClass,
-                            SqlViewField[] fields,
-                            HibernatePBEStringEncryptor hibernateEncryptor,
+                            final Class<R> resultClass,
+                            final SqlViewField[] fields,
+                            final HibernatePBEStringEncryptor hibernateEncryptor,
                             RestServerConfiguration configuration) {
 
         final StringBuilder sql = new StringBuilder("from " + dao.getSearchView() + " where 1=1 ");
@@ -40,32 +58,103 @@ public class SqlViewSearchHelper {
             }
         }
 
+        final String filtered = sql.toString();
+        final String count = "select count(*) " + filtered;
+        final Object[] countArgs = params.toArray();
+
+        // keyset pagination needs a known sort column, with uuid as a tie-breaker
         final String sort;
+        final String sortColumn;
         if (resultPage.getHasSortField()) {
-            sort = dao.getSortField(resultPage.getSortField()) + " " + resultPage.getSortOrder();
+            sortColumn = dao.getSortField(resultPage.getSortField());
+            sort = sortColumn + " " + resultPage.getSortOrder() + ", " + UUID_COLUMN + " " + resultPage.getSortOrder();
+            if (resultPage.getHasCursor()) {
+                final String cmp = resultPage.getSortType().isAscending() ? ">" : "<";
+                sql.append(" AND (").append(sortColumn).append(", ").append(UUID_COLUMN).append(") ").append(cmp).append(" (?, ?) ");
+                params.add(resultPage.getCursorSortValue());
+                params.add(resultPage.getCursorUuid());
+            }
         } else {
+            if (resultPage.getHasCursor()) notSupported("search: cursor requires a sort field");
+            sortColumn = null;
             sort = dao.getDefaultSort();
         }
-        final String count = "select count(*) " + sql.toString();
-        final String query = "select * " + sql.toString()
+        final String query = "select *" + (sortColumn == null ? "" : ", " + sortColumn + " AS " + SORT_ALIAS) + " " + sql.toString()
                 + " ORDER BY " + sort
                 + " LIMIT " + resultPage.getPageSize()
                 + " OFFSET " + resultPage.getPageOffset();
 
         Integer totalCount = null;
         final List<E> things = new ArrayList<>();
+        final Object[] lastKey = new Object[2];
         try {
             final Object[] args = params.toArray();
-            totalCount = configuration.execSql(count, args).count();
-            final ResultSetBean rs = configuration.execSql(query, args);
-            for (Map<String, Object> row : rs.getRows()) {
-                things.add((E) populate(instantiate(resultClass), row, fields, hibernateEncryptor));
-            }
+            // both queries share one pooled connection, and page rows are populated as they are read
+            @Cleanup final Connection conn = configuration.getConnection();
+            totalCount = count(dao, configuration, conn, resultPage.countStrategy(CountStrategy.EXACT), count, "select * " + filtered, countArgs);
+            configuration.streamSql(conn, query, args, new SQLRowHandler() {
+                private String[] columns;
+                @Override public void row(ResultSet rs) throws SQLException {
+                    if (columns == null) {
+                        final ResultSetMetaData metaData = rs.getMetaData();
+                        columns = new String[metaData.getColumnCount()];
+                        for (int i=0; i<columns.length; i++) columns[i] = metaData.getColumnName(i+1);
+                    }
+                    final Map<String, Object> row = new HashMap<>(columns.length * 2);
+                    for (int i=0; i<columns.length; i++) row.put(columns[i], rs.getObject(i+1));
+                    things.add((E) populate(instantiate(resultClass), row, fields, hibernateEncryptor));
+                    if (sortColumn != null) {
+                        lastKey[0] = row.get(SORT_ALIAS);
+                        lastKey[1] = row.get(UUID_COLUMN);
+                    }
+                }
+            });
         } catch (Exception e) {
             log.warn("error determining total count: "+e);
         }
 
-        return new SearchResults<>(things, totalCount);
+        final SearchResults<E> results = new SearchResults<>(things, totalCount);
+        if (things.size() == resultPage.getPageSize() && lastKey[1] instanceof String
+                && (lastKey[0] instanceof String || lastKey[0] instanceof Long || lastKey[0] instanceof Integer)) {
+            results.setNextCursor(ResultPage.cursor(lastKey[0], (String) lastKey[1]));
+        }
+        return results;
+    }
+
+    private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+
+    private static Integer count(SqlViewSearchableDAO dao,
+                                 RestServerConfiguration configuration,
+                                 Connection conn,
+                                 CountStrategy strategy,
+                                 String countSql,
+                                 String selectSql,
+                                 Object[] args) throws SQLException {
+        switch (strategy) {
+            case NONE: return null;
+            case ESTIMATE:
+                // the planner's row estimate for the top-level plan node
+                final Integer[] estimate = new Integer[1];
+                configuration.streamSql(conn, "EXPLAIN " + selectSql, args, new SQLRowHandler() {
+                    @Override public void row(ResultSet rs) throws SQLException {
+                        if (estimate[0] != null) return;
+                        final Matcher m = PLAN_ROWS.matcher(rs.getString(1));
+                        if (m.find()) estimate[0] = (int) Math.min(Long.parseLong(m.group(1)), Integer.MAX_VALUE);
+                    }
+                });
+                if (estimate[0] != null) return estimate[0];
+            case CACHED:
+                final SearchCountCache cache = dao instanceof AbstractDAO ? ((AbstractDAO) dao).getCountCache() : countCache;
+                final long ttl = dao instanceof AbstractDAO ? ((AbstractDAO) dao).getCountCacheTtl() : SearchCountCache.DEFAULT_TTL;
+                final String key = SearchCountCache.key(countSql, args);
+                Integer count = cache.get(key);
+                if (count == null) {
+                    count = configuration.execSql(conn, countSql, args).count();
+                    cache.put(key, count, ttl);
+                }
+                return count;
+            default: return configuration.execSql(conn, countSql, args).count();
+        }
     }
 
     public static <T extends SqlViewSearchResult> T populate(T thing,
@@ -83,7 +172,7 @@ public class SqlViewSearchHelper {
             if (field.hasSetter()) {
                 field.getSetter().set(target, field.getEntityProperty(), value);
             } else {
-                ReflectionUtil.set(target, field.getEntityProperty(), value);
+                PropertyAccessors.set(target, field.getEntityProperty(), value);
             }
         }
         return thing;
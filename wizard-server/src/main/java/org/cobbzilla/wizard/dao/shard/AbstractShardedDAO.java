@@ -3,9 +3,9 @@ package org.cobbzilla.wizard.dao.shard;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.collection.SingletonList;
-import org.cobbzilla.util.collection.mappy.MappyList;
 import org.cobbzilla.util.reflect.ReflectionUtil;
 import org.cobbzilla.wizard.cache.redis.HasRedisConfiguration;
+import org.cobbzilla.wizard.cache.redis.RedisBatch;
 import org.cobbzilla.wizard.cache.redis.RedisService;
 import org.cobbzilla.wizard.dao.DAO;
 import org.cobbzilla.wizard.dao.SearchResults;
@@ -13,6 +13,9 @@ import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableFindByUnique2FieldFind
 import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableFindByUnique3FieldFinder;
 import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableIdentityFinder;
 import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableUniqueFieldFinder;
+import org.cobbzilla.wizard.dao.shard.cache.ShardNearCache;
+import org.cobbzilla.wizard.dao.shard.cache.ShardNegativeCache;
+import org.cobbzilla.wizard.dao.shard.cache.SingleFlight;
 import org.cobbzilla.wizard.dao.shard.task.*;
 import org.cobbzilla.wizard.model.ResultPage;
 import org.cobbzilla.wizard.model.shard.ShardIO;
@@ -37,9 +40,11 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.*;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
 import static org.cobbzilla.util.reflect.ReflectionUtil.*;
-import static org.cobbzilla.util.security.ShaUtil.sha256_hex;
 import static org.cobbzilla.wizard.resources.ResourceUtil.timeoutEx;
+import static org.cobbzilla.wizard.resources.ResourceUtil.unavailableEx;
 import static org.cobbzilla.util.daemon.Await.awaitAndCollect;
 import static org.cobbzilla.util.daemon.Await.awaitFirst;
 import static org.cobbzilla.wizard.util.SpringUtil.autowire;
@@ -61,6 +66,30 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     @Getter(lazy=true) private final RedisService shardCache = initShardCache();
     private RedisService initShardCache() { return redisService.prefixNamespace("shard-cache-"+getEntityClass().getName()); }
 
+    @Getter(lazy=true) private final ShardNearCache<E> nearCache = initNearCache();
+    private ShardNearCache<E> initNearCache() {
+        final ShardSetConfiguration config = getShardConfiguration();
+        return new ShardNearCache<>(getShardCache(), config.getNearCacheSize(), config.getNearCacheSeconds());
+    }
+
+    @Getter(lazy=true) private final ShardNegativeCache negativeCache = initNegativeCache();
+    private ShardNegativeCache initNegativeCache() {
+        final ShardSetConfiguration config = getShardConfiguration();
+        return new ShardNegativeCache(getShardCache(), config.getNegativeCacheSize(), config.getNegativeCacheFalsePositiveRate(),
+                                      TimeUnit.SECONDS.toMillis(getCacheTimeoutSeconds()));
+    }
+
+    // concurrent cache misses for the same key share a single load
+    @Getter private final SingleFlight<E> cacheLoads = new SingleFlight<>();
+
+    // moving average of cache load times, used to decide when to refresh cached entries early
+    private static final double CACHE_LOAD_EWMA_WEIGHT = 0.1;
+    private volatile double cacheLoadMillis = 0;
+    public double getCacheLoadMillis () { return cacheLoadMillis; }
+    public void recordCacheLoad (long millis) {
+        cacheLoadMillis = cacheLoadMillis == 0 ? millis : cacheLoadMillis + CACHE_LOAD_EWMA_WEIGHT * (millis - cacheLoadMillis);
+    }
+
     @Getter private final Class<E> entityClass;
     @Getter private final Class<D> singleShardDaoClass;
     @Getter private final String hashOn;
@@ -77,11 +106,81 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     public long getShardQueryTimeout (String method) { return DEFAULT_SHARD_QUERY_TIMEOUT; }
     public long getShardSearchTimeout () { return getShardQueryTimeout("search"); }
 
-    public static final int DEFAULT_MAX_QUERY_THREADS = 100;
-    protected int getMaxQueryThreads () { return DEFAULT_MAX_QUERY_THREADS; }
+    // each shard gets its own bounded executor, so a slow shard cannot stall queries to the others
+    public static final int DEFAULT_MAX_QUERY_THREADS_PER_SHARD = 20;
+    protected int getMaxQueryThreadsPerShard () { return DEFAULT_MAX_QUERY_THREADS_PER_SHARD; }
+
+    public static final int DEFAULT_MAX_QUERY_QUEUE_PER_SHARD = 200;
+    protected int getMaxQueryQueuePerShard () { return DEFAULT_MAX_QUERY_QUEUE_PER_SHARD; }
+
+    // when a replica is slower than its p99, send the same query to another replica of the same range
+    protected boolean isHedgingEnabled () { return true; }
 
-    private final BlockingQueue<Runnable> queryWorkerQueue = new LinkedBlockingQueue<>();
-    private final ThreadPoolExecutor queryWorkerPool = new ThreadPoolExecutor(getMaxQueryThreads()/2, getMaxQueryThreads(), 10, TimeUnit.MINUTES, queryWorkerQueue);
+    public static final int DEFAULT_HEDGE_MIN_SAMPLES = 100;
+    protected int getHedgeMinSamples () { return DEFAULT_HEDGE_MIN_SAMPLES; }
+
+    private final Map<ShardMap, ShardQueryExecutor> queryExecutors = new ConcurrentHashMap<>();
+
+    protected ShardQueryExecutor getQueryExecutor(ShardMap shard) {
+        ShardQueryExecutor executor = queryExecutors.get(shard);
+        if (executor == null) {
+            synchronized (queryExecutors) {
+                executor = queryExecutors.get(shard);
+                if (executor == null) {
+                    executor = new ShardQueryExecutor(shard, getMaxQueryThreadsPerShard(), getMaxQueryQueuePerShard());
+                    queryExecutors.put(shard, executor);
+                }
+            }
+        }
+        return executor;
+    }
+
+    private void cleanQueryExecutors() {
+        final List<ShardMap> current = getAllShards();
+        for (Iterator<Map.Entry<ShardMap, ShardQueryExecutor>> iter = queryExecutors.entrySet().iterator(); iter.hasNext(); ) {
+            final Map.Entry<ShardMap, ShardQueryExecutor> entry = iter.next();
+            if (!entry.getKey().isDefaultShard() && !current.contains(entry.getKey())) {
+                entry.getValue().shutdown();
+                iter.remove();
+            }
+        }
+    }
+
+    protected Future submit(D dao, Callable task) {
+        try {
+            return getQueryExecutor(dao.getShard()).submit(task);
+        } catch (RejectedExecutionException e) {
+            throw unavailableEx();
+        }
+    }
+
+    protected Future submit(ShardTaskFactory factory, ShardReadTarget<E, D> target) {
+        return submit(target.getPrimary(), newTask(factory, target.getPrimary(), target));
+    }
+
+    protected Future submitHedged(ShardTaskFactory factory, ShardReadTarget<E, D> target) {
+        final List<D> replicas = target.getReplicas();
+        final List<ShardQueryExecutor> executors = new ArrayList<>();
+        final List<Callable> tasks = new ArrayList<>();
+        for (D dao : isHedgingEnabled() ? replicas : replicas.subList(0, 1)) {
+            executors.add(getQueryExecutor(dao.getShard()));
+            tasks.add(newTask(factory, dao, target));
+        }
+        return new ShardHedgedQuery(executors, tasks, executors.get(0).getHedgeDelay(getHedgeMinSamples())).start();
+    }
+
+    private ShardTask newTask(ShardTaskFactory factory, D dao, ShardReadTarget<E, D> target) {
+        final ShardTask task = factory.newTask(dao);
+        task.setOwnerFilter(target);
+        return task;
+    }
+
+    /** @return latency, throughput and queue statistics for every shard this DAO has queried */
+    public List<ShardQueryStats> getShardQueryStats() {
+        final List<ShardQueryStats> stats = new ArrayList<>();
+        for (ShardQueryExecutor executor : queryExecutors.values()) stats.add(executor.getStats());
+        return stats;
+    }
 
     protected ApplicationContext getApplicationContext(DatabaseConfiguration database) {
 
@@ -176,15 +275,14 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     }
 
     protected int getLogicalShard(Serializable id) {
-        final String hash = sha256_hex(id.toString()).substring(0, 7);
-        Long val;
-        try {
-            val = Long.valueOf(hash, 16);
-        } catch (NumberFormatException e) {
-            log.warn("getLogicalShard: invalid hex value: "+hash+" (returning 0): "+e);
-            return 0;
-        }
-        return (int) (Math.abs(val) % getShardConfiguration().getLogicalShards());
+        final ShardSetConfiguration config = getShardConfiguration();
+        return config.getHash().logicalShard(id.toString(), config.getLogicalShards());
+    }
+
+    /** @return the logical shard the entity belongs on, or -1 if its hashOn field is null */
+    protected int getEntityLogicalShard(E entity) {
+        final Object id = getIdToHash(entity);
+        return id == null ? -1 : getLogicalShard(id.toString());
     }
 
     protected List<D> toDAOs(Collection<ShardMap> shardMaps) {
@@ -193,9 +291,10 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         return list;
     }
 
-    private D toDAO(ShardMap shardMap) {
+    protected D toDAO(ShardMap shardMap) {
         if (now() - daosLastCleaned.get() > DAO_MAP_CLEAN_INTERVAL) {
             cleanDaoMap();
+            cleanQueryExecutors();
             daosLastCleaned.set(now());
         }
         D dao = daos.get(shardMap);
@@ -256,28 +355,46 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
 
     protected Object getIdToHash(E entity) { return ReflectionUtil.get(entity, hashOn); }
 
+    /**
+     * @return one DAO per fan-out query (see getReadTargets). A database may also hold rows it does not answer for,
+     * so rows read through these DAOs must be filtered with the matching ShardReadTarget.
+     */
     @Transactional(readOnly=true)
     public List<D> getNonOverlappingDAOs() {
-        List<ShardMap> shards = getReadShards();
+        final List<D> daos = new ArrayList<>();
+        for (ShardReadTarget<E, D> target : getReadTargets()) daos.add(target.getPrimary());
+        return daos;
+    }
+
+    /**
+     * @return the queries of a fan-out across the shard set: one per group of logical ranges served by the same
+     * databases (see ShardReadPlan), each with every readable replica in random order. The first replica is
+     * queried first; the others are used for hedged requests and fail-over. Each target is also the filter that
+     * drops rows its databases hold but do not answer for.
+     */
+    @Transactional(readOnly=true)
+    public List<ShardReadTarget<E, D>> getReadTargets() {
+        final List<ShardMap> shards = getReadShards();
+        final List<ShardReadTarget<E, D>> targets = new ArrayList<>();
         if (shards.isEmpty()) {
-            shards = new SingletonList<>(getDefaultShardMap());
+            targets.add(new ShardReadTarget<>(this, toDAOs(new SingletonList<>(getDefaultShardMap())), null));
         } else {
-            final MappyList<ShardRange, ShardMap> nonOverlapping = new MappyList<>();
-            for (ShardMap shard : shards) {
-                nonOverlapping.put(shard.getRange(), shard);
-            }
-            shards = new ArrayList<>();
-            for (ShardRange range : nonOverlapping.keySet()) {
-                shards.add(pickRandom(nonOverlapping.getAll(range)));
+            for (ShardReadPlan.Group group : new ShardReadPlan(shards, getShardConfiguration().getLogicalShards()).getGroups()) {
+                final List<ShardMap> maps = new ArrayList<>(group.getMaps());
+                Collections.shuffle(maps);
+                targets.add(new ShardReadTarget<>(this, toDAOs(maps), group));
             }
         }
-        return toDAOs(shards);
+        return targets;
     }
 
     public List<ShardMap> getReadShards()  { return getShardDAO().findReadShards(getShardConfiguration().getName()); }
     public List<ShardMap> getWriteShards() { return getShardDAO().findWriteShards(getShardConfiguration().getName()); }
     public List<ShardMap> getAllShards()   { return getShardDAO().findAllShards(getShardConfiguration().getName()); }
 
+    // moves or copies logical ranges to new shards while the shard set stays online
+    @Getter(lazy=true) private final ShardRebalancer<E, D> rebalancer = new ShardRebalancer<>(this);
+
     @Transactional(readOnly=true) // todo
     @Override public SearchResults<E> search(ResultPage resultPage) { return notSupported(); }
 
@@ -289,11 +406,141 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         return new ShardCacheableIdentityFinder<>(this, getCacheTimeoutSeconds()).get(id.toString(), id);
     }
 
+    /**
+     * Fetch many entities in as few round trips as possible: near cache first, then a single redis mget,
+     * then one IN query per shard (in parallel) for whatever is left. Ids are routed by their own hash, so this
+     * only works when the shard set hashes on uuid; otherwise it falls back to findByFieldIn. Use findByUuids.
+     * @param ids the ids to find
+     * @return the entities found, in the same order as the ids. ids that were not found are omitted.
+     */
+    @Transactional(readOnly=true)
+    protected List<E> getAll(Collection<? extends Serializable> ids) {
+        if (empty(ids)) return new ArrayList<>();
+        if (!hashOn.equals("uuid")) return findByFieldIn("uuid", ids);
+        final String shardSetName = getShardConfiguration().getName();
+        final Map<String, E> found = new HashMap<>();
+
+        final List<String> cacheKeys = new ArrayList<>();
+        final List<String> cacheIds = new ArrayList<>();
+        for (Serializable id : ids) {
+            final String key = shardSetName + ":" + id;
+            final Object near = getNearCache().get(key);
+            if (near == null) {
+                if (getNegativeCache().isKnownAbsent(key)) continue;
+                cacheKeys.add(key);
+                cacheIds.add(id.toString());
+            } else if (near != ShardNearCache.NULL_ENTRY) {
+                found.put(id.toString(), (E) near);
+            }
+        }
+
+        final List<Object> misses = new ArrayList<>();
+        final List<String> cached = getShardCache().mget(cacheKeys);
+        for (int i=0; i<cached.size(); i++) {
+            final String json = cached.get(i);
+            if (json == null) {
+                misses.add(cacheIds.get(i));
+            } else if (!json.equals(NULL_CACHE)) {
+                final E entity = fromJsonOrDie(json, getEntityClass());
+                found.put(cacheIds.get(i), entity);
+                getNearCache().put(cacheKeys.get(i), entity);
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            final List<E> loaded = queryShardsGrouped("uuid", groupByDAO(misses), "getAll");
+            final RedisBatch batch = getShardCache().batch();
+            final long ttl = getCacheTimeoutSeconds();
+            for (E entity : loaded) {
+                final String key = shardSetName + ":" + entity.getUuid();
+                final String json = toJsonOrDie(entity);
+                found.put(entity.getUuid(), entity);
+                batch.set(key, json, "XX", "EX", ttl)
+                     .set(key, json, "NX", "EX", ttl)
+                     .lpush(getCacheRefsKey(entity.getUuid()), key);
+                getNearCache().put(key, entity);
+            }
+            for (Object id : misses) {
+                if (found.containsKey(id.toString())) continue;
+                final String key = shardSetName + ":" + id;
+                if (getNegativeCache().isEnabled()) {
+                    getNegativeCache().markAbsent(key);
+                } else {
+                    batch.set(key, NULL_CACHE, "XX", "EX", ttl)
+                         .set(key, NULL_CACHE, "NX", "EX", ttl)
+                         .lpush(getCacheRefsKey(NULL_CACHE), key);
+                }
+            }
+            batch.exec();
+        }
+
+        final List<E> results = new ArrayList<>(found.size());
+        for (Serializable id : ids) {
+            final E entity = found.get(id.toString());
+            if (entity != null) results.add(entity);
+        }
+        return results;
+    }
+
+    @Transactional(readOnly=true)
+    public List<E> findByUuids(Collection<String> uuids) {
+        return hashOn.equals("uuid") ? getAll(uuids) : findByFieldIn("uuid", uuids);
+    }
+
+    /**
+     * Group values by the DAO they hash to. Values mapping to the same set of shards share one
+     * randomly chosen replica, so each group becomes a single query.
+     */
+    protected Map<D, List<Object>> groupByDAO(Collection<?> values) {
+        final String shardSet = getShardConfiguration().getName();
+        final Map<List<ShardMap>, List<Object>> byShards = new HashMap<>();
+        for (Object value : values) {
+            List<ShardMap> shardMaps = getShardDAO().getShardList(shardSet, getLogicalShard((Serializable) value), ShardIO.read);
+            if (shardMaps.isEmpty()) shardMaps = new SingletonList<>(getDefaultShardMap());
+            List<Object> group = byShards.get(shardMaps);
+            if (group == null) {
+                group = new ArrayList<>();
+                byShards.put(shardMaps, group);
+            }
+            group.add(value);
+        }
+        final Map<D, List<Object>> byDAO = new HashMap<>();
+        for (Map.Entry<List<ShardMap>, List<Object>> entry : byShards.entrySet()) {
+            final D dao = pickRandom(toDAOs(entry.getKey()));
+            final List<Object> group = byDAO.get(dao);
+            if (group == null) {
+                byDAO.put(dao, entry.getValue());
+            } else {
+                group.addAll(entry.getValue());
+            }
+        }
+        return byDAO;
+    }
+
+    protected List<E> queryShardsGrouped(String field, Map<D, List<Object>> valuesByDAO, String ctx) {
+        final Set<ShardTask<E, D, List<E>>> tasks = new ConcurrentSkipListSet<>();
+        try {
+            final List<Future<List>> futures = new ArrayList<>();
+            for (Map.Entry<D, List<Object>> entry : valuesByDAO.entrySet()) {
+                futures.add(submit(entry.getKey(), new ShardFindByFieldInTask<>(entry.getKey(), tasks, field, entry.getValue().toArray())));
+            }
+            try {
+                return awaitAndCollect(futures, Integer.MAX_VALUE, getShardQueryTimeout(ctx));
+            } catch (TimeoutException e) {
+                log.warn("queryShardsGrouped: timed out");
+                throw timeoutEx();
+            }
+
+        } finally {
+            for (ShardTask task : tasks) task.cancel();
+        }
+    }
+
     @Transactional(readOnly=true)
     @Override public List<E> findAll() {
         final List<E> results = new ArrayList<>();
-        for (D dao : getNonOverlappingDAOs()) {
-            results.addAll(dao.findAll());
+        for (ShardReadTarget<E, D> target : getReadTargets()) {
+            results.addAll(target.filter(target.getPrimary().findAll()));
         }
         return results;
     }
@@ -357,11 +604,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     @Override public List<E> findByFieldIn(String field, Object[] values) {
         if (empty(values)) return new ArrayList<>();
         if (hashOn.equals(field)) {
-            final List<E> found = new ArrayList<>();
-            final Set<D> daos = new HashSet<>();
-            for (Object value : values) daos.add(getDAO((Serializable) value));
-            for (D dao : daos) found.addAll(dao.findByFieldIn(field, values));
-            return found;
+            // each shard only gets the values that hash to it
+            return queryShardsGrouped(field, groupByDAO(Arrays.asList(values)), "findByFieldIn");
         }
 
         // have to search all shards for it
@@ -398,8 +642,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         try {
             // Start iterator tasks on all DAOs
             final List<Future<E>> futures = new ArrayList<>();
-            for (D dao : getNonOverlappingDAOs()) {
-                futures.add(queryWorkerPool.submit(factory.newTask(dao)));
+            for (ShardReadTarget<E, D> target : getReadTargets()) {
+                futures.add(submitHedged(factory, target));
             }
 
             // Wait for all iterators to finish (or for enough to finish that the rest get cancelled)
@@ -419,8 +663,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         try {
             // Start iterator tasks on all DAOs
             final List<Future<List>> futures = new ArrayList<>();
-            for (D dao : getNonOverlappingDAOs()) {
-                futures.add(queryWorkerPool.submit(factory.newTask(dao)));
+            for (ShardReadTarget<E, D> target : getReadTargets()) {
+                futures.add(submitHedged(factory, target));
             }
 
             // Wait for all iterators to finish (or for enough to finish that the rest get cancelled)
@@ -441,13 +685,15 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         if (search.hasHash()) {
             final D dao = getDAO(search.getHash());
             return dao.search(search);
+        } else if (search.isMergeable()) {
+            return mergeSearch(search, timeout);
         } else {
             final ShardTaskFactory factory = new ShardSearchTask.Factory(search);
             try {
                 // Start iterator tasks on all DAOs
                 final List<Future<List>> futures = new ArrayList<>();
-                for (D dao : getNonOverlappingDAOs()) {
-                    futures.add(queryWorkerPool.submit(factory.newTask(dao)));
+                for (ShardReadTarget<E, D> target : getReadTargets()) {
+                    futures.add(submit(factory, target));
                 }
 
                 // Wait for all iterators to finish (or for enough to finish that the rest get cancelled)
@@ -467,6 +713,28 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         }
     }
 
+    /**
+     * Each shard streams rows (already ordered by the search's comparator) into a bounded cursor,
+     * and we k-way merge the cursor heads until the page is full, then close every cursor.
+     * Every shard runs on its own executor, so a shard blocked on a full cursor never starves another shard's task.
+     */
+    protected <R> List<R> mergeSearch(ShardSearch search, long timeout) {
+        final ShardMergeSearchTask.Factory<E, D, R> factory = new ShardMergeSearchTask.Factory<>(search);
+        try {
+            for (ShardReadTarget<E, D> target : getReadTargets()) {
+                submit(factory, target);
+            }
+            try {
+                return factory.merge(timeout);
+            } catch (TimeoutException e) {
+                log.warn("mergeSearch: timed out");
+                throw timeoutEx();
+            }
+        } finally {
+            factory.cancelTasks();
+        }
+    }
+
     @Transactional(readOnly=true)
     @Override public boolean exists(String uuid) { return get(uuid) != null; }
 
@@ -541,14 +809,18 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
 
     public void flushShardCache(String uuid) {
         flushCacheRefs(getCacheRefsKey(uuid));
-        flushCacheRefs(getCacheRefsKey(NULL_CACHE));
+        flushCacheRefs(getCacheRefsKey(NULL_CACHE)); // null markers, written when the negative cache is disabled
+        getNegativeCache().reset();
     }
 
     public void flushCacheRefs(String cacheRefsKey) {
         if (cacheRefsKey == null) return;
         final List<String> cacheRefs = getShardCache().list(cacheRefsKey);
         getShardCache().del(cacheRefsKey);
-        if (!empty(cacheRefs)) for (String ref : cacheRefs) getShardCache().del(ref);
+        if (!empty(cacheRefs)) {
+            getShardCache().del(cacheRefs);
+            getNearCache().invalidate(cacheRefs);
+        }
         getShardCache().del(cacheRefsKey);
     }
 
@@ -11,7 +11,10 @@ import org.cobbzilla.wizard.model.shard.ShardMap;
 import org.cobbzilla.wizard.model.shard.Shardable;
 import org.cobbzilla.wizard.server.config.HasDatabaseConfiguration;
 import org.cobbzilla.wizard.server.config.RestServerConfiguration;
+import org.cobbzilla.wizard.util.ResultCollector;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
 import org.hibernate.StatelessSession;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,9 +24,12 @@ import java.io.Closeable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
 @Slf4j
 public abstract class AbstractSingleShardDAO<E extends Shardable>
@@ -54,37 +60,97 @@ public abstract class AbstractSingleShardDAO<E extends Shardable>
         Query query = null;
         try {
             session = factory.openStatelessSession();
+            query = createQuery(session, hsql, isSql);
+            query.setMaxResults(maxResults);
+            bindArgs(query, args, isSql);
+            return query.list();
+
+        } finally {
+            if (query != null && query instanceof Closeable) ReflectionUtil.closeQuietly(query);
+            if (session != null) session.close();
+        }
+    }
+
+    public static final int SCROLL_FETCH_SIZE = 100;
+
+    @Override public void scroll(int maxResults, String hsql, List<Object> args, ResultCollector collector) {
+        boolean isSql = false;
+        if (hsql.startsWith(SQL_QUERY)) {
+            isSql = true;
+            hsql = hsql.substring(SQL_QUERY.length());
+        }
+        final SessionFactory factory = getHibernateTemplate().getSessionFactory();
+        StatelessSession session = null;
+        Query query = null;
+        ScrollableResults scroll = null;
+        try {
+            session = factory.openStatelessSession();
+            query = createQuery(session, hsql, isSql);
+            query.setMaxResults(maxResults);
+            query.setFetchSize(Math.min(maxResults, SCROLL_FETCH_SIZE));
+            bindArgs(query, args, isSql);
             if (isSql) {
-                final HasDatabaseConfiguration dbconfig = (HasDatabaseConfiguration) this.configuration;
-                query = new ObjectSQLQuery<>(dbconfig.getDatabase(), hsql, getEntityClass());
+                final Iterator iter = query.iterate();
+                while (iter.hasNext()) {
+                    if (!collector.addResult(iter.next())) break;
+                }
             } else {
-                query = session.createQuery(hsql);
-            }
-            query.setMaxResults(maxResults);
-            int i = isSql ? 1 : 0;
-            for (Object arg : args) {
-                if (arg == null) {
-                    die("query: null values not supported");
-                } else if (arg instanceof String) {
-                    query.setString(i++, arg.toString());
-                } else if (arg instanceof BigDecimal) {
-                    query.setBigDecimal(i++, (BigDecimal) arg);
-                } else if (arg instanceof BigInteger) {
-                    query.setBigInteger(i++, (BigInteger) arg);
-                } else if (arg instanceof Double) {
-                    query.setDouble(i++, (Double) arg);
-                } else {
-                    die("query: unsupported argument type: " + arg);
+                scroll = query.scroll(ScrollMode.FORWARD_ONLY);
+                while (scroll.next()) {
+                    // a projection returns a row of columns, as query.list() would; an entity query, a single column
+                    final Object[] row = scroll.get();
+                    if (!collector.addResult(row.length == 1 ? row[0] : row)) break;
                 }
             }
-            return query.list();
 
         } finally {
+            if (scroll != null) scroll.close();
             if (query != null && query instanceof Closeable) ReflectionUtil.closeQuietly(query);
             if (session != null) session.close();
         }
     }
 
+    @Override public void replicate(Collection<E> entities) {
+        if (empty(entities)) return;
+        setFlushMode();
+        for (E entity : entities) getHibernateTemplate().merge(entity);
+        getHibernateTemplate().flush();
+    }
+
+    @Override public int deleteByUuids(Collection<String> uuids) {
+        if (empty(uuids)) return 0;
+        final StringBuilder params = new StringBuilder();
+        for (int i=0; i<uuids.size(); i++) params.append(i == 0 ? "?" : ", ?");
+        return getHibernateTemplate().bulkUpdate("DELETE " + getEntityClass().getSimpleName() + " x WHERE x.uuid IN (" + params + ")", uuids.toArray());
+    }
+
+    private Query createQuery(StatelessSession session, String hsql, boolean isSql) {
+        if (isSql) {
+            final HasDatabaseConfiguration dbconfig = (HasDatabaseConfiguration) this.configuration;
+            return new ObjectSQLQuery<>(dbconfig.getDatabase(), hsql, getEntityClass());
+        }
+        return session.createQuery(hsql);
+    }
+
+    private void bindArgs(Query query, List<Object> args, boolean isSql) {
+        int i = isSql ? 1 : 0;
+        for (Object arg : args) {
+            if (arg == null) {
+                die("query: null values not supported");
+            } else if (arg instanceof String) {
+                query.setString(i++, arg.toString());
+            } else if (arg instanceof BigDecimal) {
+                query.setBigDecimal(i++, (BigDecimal) arg);
+            } else if (arg instanceof BigInteger) {
+                query.setBigInteger(i++, (BigInteger) arg);
+            } else if (arg instanceof Double) {
+                query.setDouble(i++, (Double) arg);
+            } else {
+                die("query: unsupported argument type: " + arg);
+            }
+        }
+    }
+
     @Override public void initialize(ShardMap map) { setShard(map); }
 
     @Override public void cleanup() {
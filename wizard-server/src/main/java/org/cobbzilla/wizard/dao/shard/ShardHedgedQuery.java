@@ -0,0 +1,144 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a query against the first replica of a shard range. If it has not finished after hedgeDelay millis
+ * (the primary shard's observed p99), the same query is also sent to the next replica, and whichever finishes
+ * first wins. A replica that fails or rejects the query is failed-over to the next replica immediately.
+ * The future fails only when every attempt has failed.
+ */
+@Slf4j
+public class ShardHedgedQuery<T> implements Future<T> {
+
+    private static final ScheduledExecutorService HEDGE_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ShardHedgedQuery-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final List<ShardQueryExecutor> executors;
+    private final List<Callable<T>> tasks;
+    private final long hedgeDelay;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private final AtomicReference<T> result = new AtomicReference<>();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private final AtomicInteger nextAttempt = new AtomicInteger(0);
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+    private final List<Future<T>> attempts = new CopyOnWriteArrayList<>();
+    private volatile boolean succeeded = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param executors one executor per replica, primary first
+     * @param tasks one task per replica, in the same order as executors
+     * @param hedgeDelay millis to wait before hedging, or -1 to only fail-over (never hedge)
+     */
+    public ShardHedgedQuery(List<ShardQueryExecutor> executors, List<Callable<T>> tasks, long hedgeDelay) {
+        this.executors = executors;
+        this.tasks = tasks;
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    public ShardHedgedQuery<T> start() {
+        launchNext();
+        if (hedgeDelay >= 0 && tasks.size() > 1) {
+            HEDGE_TIMER.schedule(new Runnable() {
+                @Override public void run() {
+                    if (!isDone() && nextAttempt.get() < tasks.size()) {
+                        log.info("hedging query to shard " + executors.get(nextAttempt.get()).getShard() + " after " + hedgeDelay + "ms");
+                        launchNext();
+                    }
+                }
+            }, hedgeDelay, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    private boolean launchNext() {
+        final int i = nextAttempt.getAndIncrement();
+        if (i >= tasks.size() || isDone()) return false;
+        final ShardQueryExecutor executor = executors.get(i);
+        if (i > 0) executor.hedged();
+        outstanding.incrementAndGet();
+        try {
+            attempts.add(executor.submit(wrap(tasks.get(i))));
+        } catch (RejectedExecutionException e) {
+            attemptFailed(e);
+        }
+        return true;
+    }
+
+    private Callable<T> wrap(final Callable<T> task) {
+        return new Callable<T>() {
+            @Override public T call() throws Exception {
+                try {
+                    final T value = task.call();
+                    attemptSucceeded(value);
+                    return value;
+                } catch (Exception e) {
+                    attemptFailed(e);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private void attemptSucceeded(T value) {
+        if (completed.compareAndSet(false, true)) {
+            result.set(value);
+            succeeded = true;
+            done.countDown();
+            for (Future<T> attempt : attempts) attempt.cancel(false);
+        }
+    }
+
+    private void attemptFailed(Throwable e) {
+        error.compareAndSet(null, e);
+        outstanding.decrementAndGet();
+        if (!launchNext() && outstanding.get() == 0) complete();
+    }
+
+    private void complete() {
+        if (completed.compareAndSet(false, true)) done.countDown();
+    }
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) return false;
+        cancelled = true;
+        for (Future<T> attempt : attempts) attempt.cancel(mayInterruptIfRunning);
+        complete();
+        return true;
+    }
+
+    @Override public boolean isCancelled() { return cancelled; }
+
+    @Override public boolean isDone() { return completed.get(); }
+
+    @Override public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) throw new TimeoutException("get: timed out waiting for hedged shard query");
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (succeeded) return result.get();
+        if (cancelled) throw new CancellationException("getResult: cancelled");
+        throw new ExecutionException(error.get());
+    }
+
+}
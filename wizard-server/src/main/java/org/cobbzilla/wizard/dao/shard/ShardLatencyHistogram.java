@@ -0,0 +1,52 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import org.cobbzilla.wizard.util.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * Latency of shard queries in milliseconds, with a failure count. Counts are halved every decay interval,
+ * so percentiles follow recent behavior rather than the whole lifetime of the server.
+ */
+public class ShardLatencyHistogram {
+
+    public static final long DEFAULT_DECAY_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong lastDecay = new AtomicLong(now());
+    private final long decayInterval;
+
+    public ShardLatencyHistogram() { this(DEFAULT_DECAY_INTERVAL); }
+
+    public ShardLatencyHistogram(long decayInterval) { this.decayInterval = decayInterval; }
+
+    public void record(long millis, boolean success) {
+        decayIfNeeded();
+        histogram.record(millis);
+        if (!success) failures.incrementAndGet();
+    }
+
+    private void decayIfNeeded() {
+        final long last = lastDecay.get();
+        if (now() - last < decayInterval || !lastDecay.compareAndSet(last, now())) return;
+        histogram.decay();
+        failures.set(failures.get() / 2);
+    }
+
+    public long getCount() { return histogram.getCount(); }
+    public long getFailures() { return failures.get(); }
+    public long getMax() { return histogram.getMax(); }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency at the percentile, or -1 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        return histogram.getCount() == 0 ? -1 : histogram.getPercentile(percentile);
+    }
+
+}
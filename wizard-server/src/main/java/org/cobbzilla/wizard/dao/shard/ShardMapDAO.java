@@ -21,11 +21,12 @@ import static org.cobbzilla.util.daemon.ZillaRuntime.now;
 @Slf4j
 public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E> {
 
-    private static final long CACHE_TIMEOUT = TimeUnit.MINUTES.toMillis(60);
+    public static final long CACHE_TIMEOUT = TimeUnit.MINUTES.toMillis(60);
 
     private final AtomicReference<List<E>> flatCache = new AtomicReference<>();
     private final AtomicReference<MappyList<String, E>> readCache = new AtomicReference<>();
     private final AtomicReference<MappyList<String, E>> writeCache = new AtomicReference<>();
+    private final AtomicReference<Map<String, ShardRoutingTable<E>>> routingCache = new AtomicReference<>();
     private final AtomicLong lastRefresh = new AtomicLong(0);
     private final AtomicReference<Thread> refresher = new AtomicReference<>();
 
@@ -55,14 +56,19 @@ public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E>
                             newFlatCache.add(shardMap);
                         }
 
-                        // validate
+                        // validate and build routing tables
+                        final Map<String, ShardRoutingTable<E>> newRoutingCache = new HashMap<>();
                         for (String shardSet : toNames(newFlatCache)) {
                             if (!validate(shardSet, newReadCache.getAll(shardSet))) log.warn("Invalid read-shard set for " + shardSet);
                             if (!validate(shardSet, newWriteCache.getAll(shardSet))) log.warn("Invalid write-shard set for " + shardSet);
+                            newRoutingCache.put(shardSet, new ShardRoutingTable<>(getLogicalShardCount(shardSet),
+                                                                                  newReadCache.getAll(shardSet),
+                                                                                  newWriteCache.getAll(shardSet)));
                         }
 
                         readCache.set(newReadCache);
                         writeCache.set(newWriteCache);
+                        routingCache.set(newRoutingCache);
                         flatCache.set(newFlatCache);
 
                         lastRefresh.set(now());
@@ -100,8 +106,20 @@ public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E>
         return new HashSet<>(CollectionUtils.collect(flatCache, TO_SHARD_SET));
     }
 
+    protected ShardRoutingTable<E> getRoutingTable(String shardSet) {
+        refreshCache();
+        final Map<String, ShardRoutingTable<E>> tables = routingCache.get();
+        return tables == null ? null : tables.get(shardSet);
+    }
+
+    /**
+     * @return the maps serving the logical shard for the given io. the list is shared and must not be modified
+     */
     public List<E> getShardList(String shardSet, int logicalShard, ShardIO shardIO) {
-        List<E> maps = getShardList(shardSet, shardIO);
+        final ShardRoutingTable<E> table = getRoutingTable(shardSet);
+        if (table != null && table.covers(logicalShard)) return table.get(logicalShard, shardIO);
+
+        final List<E> maps = getShardList(shardSet, shardIO);
         final List<E> matches = new ArrayList<>();
         for (E m : maps) {
             if (m.mapsShard(logicalShard)) matches.add(m);
@@ -119,7 +137,9 @@ public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E>
     }
 
     protected List<E> getShardList(String shardSet, int logicalShard) {
-        refreshCache();
+        final ShardRoutingTable<E> table = getRoutingTable(shardSet);
+        if (table != null && table.covers(logicalShard)) return new ArrayList<>(table.get(logicalShard));
+
         final Set<E> maps = new HashSet<>();
         for (E map : readCache.get().getAll(shardSet)) if (map.mapsShard(logicalShard)) maps.add(map);
         for (E map : writeCache.get().getAll(shardSet)) if (map.mapsShard(logicalShard)) maps.add(map);
@@ -0,0 +1,83 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.model.shard.ShardMap;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * A bounded thread pool for the queries sent to a single shard, so that one slow shard can only fill its own
+ * queue. Tasks are rejected once the queue is full. Latency is measured from submission, so time spent waiting
+ * in the queue counts toward the shard's observed percentiles.
+ */
+@Slf4j
+public class ShardQueryExecutor {
+
+    @Getter private final ShardMap shard;
+    @Getter private final ShardLatencyHistogram latency = new ShardLatencyHistogram();
+
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong hedges = new AtomicLong(0);
+
+    public ShardQueryExecutor(ShardMap shard, int maxThreads, int maxQueue) {
+        this.shard = shard;
+        this.pool = new ThreadPoolExecutor(maxThreads, maxThreads, 10, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxQueue));
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> Future<T> submit(final Callable<T> task) {
+        final long submitted = now();
+        try {
+            return pool.submit(new Callable<T>() {
+                @Override public T call() throws Exception {
+                    boolean success = false;
+                    try {
+                        final T result = task.call();
+                        success = true;
+                        return result;
+                    } finally {
+                        latency.record(now() - submitted, success);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            log.warn("submit: queue full for shard " + shard + " (depth=" + pool.getQueue().size() + ")");
+            throw e;
+        }
+    }
+
+    public void hedged() { hedges.incrementAndGet(); }
+
+    /**
+     * @param minSamples number of samples required before we trust the percentile
+     * @return how long to wait for this shard before sending a hedged request to a replica, or -1 to never hedge
+     */
+    public long getHedgeDelay(int minSamples) {
+        if (latency.getCount() < minSamples) return -1;
+        return latency.getPercentile(99);
+    }
+
+    public ShardQueryStats getStats() {
+        return new ShardQueryStats()
+                .setShard(shard.toString())
+                .setCount(latency.getCount())
+                .setFailures(latency.getFailures())
+                .setRejected(rejected.get())
+                .setHedges(hedges.get())
+                .setP50(latency.getPercentile(50))
+                .setP95(latency.getPercentile(95))
+                .setP99(latency.getPercentile(99))
+                .setMax(latency.getMax())
+                .setQueueDepth(pool.getQueue().size())
+                .setActiveThreads(pool.getActiveCount());
+    }
+
+    public void shutdown() { pool.shutdown(); }
+
+}
@@ -0,0 +1,27 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class ShardQueryStats {
+
+    @Getter @Setter private String shard;
+
+    @Getter @Setter private long count;
+    @Getter @Setter private long failures;
+    @Getter @Setter private long rejected;
+    @Getter @Setter private long hedges;
+
+    @Getter @Setter private long p50;
+    @Getter @Setter private long p95;
+    @Getter @Setter private long p99;
+    @Getter @Setter private long max;
+
+    @Getter @Setter private int queueDepth;
+    @Getter @Setter private int activeThreads;
+
+}
@@ -0,0 +1,79 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import org.cobbzilla.wizard.model.shard.ShardMap;
+import org.cobbzilla.wizard.model.shard.ShardRange;
+
+import java.util.*;
+
+/**
+ * Splits the readable ShardMaps of a shard set into the queries of a fan-out. Logical shards served by the same
+ * set of databases (urls) are answered by a single query, so a database holding several ranges (for example the
+ * two halves left after a rebalance moved a middle range away) is queried once, not once per range.
+ *
+ * A database can also hold rows outside the ranges it serves (rows moved away but not cleaned up yet), so each
+ * group lists the logical ranges it answers for, and rows outside them must be dropped.
+ */
+public class ShardReadPlan {
+
+    @Getter private final List<Group> groups = new ArrayList<>();
+
+    public ShardReadPlan(Collection<? extends ShardMap> readShards, int logicalShards) {
+        // split the logical space at every range boundary; within a segment the serving maps cannot change
+        final TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        bounds.add(logicalShards);
+        for (ShardMap map : readShards) {
+            bounds.add(Math.max(0, Math.min(logicalShards, map.getRange().getLogicalStart())));
+            bounds.add(Math.max(0, Math.min(logicalShards, map.getRange().getLogicalEnd())));
+        }
+
+        final Map<Set<String>, Group> byUrls = new HashMap<>();
+        Integer start = null;
+        for (Integer end : bounds) {
+            if (start != null) {
+                // one map per url: every map on a url reads the same database
+                final Map<String, ShardMap> byUrl = new TreeMap<>();
+                for (ShardMap map : readShards) {
+                    if (map.mapsShard(start) && !byUrl.containsKey(map.getUrl())) byUrl.put(map.getUrl(), map);
+                }
+                if (!byUrl.isEmpty()) {
+                    Group group = byUrls.get(byUrl.keySet());
+                    if (group == null) {
+                        group = new Group(new ArrayList<>(byUrl.values()));
+                        byUrls.put(new TreeSet<>(byUrl.keySet()), group);
+                        groups.add(group);
+                    }
+                    group.addRange(start, end);
+                }
+            }
+            start = end;
+        }
+    }
+
+    public static class Group {
+
+        /** one map per url serving the group's ranges; any of them can answer the query */
+        @Getter private final List<ShardMap> maps;
+
+        /** the logical ranges this group answers for, in order and not adjacent to each other */
+        @Getter private final List<ShardRange> ranges = new ArrayList<>();
+
+        private Group(List<ShardMap> maps) { this.maps = maps; }
+
+        private void addRange(int start, int end) {
+            final ShardRange last = ranges.isEmpty() ? null : ranges.get(ranges.size()-1);
+            if (last != null && last.getLogicalEnd() == start) {
+                last.setLogicalEnd(end);
+            } else {
+                ranges.add(new ShardRange(start, end));
+            }
+        }
+
+        public boolean owns(int logicalShard) {
+            for (ShardRange range : ranges) if (range.mapsShard(logicalShard)) return true;
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.cobbzilla.wizard.dao.EntityFilter;
+import org.cobbzilla.wizard.model.shard.Shardable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One query of a fan-out (see ShardReadPlan): the replicas that can answer it, primary first, and a filter that
+ * keeps only the entities whose logical shard the query answers for. Rows that are not entities of the sharded
+ * class (projections) cannot be placed on a logical shard, and are always kept.
+ */
+@AllArgsConstructor
+public class ShardReadTarget<E extends Shardable, D extends SingleShardDAO<E>> implements EntityFilter<Object> {
+
+    private final AbstractShardedDAO<E, D> shardedDAO;
+    @Getter private final List<D> replicas;
+    private final ShardReadPlan.Group group; // null when the target answers for every logical shard
+
+    public D getPrimary() { return replicas.get(0); }
+
+    @Override public boolean isAcceptable(Object row) {
+        if (group == null || !shardedDAO.getEntityClass().isInstance(row)) return true;
+        final int logicalShard = shardedDAO.getEntityLogicalShard((E) row);
+        return logicalShard < 0 || group.owns(logicalShard);
+    }
+
+    public <T> List<T> filter(Collection<T> rows) {
+        final List<T> kept = new ArrayList<>(rows.size());
+        for (T row : rows) if (isAcceptable(row)) kept.add(row);
+        return kept;
+    }
+
+}
@@ -0,0 +1,297 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.collection.mappy.MappyList;
+import org.cobbzilla.wizard.model.shard.*;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.security.ShaUtil.sha256_hex;
+import static org.cobbzilla.util.system.Sleep.sleep;
+import static org.cobbzilla.wizard.model.shard.ShardRebalancePhase.*;
+
+/**
+ * Moves (or copies) the rows of a logical range onto a new shard while the shard set stays online:
+ *
+ * 1. dual_write: the new ShardMap is created write-only, so create/update/delete go to both old and new shards
+ * 2. backfill: existing rows are copied from one replica of each overlapping source range, in uuid order and in batches
+ * 3. verify: every moved row is compared by checksum and re-copied if it differs; rows deleted from the source
+ *    during the backfill are deleted from the target. repeats until a pass finds no differences
+ * 4. flip: the new shard becomes readable and, for a move, the source maps are narrowed to exclude the range
+ * 5. cleanup: for a move, the moved rows are deleted from every database that served the range before the flip,
+ *    including every replica of the sources. Until then, fan-out reads drop them (see ShardReadPlan)
+ *
+ * Phases 1 and 4 wait for every node to see the new topology (see ShardRebalanceRequest.propagationMillis).
+ * If the job fails or is cancelled before the flip, the new ShardMap is deleted and the sources are untouched.
+ */
+@Slf4j
+public class ShardRebalanceJob<E extends Shardable, D extends SingleShardDAO<E>> implements Runnable {
+
+    private static final long PROPAGATION_CHECK_INTERVAL = 1000;
+
+    private final AbstractShardedDAO<E, D> shardedDAO;
+    private final ShardMapDAO shardMapDAO;
+    private final ShardRebalanceRequest request;
+    private final List<ShardMap> sources;
+    private final String selectBatch;
+
+    @Getter private final ShardRebalanceStatus status;
+    private volatile boolean cancelRequested = false;
+    private ShardMap target;
+
+    // the narrowed maps, one per url, whose databases still hold the moved rows until cleanup deletes them
+    private final Map<String, ShardMap> narrowedByUrl = new LinkedHashMap<>();
+
+    public ShardRebalanceJob(AbstractShardedDAO<E, D> shardedDAO, ShardRebalanceRequest request, List<ShardMap> sources) {
+        this.shardedDAO = shardedDAO;
+        this.shardMapDAO = shardedDAO.getShardDAO();
+        this.request = request;
+        this.sources = sources;
+        this.selectBatch = "FROM " + shardedDAO.getEntityClass().getSimpleName() + " x WHERE x.uuid > ? ORDER BY x.uuid";
+        this.status = new ShardRebalanceStatus()
+                .setId(UUID.randomUUID().toString())
+                .setShardSet(shardedDAO.getShardConfiguration().getName())
+                .setRequest(request);
+    }
+
+    public void cancel() { cancelRequested = true; }
+
+    @Override public void run() {
+        final String prefix = "run(" + status.getShardSet() + "/" + request.getUrl() + "): ";
+        boolean flipped = false;
+        try {
+            dualWrite();
+            backfill();
+            verify();
+            flip();
+            flipped = true;
+            if (request.isMove()) cleanup();
+            status.setPhase(completed);
+            log.info(prefix + "completed: " + status.getRowsCopied() + " rows copied, " + status.getRowsDeleted() + " deleted");
+
+        } catch (CancellationException e) {
+            log.warn(prefix + "cancelled during " + status.getPhase());
+            if (!flipped) rollback();
+            status.setPhase(cancelled);
+
+        } catch (Exception e) {
+            log.error(prefix + "failed during " + status.getPhase() + ": " + e, e);
+            if (!flipped) rollback();
+            status.setError(e.toString());
+            status.setPhase(failed);
+        }
+    }
+
+    private void dualWrite() {
+        status.setPhase(dual_write);
+        target = (ShardMap) shardMapDAO.newEntity();
+        target.setShardSet(status.getShardSet())
+              .setRange(request.getRange())
+              .setUrl(request.getUrl())
+              .setAllowRead(false)
+              .setAllowWrite(true);
+        target = (ShardMap) shardMapDAO.create(target);
+        status.setTargetShard(target.getUuid());
+        awaitPropagation();
+    }
+
+    private void backfill() {
+        status.setPhase(backfill);
+        final D to = shardedDAO.toDAO(target);
+        for (ShardMap source : sources) {
+            final D from = shardedDAO.toDAO(source);
+            String last = "";
+            List<E> batch;
+            while (!(batch = nextBatch(from, last)).isEmpty()) {
+                last = batch.get(batch.size()-1).getUuid();
+                final List<E> moving = inRange(batch);
+                to.replicate(moving);
+                status.setRowsScanned(status.getRowsScanned() + batch.size());
+                status.setRowsCopied(status.getRowsCopied() + moving.size());
+                pause();
+            }
+        }
+    }
+
+    private void verify() {
+        status.setPhase(verify);
+        final D to = shardedDAO.toDAO(target);
+        for (int pass=1; pass<=request.getMaxVerifyPasses(); pass++) {
+            status.setVerifyPasses(pass);
+            long differences = 0;
+
+            // every moved row must be on the target, with the same content
+            for (ShardMap source : sources) {
+                final D from = shardedDAO.toDAO(source);
+                String last = "";
+                List<E> batch;
+                while (!(batch = nextBatch(from, last)).isEmpty()) {
+                    last = batch.get(batch.size()-1).getUuid();
+                    final List<E> moving = inRange(batch);
+                    final Map<String, String> copies = checksums(to, moving);
+                    final List<E> recopy = new ArrayList<>();
+                    for (E row : moving) {
+                        if (!checksum(row).equals(copies.get(row.getUuid()))) recopy.add(row);
+                    }
+                    to.replicate(recopy);
+                    differences += recopy.size();
+                    status.setRowsVerified(status.getRowsVerified() + moving.size());
+                    pause();
+                }
+            }
+
+            // rows deleted from a source after they were copied must not survive on the target
+            String last = "";
+            List<E> batch;
+            while (!(batch = nextBatch(to, last)).isEmpty()) {
+                last = batch.get(batch.size()-1).getUuid();
+                final MappyList<ShardMap, E> bySource = new MappyList<>();
+                for (E row : batch) {
+                    final ShardMap source = sourceFor(row);
+                    if (source != null) bySource.put(source, row);
+                }
+                for (ShardMap source : bySource.keySet()) {
+                    final List<E> rows = bySource.getAll(source);
+                    final Map<String, String> originals = checksums(shardedDAO.toDAO(source), rows);
+                    final List<String> orphans = new ArrayList<>();
+                    for (E row : rows) if (!originals.containsKey(row.getUuid())) orphans.add(row.getUuid());
+                    to.deleteByUuids(orphans);
+                    differences += orphans.size();
+                }
+                pause();
+            }
+
+            status.setMismatches(status.getMismatches() + differences);
+            if (differences == 0) return;
+            log.info("verify: pass " + pass + " fixed " + differences + " differences, verifying again");
+        }
+        die("verify: rows still differ after " + request.getMaxVerifyPasses() + " passes");
+    }
+
+    private void flip() {
+        status.setPhase(flip);
+        target.setAllowRead(true);
+        shardMapDAO.update(target);
+        if (request.isMove()) {
+            for (Object o : shardMapDAO.findByShardSet(status.getShardSet())) {
+                final ShardMap map = (ShardMap) o;
+                if (map.getUuid().equals(target.getUuid()) || !overlaps(map.getRange(), target.getRange())) continue;
+                narrow(map);
+                if (!map.getUrl().equals(target.getUrl()) && !narrowedByUrl.containsKey(map.getUrl())) narrowedByUrl.put(map.getUrl(), map);
+            }
+        }
+        awaitPropagation();
+    }
+
+    private void narrow(ShardMap map) {
+        final List<ShardRange> remaining = remainder(map.getRange(), target.getRange());
+        if (remaining.isEmpty()) {
+            log.info("narrow: disabling " + map + ", its entire range moved to " + target.getUrl());
+            map.setAllowRead(false).setAllowWrite(false);
+            shardMapDAO.update(map);
+            return;
+        }
+        map.setRange(remaining.get(0));
+        shardMapDAO.update(map);
+        if (remaining.size() > 1) {
+            final ShardMap upper = (ShardMap) shardMapDAO.newEntity();
+            upper.setShardSet(map.getShardSet())
+                 .setRange(remaining.get(1))
+                 .setUrl(map.getUrl())
+                 .setAllowRead(map.isAllowRead())
+                 .setAllowWrite(map.isAllowWrite());
+            shardMapDAO.create(upper);
+        }
+    }
+
+    private void cleanup() {
+        status.setPhase(cleanup);
+        // every map on a url reads the same database, so each database is cleaned once, through any of its maps
+        for (ShardMap map : narrowedByUrl.values()) {
+            final D from = shardedDAO.toDAO(map);
+            String last = "";
+            List<E> batch;
+            while (!(batch = nextBatch(from, last)).isEmpty()) {
+                last = batch.get(batch.size()-1).getUuid();
+                final List<String> uuids = new ArrayList<>();
+                for (E row : inRange(batch)) uuids.add(row.getUuid());
+                status.setRowsDeleted(status.getRowsDeleted() + from.deleteByUuids(uuids));
+                pause();
+            }
+        }
+    }
+
+    private void rollback() {
+        if (target == null) return;
+        try {
+            shardMapDAO.delete(target.getUuid());
+        } catch (Exception e) {
+            log.error("rollback: error deleting write-only shard " + target + ": " + e, e);
+        }
+    }
+
+    private List<E> nextBatch(D dao, String lastUuid) {
+        checkCancelled();
+        return dao.query(request.getBatchSize(), selectBatch, lastUuid);
+    }
+
+    private List<E> inRange(List<E> rows) {
+        final List<E> found = new ArrayList<>();
+        for (E row : rows) if (target.mapsShard(logicalShard(row))) found.add(row);
+        return found;
+    }
+
+    private ShardMap sourceFor(E row) {
+        final int logical = logicalShard(row);
+        for (ShardMap source : sources) if (source.mapsShard(logical)) return source;
+        return null;
+    }
+
+    private int logicalShard(E row) { return shardedDAO.getEntityLogicalShard(row); }
+
+    private Map<String, String> checksums(D dao, List<E> rows) {
+        final Map<String, String> checksums = new HashMap<>();
+        if (rows.isEmpty()) return checksums;
+        final List<String> uuids = new ArrayList<>();
+        for (E row : rows) uuids.add(row.getUuid());
+        for (E found : dao.findByFieldIn("uuid", uuids)) checksums.put(found.getUuid(), checksum(found));
+        return checksums;
+    }
+
+    private String checksum(E row) { return sha256_hex(toJsonOrDie(row)); }
+
+    /** @return what is left of range once moved is taken out of it: nothing, one range, or two when moved is in the middle */
+    static List<ShardRange> remainder(ShardRange range, ShardRange moved) {
+        final List<ShardRange> remaining = new ArrayList<>();
+        if (range.getLogicalStart() < moved.getLogicalStart()) remaining.add(new ShardRange(range.getLogicalStart(), Math.min(moved.getLogicalStart(), range.getLogicalEnd())));
+        if (range.getLogicalEnd() > moved.getLogicalEnd()) remaining.add(new ShardRange(Math.max(moved.getLogicalEnd(), range.getLogicalStart()), range.getLogicalEnd()));
+        return remaining;
+    }
+
+    static boolean overlaps(ShardRange r1, ShardRange r2) {
+        return r1.getLogicalStart() < r2.getLogicalEnd() && r2.getLogicalStart() < r1.getLogicalEnd();
+    }
+
+    private void awaitPropagation() {
+        final long wait = request.getPropagationMillis() >= 0 ? request.getPropagationMillis() : ShardMapDAO.CACHE_TIMEOUT;
+        final long deadline = now() + wait;
+        while (now() < deadline) {
+            checkCancelled();
+            sleep(Math.min(PROPAGATION_CHECK_INTERVAL, Math.max(deadline - now(), 1)), "awaitPropagation");
+        }
+    }
+
+    private void pause() {
+        if (request.getPauseMillis() > 0) sleep(request.getPauseMillis(), "pause");
+    }
+
+    private void checkCancelled() {
+        if (cancelRequested) throw new CancellationException("checkCancelled: job " + status.getId() + " was cancelled");
+    }
+
+}
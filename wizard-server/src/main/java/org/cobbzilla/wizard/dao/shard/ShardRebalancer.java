@@ -0,0 +1,82 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.collection.mappy.MappyList;
+import org.cobbzilla.wizard.model.shard.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.cobbzilla.wizard.resources.ResourceUtil.invalidEx;
+import static org.cobbzilla.wizard.resources.ResourceUtil.notFoundEx;
+
+/**
+ * Runs ShardRebalanceJobs for one shard set, one at a time, each on its own daemon thread.
+ * Jobs are tracked in memory by the node that started them.
+ */
+@Slf4j
+public class ShardRebalancer<E extends Shardable, D extends SingleShardDAO<E>> {
+
+    private final AbstractShardedDAO<E, D> shardedDAO;
+    private final Map<String, ShardRebalanceJob<E, D>> jobs = new ConcurrentHashMap<>();
+
+    public ShardRebalancer(AbstractShardedDAO<E, D> shardedDAO) { this.shardedDAO = shardedDAO; }
+
+    public synchronized ShardRebalanceStatus start(ShardRebalanceRequest request) {
+        for (ShardRebalanceJob<E, D> job : jobs.values()) {
+            if (!job.getStatus().isDone()) throw invalidEx("err.rebalance.alreadyRunning", "rebalance "+job.getStatus().getId()+" is still running");
+        }
+
+        final ShardRange range = request.getRange();
+        final int logicalShards = shardedDAO.getShardConfiguration().getLogicalShards();
+        if (range.getLogicalStart() < 0 || range.getLogicalEnd() > logicalShards || range.getLogicalStart() >= range.getLogicalEnd()) {
+            throw invalidEx("err.rebalance.range.invalid", "range must be within 0-"+logicalShards);
+        }
+        if (request.getBatchSize() <= 0) throw invalidEx("err.rebalance.batchSize.invalid");
+        if (request.getMaxVerifyPasses() <= 0) throw invalidEx("err.rebalance.maxVerifyPasses.invalid");
+
+        final List<ShardMap> sources = findSources(request);
+        if (sources.isEmpty()) throw invalidEx("err.rebalance.noSourceShards", "no readable shards overlap the range");
+
+        final ShardRebalanceJob<E, D> job = new ShardRebalanceJob<>(shardedDAO, request, sources);
+        jobs.put(job.getStatus().getId(), job);
+        final Thread t = new Thread(job, "ShardRebalancer-" + job.getStatus().getShardSet());
+        t.setDaemon(true);
+        t.start();
+        return job.getStatus();
+    }
+
+    // one readable replica of each range overlapping the requested range, excluding any on the target url
+    private List<ShardMap> findSources(ShardRebalanceRequest request) {
+        final MappyList<ShardRange, ShardMap> byRange = new MappyList<>();
+        for (ShardMap map : shardedDAO.getReadShards()) {
+            if (map.getUrl().equals(request.getUrl()) || !ShardRebalanceJob.overlaps(map.getRange(), request.getRange())) continue;
+            byRange.put(map.getRange(), map);
+        }
+        final List<ShardMap> sources = new ArrayList<>();
+        for (ShardRange range : byRange.keySet()) sources.add(byRange.getAll(range).get(0));
+        return sources;
+    }
+
+    public ShardRebalanceStatus getStatus(String id) {
+        final ShardRebalanceJob<E, D> job = jobs.get(id);
+        if (job == null) throw notFoundEx(id);
+        return job.getStatus();
+    }
+
+    public List<ShardRebalanceStatus> getStatuses() {
+        final List<ShardRebalanceStatus> statuses = new ArrayList<>();
+        for (ShardRebalanceJob<E, D> job : jobs.values()) statuses.add(job.getStatus());
+        return statuses;
+    }
+
+    public ShardRebalanceStatus cancel(String id) {
+        final ShardRebalanceJob<E, D> job = jobs.get(id);
+        if (job == null) throw notFoundEx(id);
+        job.cancel();
+        return job.getStatus();
+    }
+
+}
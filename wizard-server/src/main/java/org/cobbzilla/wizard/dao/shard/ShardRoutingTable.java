@@ -0,0 +1,76 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import org.cobbzilla.wizard.model.shard.ShardIO;
+import org.cobbzilla.wizard.model.shard.ShardMap;
+
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * An immutable lookup from logical shard to the ShardMaps that serve it, for one shard set.
+ * Built once per ShardMapDAO cache refresh; every logical shard in the same range segment shares
+ * one unmodifiable list, so a lookup is an array index and allocates nothing.
+ */
+public class ShardRoutingTable<E extends ShardMap> {
+
+    private final List<E>[] read;
+    private final List<E>[] write;
+    private final List<E>[] all;
+
+    public ShardRoutingTable(int logicalShards, List<E> readShards, List<E> writeShards) {
+        read = new List[logicalShards];
+        write = new List[logicalShards];
+        all = new List[logicalShards];
+
+        // split the logical space at every range boundary; within a segment the matching maps cannot change
+        final TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        bounds.add(logicalShards);
+        for (E map : readShards) addBounds(bounds, map, logicalShards);
+        for (E map : writeShards) addBounds(bounds, map, logicalShards);
+
+        Integer start = null;
+        for (Integer end : bounds) {
+            if (start != null) {
+                final List<E> readList = matching(readShards, start);
+                final List<E> writeList = matching(writeShards, start);
+                final Set<E> union = new LinkedHashSet<>(readList);
+                union.addAll(writeList);
+                final List<E> allList = Collections.unmodifiableList(new ArrayList<>(union));
+                Arrays.fill(read, start, end, readList);
+                Arrays.fill(write, start, end, writeList);
+                Arrays.fill(all, start, end, allList);
+            }
+            start = end;
+        }
+    }
+
+    private void addBounds(TreeSet<Integer> bounds, E map, int logicalShards) {
+        bounds.add(Math.max(0, Math.min(logicalShards, map.getRange().getLogicalStart())));
+        bounds.add(Math.max(0, Math.min(logicalShards, map.getRange().getLogicalEnd())));
+    }
+
+    private List<E> matching(List<E> maps, int logicalShard) {
+        final List<E> found = new ArrayList<>();
+        for (E map : maps) if (map.mapsShard(logicalShard)) found.add(map);
+        return Collections.unmodifiableList(found);
+    }
+
+    public int size() { return all.length; }
+
+    public boolean covers(int logicalShard) { return logicalShard >= 0 && logicalShard < all.length; }
+
+    /** @return an unmodifiable list of the maps serving the logical shard for the given io */
+    public List<E> get(int logicalShard, ShardIO shardIO) {
+        switch (shardIO) {
+            case read: return read[logicalShard];
+            case write: return write[logicalShard];
+            default: return die("get: invalid shardIO: "+shardIO);
+        }
+    }
+
+    /** @return an unmodifiable list of the maps serving the logical shard for either reads or writes */
+    public List<E> get(int logicalShard) { return all[logicalShard]; }
+
+}
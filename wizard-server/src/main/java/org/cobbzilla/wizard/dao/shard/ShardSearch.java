@@ -36,6 +36,20 @@ public class ShardSearch {
 
     @Getter @Setter private int maxResultsPerShard = Integer.MAX_VALUE;
 
+    /**
+     * When true (and a comparator is set), each shard must return rows already ordered by the comparator
+     * (the hsql should have a matching ORDER BY). Rows are streamed from per-shard cursors and k-way merged,
+     * stopping at maxResults, instead of collecting maxResultsPerShard rows from every shard and sorting them all.
+     */
+    @Getter @Setter private boolean merge = false;
+    public boolean isMergeable() { return merge && comparator != null; }
+
+    public static final int DEFAULT_MERGE_BUFFER_SIZE = 50;
+    /** how many rows each shard cursor may read ahead of the merge */
+    @Getter @Setter private int mergeBufferSize = DEFAULT_MERGE_BUFFER_SIZE;
+
+    public int getMergeLimitPerShard() { return Math.min(maxResults, maxResultsPerShard); }
+
     @Getter @Setter private Long timeout;
     public boolean hasTimeout() { return timeout != null && timeout > 0; }
 
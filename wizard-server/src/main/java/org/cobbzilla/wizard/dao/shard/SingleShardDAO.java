@@ -3,9 +3,11 @@ package org.cobbzilla.wizard.dao.shard;
 import org.cobbzilla.wizard.dao.DAO;
 import org.cobbzilla.wizard.model.shard.ShardMap;
 import org.cobbzilla.wizard.model.shard.Shardable;
+import org.cobbzilla.wizard.util.ResultCollector;
 import org.hibernate.Session;
 import org.springframework.orm.hibernate4.HibernateTemplate;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface SingleShardDAO<E extends Shardable> extends DAO<E> {
@@ -25,6 +27,15 @@ public interface SingleShardDAO<E extends Shardable> extends DAO<E> {
     List query(int maxResults, String hsql, Object... args);
     List query(int maxResults, String hsql, List<Object> args);
 
+    /** streams up to maxResults rows into the collector, stopping early when addResult returns false */
+    void scroll(int maxResults, String hsql, List<Object> args, ResultCollector collector);
+
+    /** save copies of entities exactly as they are (no uuid assignment, audit or other hooks), inserting or replacing */
+    void replicate(Collection<E> entities);
+
+    /** delete by uuid without loading the entities or calling hooks */
+    int deleteByUuids(Collection<String> uuids);
+
     HibernateTemplate getHibernateTemplate();
     Session readOnlySession();
 
@@ -5,13 +5,20 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import org.cobbzilla.util.json.JsonUtil;
+import org.cobbzilla.wizard.cache.redis.RedisService;
 import org.cobbzilla.wizard.dao.shard.AbstractShardedDAO;
 import org.cobbzilla.wizard.dao.shard.SingleShardDAO;
 import org.cobbzilla.wizard.model.shard.Shardable;
+import org.cobbzilla.wizard.server.config.ShardSetConfiguration;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
 import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.system.Sleep.sleep;
 import static org.cobbzilla.wizard.dao.shard.AbstractShardedDAO.NULL_CACHE;
 
 @AllArgsConstructor @Accessors(chain=true)
@@ -23,27 +30,101 @@ public abstract class ShardCacheableFinder<E extends Shardable, D extends Single
 
     public ShardCacheableFinder(AbstractShardedDAO<E, D> dao, long timeout) { this(dao, timeout, true); }
 
-    public E get(String cacheKey, Object... args) {
+    public static final String LOCK_SUFFIX = ":__loading__";
+    private static final long LOCK_POLL_INTERVAL = 25;
+
+    public E get(String cacheKey, final Object... args) {
         if (!useCache) return (E) find(args);
         final String shardSetName = shardedDAO.getShardConfiguration().getName();
-        cacheKey = shardSetName +":" + cacheKey;
-        E entity = null;
-        final String json = shardedDAO.getShardCache().get(cacheKey);
-        if (json == null) {
-            entity = (E) find(args);
-            if (entity == null) {
-                shardedDAO.getShardCache().set(cacheKey, NULL_CACHE, "EX", getCacheTimeoutSeconds());
-                final String cacheRefsKey = shardedDAO.getCacheRefsKey(NULL_CACHE);
-                shardedDAO.getShardCache().lpush(cacheRefsKey, cacheKey);
+        final String key = shardSetName +":" + cacheKey;
+
+        final ShardNearCache<E> nearCache = shardedDAO.getNearCache();
+        final Object near = nearCache.get(key);
+        if (near != null && near != ShardNearCache.NULL_ENTRY) return (E) near;
+
+        if (shardedDAO.getNegativeCache().isKnownAbsent(key)) return null;
+
+        final List<Object> cached = shardedDAO.getShardCache().batch().get(key).pttl(key).exec();
+        final String json = (String) cached.get(0);
+        if (json == null) return load(key, args);
+        if (json.equals(NULL_CACHE)) return null;
+
+        // refresh early (in this thread only) if we're close enough to expiry; everyone else keeps using the cached value
+        if (shouldRefreshEarly((Long) cached.get(1)) && !shardedDAO.getCacheLoads().isLoading(key)) return load(key, args);
+
+        final E entity = JsonUtil.fromJsonOrDie(json, shardedDAO.getEntityClass());
+        nearCache.put(key, entity);
+        return entity;
+    }
+
+    /**
+     * Probabilistic early expiration (XFetch): refresh when delta * beta * -ln(random) exceeds the remaining TTL,
+     * where delta is the time a load usually takes. The closer we are to expiry, the more likely a refresh.
+     */
+    protected boolean shouldRefreshEarly(Long ttlMillis) {
+        final double beta = shardedDAO.getShardConfiguration().getEarlyRefreshBeta();
+        if (beta <= 0 || ttlMillis == null || ttlMillis < 0) return false;
+        final double random = 1.0 - ThreadLocalRandom.current().nextDouble(); // in (0, 1]
+        return shardedDAO.getCacheLoadMillis() * beta * -Math.log(random) >= ttlMillis;
+    }
+
+    protected E load(final String key, final Object[] args) {
+        return shardedDAO.getCacheLoads().load(key, new Callable<E>() {
+            @Override public E call() throws Exception { return loadAndCache(key, args); }
+        }, shardedDAO.getShardQueryTimeout("cacheLoad"));
+    }
+
+    private E loadAndCache(String key, Object[] args) {
+        final ShardSetConfiguration config = shardedDAO.getShardConfiguration();
+        final RedisService cache = shardedDAO.getShardCache();
+        String lockKey = null;
+        if (config.isDistributedCacheLock()) {
+            lockKey = key + LOCK_SUFFIX;
+            if (!cache.setIfAbsent(lockKey, String.valueOf(now()), "PX", config.getCacheLockMillis())) {
+                // another node is loading this key: wait for it, but never longer than its lock
+                final E loaded = awaitPeerLoad(key, lockKey, config.getCacheLockMillis());
+                if (loaded != null) return loaded;
+                lockKey = null;
+            }
+        }
+        try {
+            final long start = now();
+            final E entity = (E) find(args);
+            shardedDAO.recordCacheLoad(now() - start);
+            if (entity != null) {
+                cacheValue(key, toJsonOrDie(entity), entity.getUuid());
+                shardedDAO.getNearCache().put(key, entity);
+            } else if (shardedDAO.getNegativeCache().isEnabled()) {
+                shardedDAO.getNegativeCache().markAbsent(key);
             } else {
-                shardedDAO.getShardCache().set(cacheKey, toJsonOrDie(entity), "EX", getCacheTimeoutSeconds());
-                shardedDAO.getShardCache().lpush(shardedDAO.getCacheRefsKey(entity.getUuid()), cacheKey);
+                cacheValue(key, NULL_CACHE, NULL_CACHE);
             }
-        } else if (!json.equals(NULL_CACHE)) {
-            entity = JsonUtil.fromJsonOrDie(json, shardedDAO.getEntityClass());
-            shardedDAO.getShardCache().set(cacheKey, json, "EX", getCacheTimeoutSeconds());
+            return entity;
+
+        } finally {
+            if (lockKey != null) cache.del(lockKey);
         }
-        return entity;
+    }
+
+    private void cacheValue(String key, String value, String refsUuid) {
+        shardedDAO.getShardCache().batch()
+                .set(key, value, "XX", "EX", getCacheTimeoutSeconds())
+                .set(key, value, "NX", "EX", getCacheTimeoutSeconds())
+                .lpush(shardedDAO.getCacheRefsKey(refsUuid), key)
+                .exec();
+    }
+
+    private E awaitPeerLoad(String key, String lockKey, long lockMillis) {
+        final RedisService cache = shardedDAO.getShardCache();
+        final long deadline = now() + lockMillis;
+        while (now() < deadline) {
+            final List<Object> found = cache.batch().get(key).get(lockKey).exec();
+            final String json = (String) found.get(0);
+            if (json != null && !json.equals(NULL_CACHE)) return JsonUtil.fromJsonOrDie(json, shardedDAO.getEntityClass());
+            if (found.get(1) == null) return null; // lock released without a value: load it ourselves
+            sleep(LOCK_POLL_INTERVAL, "awaitPeerLoad");
+        }
+        return null;
     }
 
 }
@@ -0,0 +1,94 @@
+package org.cobbzilla.wizard.dao.shard.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.cache.redis.RedisMessageListener;
+import org.cobbzilla.wizard.cache.redis.RedisService;
+import org.cobbzilla.wizard.cache.redis.RedisSubscriber;
+import org.cobbzilla.wizard.model.shard.Shardable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.reflect.ReflectionUtil.copy;
+
+/**
+ * Bounded, in-process (L1) cache of deserialized entities, sitting in front of the redis shard cache (L2).
+ * Entries are evicted least-recently-used when the cache is full, and expire after a short TTL as a backstop.
+ * Invalidations are applied locally and published on a redis channel so that peers drop the same keys.
+ * Entities are copied going in and coming out, so callers can never mutate a cached instance.
+ */
+@Slf4j
+public class ShardNearCache<E extends Shardable> implements RedisMessageListener {
+
+    public static final String INVALIDATION_CHANNEL = "near-cache-invalidate";
+
+    /** returned by get when the key is cached as not existing */
+    public static final Object NULL_ENTRY = new Object();
+
+    private final Cache<String, Object> cache;
+    private final RedisService redis;
+    private RedisSubscriber.Subscription subscriber;
+
+    @Getter private final boolean enabled;
+
+    public ShardNearCache(RedisService redis, int maxSize, long ttlSeconds) {
+        this.redis = redis;
+        this.enabled = maxSize > 0;
+        if (enabled) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                    .recordStats()
+                    .build();
+            this.subscriber = redis.subscribe(INVALIDATION_CHANNEL, this);
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * @param key the cache key
+     * @return null if not cached, NULL_ENTRY if cached as not existing, otherwise a copy of the cached entity
+     */
+    public Object get(String key) {
+        if (!enabled) return null;
+        final Object found = cache.getIfPresent(key);
+        return found == null || found == NULL_ENTRY ? found : copy(found);
+    }
+
+    public void put(String key, E entity) {
+        if (enabled) cache.put(key, entity == null ? NULL_ENTRY : copy(entity));
+    }
+
+    /** drop the keys here and on every peer */
+    public void invalidate(Collection<String> keys) {
+        if (!enabled || empty(keys)) return;
+        invalidateLocal(keys);
+        try {
+            redis.publish(INVALIDATION_CHANNEL, toJsonOrDie(keys));
+        } catch (Exception e) {
+            log.warn("invalidate: error publishing invalidation (peers will expire in at most the near cache TTL): "+e);
+        }
+    }
+
+    public void invalidateLocal(Collection<String> keys) { if (enabled) cache.invalidateAll(keys); }
+
+    public void invalidateAll() { if (enabled) cache.invalidateAll(); }
+
+    @Override public void onMessage(String channel, String message) {
+        invalidateLocal(Arrays.asList(fromJsonOrDie(message, String[].class)));
+    }
+
+    public CacheStats getStats() { return enabled ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0); }
+
+    public void shutdown() { if (subscriber != null) subscriber.shutdown(); }
+
+}
@@ -0,0 +1,89 @@
+package org.cobbzilla.wizard.dao.shard.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.cache.redis.RedisMessageListener;
+import org.cobbzilla.wizard.cache.redis.RedisService;
+import org.cobbzilla.wizard.cache.redis.RedisSubscriber;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * An in-process bloom filter of cache keys whose lookups found nothing, replacing per-key null markers in redis.
+ * Any write to the shard set resets the filter here and (via redis pub/sub) on every peer, and the filter is also
+ * replaced when it is older than the cache timeout or has taken more keys than it was sized for.
+ *
+ * A false positive reports an existing key as absent, so the false positive rate should be kept very low.
+ * Unsynchronized concurrent puts can at worst drop a bit, which only causes an extra lookup.
+ */
+@Slf4j
+public class ShardNegativeCache implements RedisMessageListener {
+
+    public static final String RESET_CHANNEL = "negative-cache-reset";
+
+    private final RedisService redis;
+    private final int expectedKeys;
+    private final double falsePositiveRate;
+    private final long ttlMillis;
+    private RedisSubscriber.Subscription subscriber;
+
+    private final AtomicReference<BloomFilter<CharSequence>> filter = new AtomicReference<>();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong inserted = new AtomicLong();
+
+    @Getter private final boolean enabled;
+
+    public ShardNegativeCache(RedisService redis, int expectedKeys, double falsePositiveRate, long ttlMillis) {
+        this.redis = redis;
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        this.ttlMillis = ttlMillis;
+        this.enabled = expectedKeys > 0;
+        if (enabled) {
+            resetLocal();
+            subscriber = redis.subscribe(RESET_CHANNEL, this);
+        }
+    }
+
+    private BloomFilter<CharSequence> current() {
+        if (now() - created.get() > ttlMillis || inserted.get() > expectedKeys) resetLocal();
+        return filter.get();
+    }
+
+    public boolean isKnownAbsent(String key) { return enabled && current().mightContain(key); }
+
+    public void markAbsent(String key) {
+        if (!enabled) return;
+        current().put(key);
+        inserted.incrementAndGet();
+    }
+
+    /** forget every absent key, here and on every peer */
+    public void reset() {
+        if (!enabled) return;
+        resetLocal();
+        try {
+            redis.publish(RESET_CHANNEL, String.valueOf(now()));
+        } catch (Exception e) {
+            log.warn("reset: error publishing reset (peers will reset in at most the cache timeout): "+e);
+        }
+    }
+
+    public void resetLocal() {
+        if (!enabled) return;
+        filter.set(BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedKeys, falsePositiveRate));
+        inserted.set(0);
+        created.set(now());
+    }
+
+    @Override public void onMessage(String channel, String message) { resetLocal(); }
+
+    public void shutdown() { if (subscriber != null) subscriber.shutdown(); }
+
+}
@@ -0,0 +1,45 @@
+package org.cobbzilla.wizard.dao.shard.cache;
+
+import java.util.concurrent.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.wizard.resources.ResourceUtil.timeoutEx;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller runs the loader, and every other caller
+ * that arrives while it is running waits for (and shares) its result instead of loading again.
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentHashMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+
+    public boolean isLoading(String key) { return inFlight.containsKey(key); }
+
+    public V load(String key, Callable<V> loader, long timeoutMillis) {
+        final FutureTask<V> task = new FutureTask<>(loader);
+        final FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+                return result(task, timeoutMillis);
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        return result(existing, timeoutMillis);
+    }
+
+    private V result(FutureTask<V> task, long timeoutMillis) {
+        try {
+            return task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw timeoutEx();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            return die("load: "+e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            return die("load: interrupted");
+        }
+    }
+
+}
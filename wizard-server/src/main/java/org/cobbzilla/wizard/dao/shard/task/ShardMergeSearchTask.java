@@ -0,0 +1,124 @@
+package org.cobbzilla.wizard.dao.shard.task;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.dao.EntityFilter;
+import org.cobbzilla.wizard.dao.shard.ShardSearch;
+import org.cobbzilla.wizard.dao.shard.SimpleShardTask;
+import org.cobbzilla.wizard.dao.shard.SingleShardDAO;
+import org.cobbzilla.wizard.model.shard.Shardable;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.time.TimeUtil.formatDurationFrom;
+
+/**
+ * Streams ordered rows from a single shard into a ShardSearchCursor. The Factory performs the
+ * k-way merge across all shard cursors, so at most maxResults rows are ever returned and each
+ * shard holds at most mergeBufferSize rows ahead of the merge.
+ */
+@Slf4j
+public class ShardMergeSearchTask<E extends Shardable, D extends SingleShardDAO<E>, R> extends SimpleShardTask<E, D, List<R>> {
+
+    @Override public List<R> execTask() {
+        final String prefix = "execTask(" + dao.getShard().getDbName() + "): ";
+        final long start = now();
+        try {
+            if (ownerFilter != null) cursor.setEntityFilter(both(cursor.getEntityFilter(), ownerFilter));
+            dao.scroll(search.getMergeLimitPerShard(), search.getHsql(), search.getArgs(), cursor);
+            cursor.finish();
+        } catch (RuntimeException e) {
+            cursor.fail(e);
+            throw e;
+        }
+        log.info(prefix + "completed in " + formatDurationFrom(start));
+        return Collections.emptyList();
+    }
+
+    private static EntityFilter both(final EntityFilter f1, final EntityFilter f2) {
+        if (f1 == null) return f2;
+        return new EntityFilter() {
+            @Override public boolean isAcceptable(Object row) { return f1.isAcceptable(row) && f2.isAcceptable(row); }
+        };
+    }
+
+    @Override public void cancel() {
+        super.cancel();
+        cursor.close();
+    }
+
+    public static class Factory<E extends Shardable, D extends SingleShardDAO<E>, R> extends ShardTaskFactoryBase<E, D, List<R>> {
+
+        private final ShardSearch search;
+        @Getter private final List<ShardSearchCursor> cursors = new CopyOnWriteArrayList<>();
+
+        public Factory(ShardSearch search) { this.search = search; }
+
+        @Override public ShardMergeSearchTask<E, D, R> newTask(D dao) {
+            final ShardSearchCursor cursor = new ShardSearchCursor(search.getMergeBufferSize(),
+                                                                   search.getMergeLimitPerShard(),
+                                                                   search.getCollector() == null ? null : search.getCollector().getEntityFilter());
+            cursors.add(cursor);
+            return new ShardMergeSearchTask<>(dao, tasks, search, cursor);
+        }
+
+        /**
+         * Merge the heads of all shard cursors until maxResults rows have been returned or every cursor is exhausted.
+         * Cursors are closed as soon as they are exhausted, and all remaining cursors are closed once the page is full.
+         * @param timeout max time to wait for the merge to complete
+         * @return up to search.maxResults rows, ordered by search.comparator
+         */
+        public List<R> merge(long timeout) throws TimeoutException {
+            final long deadline = now() + timeout;
+            final Comparator comparator = search.getComparator();
+            final int maxResults = search.getMaxResults();
+            final PriorityQueue<CursorHead> heap = new PriorityQueue<>(Math.max(cursors.size(), 1), new Comparator<CursorHead>() {
+                @Override public int compare(CursorHead h1, CursorHead h2) { return comparator.compare(h1.row, h2.row); }
+            });
+            final List<R> results = new ArrayList<>(Math.min(maxResults, cursors.size() * search.getMergeBufferSize()));
+            try {
+                for (ShardSearchCursor cursor : cursors) {
+                    final Object row = cursor.next(deadline);
+                    if (row != null) heap.add(new CursorHead(row, cursor));
+                }
+                while (!heap.isEmpty() && results.size() < maxResults) {
+                    final CursorHead head = heap.poll();
+                    results.add((R) head.row);
+                    final Object row = head.cursor.next(deadline);
+                    if (row != null) heap.add(new CursorHead(row, head.cursor));
+                }
+                return results;
+
+            } finally {
+                cancelTasks();
+            }
+        }
+
+        @Override public void cancelTasks() {
+            // tasks that have not started yet are not in the task set, so close every cursor explicitly
+            for (ShardSearchCursor cursor : cursors) cursor.close();
+            super.cancelTasks();
+        }
+
+        @AllArgsConstructor
+        private static class CursorHead {
+            final Object row;
+            final ShardSearchCursor cursor;
+        }
+    }
+
+    private final ShardSearch search;
+    private final ShardSearchCursor cursor;
+
+    public ShardMergeSearchTask(D dao, Set tasks, ShardSearch search, ShardSearchCursor cursor) {
+        super(dao, tasks, cursor);
+        this.search = search;
+        this.cursor = cursor;
+        this.setCustomCollector(true);
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.cobbzilla.wizard.dao.shard.task;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.dao.EntityFilter;
+import org.cobbzilla.wizard.util.ResultCollector;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * A bounded hand-off between a shard query (the producer, reading rows from a database cursor)
+ * and a k-way merge (the consumer). The producer blocks once mergeBufferSize rows are waiting,
+ * and stops reading as soon as the consumer closes the cursor.
+ */
+@Slf4j @Accessors(chain=true)
+public class ShardSearchCursor implements ResultCollector {
+
+    private static final Object END = new Object();
+    private static final long OFFER_INTERVAL = 100;
+
+    private final BlockingQueue<Object> queue;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+
+    @Getter private int maxResults;
+    @Getter private EntityFilter entityFilter;
+
+    public ShardSearchCursor(int bufferSize, int maxResults, EntityFilter entityFilter) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(bufferSize, 1));
+        this.maxResults = maxResults;
+        this.entityFilter = entityFilter;
+    }
+
+    public boolean isClosed() { return closed.get(); }
+
+    @Override public boolean addResult(Object thing) {
+        if (entityFilter != null && !entityFilter.isAcceptable(thing)) return !closed.get();
+        return offer(thing);
+    }
+
+    private boolean offer(Object thing) {
+        try {
+            while (!closed.get()) {
+                if (queue.offer(thing, OFFER_INTERVAL, TimeUnit.MILLISECONDS)) return true;
+            }
+        } catch (InterruptedException e) {
+            log.warn("offer: interrupted, closing cursor");
+            close();
+        }
+        return false;
+    }
+
+    /** called by the producer when it has no more rows */
+    public void finish() { offer(END); }
+
+    /** called by the producer when its query failed */
+    public void fail(Exception e) {
+        error.set(e);
+        finish();
+    }
+
+    /**
+     * Take the next row from the shard.
+     * @param deadline absolute time (epoch millis) after which a TimeoutException is thrown
+     * @return the next row, or null if the shard has no more rows
+     */
+    public Object next(long deadline) throws TimeoutException {
+        if (closed.get()) return null;
+        final Object thing;
+        try {
+            thing = queue.poll(Math.max(deadline - now(), 0), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return die("next: interrupted");
+        }
+        if (thing == null) throw new TimeoutException("next: timed out waiting for shard results");
+        if (thing == END) {
+            close();
+            if (error.get() != null) return die("next: shard query failed: "+error.get(), error.get());
+            return null;
+        }
+        return thing;
+    }
+
+    /** called by the consumer when this shard can no longer contribute; the producer will stop reading */
+    public void close() {
+        closed.set(true);
+        queue.clear();
+    }
+
+    @Override public List getResults() { return notSupported("getResults: results are consumed via next"); }
+    @Override public int size() { return queue.size(); }
+
+    @Override public ResultCollector setEntityFilter(EntityFilter filter) { this.entityFilter = filter; return this; }
+    @Override public ResultCollector setMaxResults(int max) { this.maxResults = max; return this; }
+
+    @Override public List await(List<Future<List>> futures, long timeout) throws TimeoutException {
+        return notSupported("await: use ShardMergeSearchTask.Factory.merge");
+    }
+
+}
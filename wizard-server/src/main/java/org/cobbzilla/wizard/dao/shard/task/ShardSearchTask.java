@@ -24,6 +24,7 @@ public class ShardSearchTask <E extends Shardable, D extends SingleShardDAO<E>,
         final ResultCollector collector = search.getCollector();
         final List results = dao.query(search.getMaxResultsPerShard(), search.getHsql(), search.getArgs());
         for (Object entity : results) {
+            if (!isOwned(entity)) continue;
             if (cancelled.get()) {
                 log.info(prefix+"cancelled from another thread, stopping search");
                 break;
@@ -39,6 +40,9 @@ public class ShardSearchTask <E extends Shardable, D extends SingleShardDAO<E>,
         return sorted;
     }
 
+    // rows are filtered as they are collected; the result is the shared collector's, holding other shards' rows too
+    @Override protected Object filterOwned(Object result) { return result; }
+
     @AllArgsConstructor
     public static class Factory extends ShardTaskFactoryBase {
         private ShardSearch search;
@@ -1,20 +1,23 @@
 package org.cobbzilla.wizard.dao.shard.task;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.dao.EntityFilter;
 import org.cobbzilla.wizard.dao.shard.SingleShardDAO;
 import org.cobbzilla.wizard.model.shard.Shardable;
 import org.cobbzilla.wizard.util.ResultCollector;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 
-@AllArgsConstructor @Slf4j
+@Slf4j
 public abstract class ShardTask<E extends Shardable, D extends SingleShardDAO<E>, R> implements Callable, Comparable {
 
     protected D dao;
@@ -22,8 +25,18 @@ public abstract class ShardTask<E extends Shardable, D extends SingleShardDAO<E>
     protected ResultCollector resultCollector;
     @Getter @Setter private boolean customCollector = false;
 
+    // during a fan-out, rows the shard returns but does not answer for (see ShardReadTarget) are dropped
+    @Getter @Setter protected EntityFilter ownerFilter;
+
     protected final AtomicBoolean cancelled = new AtomicBoolean(false);
 
+    public ShardTask(D dao, Set<ShardTask<E, D, R>> tasks, ResultCollector resultCollector, boolean customCollector) {
+        this.dao = dao;
+        this.tasks = tasks;
+        this.resultCollector = resultCollector;
+        this.customCollector = customCollector;
+    }
+
     protected void cancelTasks() {
         if (tasks != null) for (ShardTask task : tasks) task.cancel();
     }
@@ -42,7 +55,7 @@ public abstract class ShardTask<E extends Shardable, D extends SingleShardDAO<E>
             if (!canBegin()) {
                 return die("call: canBegin returned false");
             } else {
-                rval = execTask();
+                rval = filterOwned(execTask());
                 if (!customCollector && resultCollector != null) resultCollector.addResult(rval);
             }
         } catch (Exception e) {
@@ -56,6 +69,19 @@ public abstract class ShardTask<E extends Shardable, D extends SingleShardDAO<E>
 
     protected abstract Object execTask();
 
+    protected boolean isOwned(Object row) { return ownerFilter == null || ownerFilter.isAcceptable(row); }
+
+    /** @return the task's result without the rows it does not answer for: a filtered list, or null for an unowned row */
+    protected Object filterOwned(Object result) {
+        if (ownerFilter == null || result == null) return result;
+        if (result instanceof Collection) {
+            final List kept = new ArrayList();
+            for (Object row : (Collection) result) if (isOwned(row)) kept.add(row);
+            return kept;
+        }
+        return isOwned(result) ? result : null;
+    }
+
     // for some reason Future.get wants this to be Comparable
     @Override public int compareTo(Object o) { return this.hashCode() - o.hashCode(); }
 
@@ -2,12 +2,14 @@ package org.cobbzilla.wizard.dao.sql;
 
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Converter;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.reflect.ReflectionUtil;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.cobbzilla.wizard.server.config.DatabaseConfiguration;
+import org.cobbzilla.wizard.util.PropertyAccessors;
 import org.hibernate.*;
 import org.hibernate.transform.ResultTransformer;
 import org.hibernate.type.ObjectType;
@@ -54,6 +56,37 @@ public class ObjectSQLQuery<E extends Identifiable> implements Query, Closeable
         return exemplars.get(name);
     }
 
+    // column bindings by entity class and column names, so each result shape is resolved only once
+    private static final Map<String, ColumnBinding[]> bindings = new ConcurrentHashMap<>();
+
+    private ColumnBinding[] getBindings (ResultSetMetaData metaData) throws SQLException {
+        final int count = metaData.getColumnCount();
+        final StringBuilder key = new StringBuilder(entityClass.getName());
+        for (int i=1; i<=count; i++) key.append('|').append(metaData.getColumnName(i));
+
+        ColumnBinding[] columns = bindings.get(key.toString());
+        if (columns == null) {
+            final Map<String, SQLFieldTransformer> transformers = getTransformers();
+            final PropertyAccessors accessors = PropertyAccessors.forClass(entityClass);
+            columns = new ColumnBinding[count];
+            for (int i=1; i<=count; i++) {
+                final String columnName = metaData.getColumnName(i);
+                final SQLFieldTransformer transformer = transformers.get(columnName);
+                final String fieldName = transformer != null ? columnName : FIELD_NAME_CONVERTER.convert(columnName);
+                columns[i-1] = new ColumnBinding(i, transformer, accessors.setter(fieldName));
+            }
+            bindings.put(key.toString(), columns);
+        }
+        return columns;
+    }
+
+    @AllArgsConstructor
+    private static class ColumnBinding {
+        private final int index;
+        private final SQLFieldTransformer transformer;
+        private final PropertyAccessors.Setter setter;
+    }
+
     @Getter private Integer maxResults;
     @Getter private Integer firstResult;
     @Getter private Integer fetchSize;
@@ -121,7 +154,45 @@ public class ObjectSQLQuery<E extends Identifiable> implements Query, Closeable
 
     @Override public String[] getNamedParameters() { return new String[0]; }
 
-    @Override public Iterator iterate() { return notSupported(); }
+    /**
+     * Lazily reads rows from the ResultSet. The caller must close this query when done iterating,
+     * which also releases the underlying cursor and connection.
+     */
+    @Override public Iterator iterate() {
+        try {
+            initStatement();
+            if (fetchSize != null) statement.setFetchSize(fetchSize);
+            resultSet = statement.executeQuery();
+            final ColumnBinding[] columns = getBindings(resultSet.getMetaData());
+            return new Iterator<E>() {
+                private Boolean hasNext = null;
+                @Override public boolean hasNext() {
+                    if (hasNext == null) {
+                        try {
+                            hasNext = resultSet.next();
+                        } catch (SQLException e) {
+                            return die("iterate.hasNext: "+e, e);
+                        }
+                    }
+                    return hasNext;
+                }
+                @Override public E next() {
+                    if (!hasNext()) throw new NoSuchElementException("iterate.next: no more rows");
+                    hasNext = null;
+                    try {
+                        return rowToObject(resultSet, columns);
+                    } catch (Exception e) {
+                        return die("iterate.next: "+e, e);
+                    }
+                }
+                @Override public void remove() { notSupported("iterate.remove"); }
+            };
+
+        } catch (Exception e) {
+            return die("iterate: "+e, e);
+        }
+    }
+
     @Override public ScrollableResults scroll() { return notSupported(); }
     @Override public ScrollableResults scroll(ScrollMode scrollMode) { return notSupported(); }
 
@@ -131,9 +202,9 @@ public class ObjectSQLQuery<E extends Identifiable> implements Query, Closeable
             resultSet = statement.executeQuery();
 
             final List<E> results = new ArrayList<>();
-            final ResultSetMetaData metaData = resultSet.getMetaData();
+            final ColumnBinding[] columns = getBindings(resultSet.getMetaData());
             while (resultSet.next()) {
-                results.add(rowToObject(resultSet, metaData));
+                results.add(rowToObject(resultSet, columns));
             }
             return results;
 
@@ -151,22 +222,18 @@ public class ObjectSQLQuery<E extends Identifiable> implements Query, Closeable
         }
     }
 
-    private E rowToObject(ResultSet resultSet, ResultSetMetaData metaData) throws Exception {
+    private E rowToObject(ResultSet resultSet, ColumnBinding[] columns) throws Exception {
         final E object = instantiate(entityClass);
 
-        for (int i=1; i<=metaData.getColumnCount(); i++) {
-            final Object columnVal = resultSet.getObject(i);
+        for (ColumnBinding column : columns) {
+            final Object columnVal = resultSet.getObject(column.index);
             if (columnVal == null) continue;
 
-            final String columnName = metaData.getColumnName(i);
-            final SQLFieldTransformer transformer = getTransformers().get(columnName);
-
-            if (transformer != null) {
-                final Object value = transformer.sqlToObject(object, columnVal);
-                if (value != null) ReflectionUtil.set(object, columnName, value);
+            if (column.transformer != null) {
+                final Object value = column.transformer.sqlToObject(object, columnVal);
+                if (value != null) column.setter.set(object, value);
             } else {
-                final String fieldName = FIELD_NAME_CONVERTER.convert(columnName);
-                ReflectionUtil.set(object, fieldName, columnVal);
+                column.setter.set(object, columnVal);
             }
         }
         return object;
@@ -0,0 +1,14 @@
+package org.cobbzilla.wizard.dao.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time. The ResultSet is positioned on the current row
+ * and must not be advanced or closed by the handler.
+ */
+public interface SQLRowHandler {
+
+    void row(ResultSet rs) throws SQLException;
+
+}
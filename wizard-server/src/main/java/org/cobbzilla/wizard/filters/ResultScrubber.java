@@ -4,12 +4,11 @@ import com.sun.jersey.spi.container.ContainerRequest;
 import com.sun.jersey.spi.container.ContainerResponse;
 import com.sun.jersey.spi.container.ContainerResponseFilter;
 import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.util.reflect.ReflectionUtil;
+import org.cobbzilla.wizard.util.PropertyAccessors;
 
 import java.util.Collection;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
-import static org.cobbzilla.util.reflect.ReflectionUtil.setNull;
 
 @Slf4j
 public abstract class ResultScrubber implements ContainerResponseFilter {
@@ -37,7 +36,8 @@ public abstract class ResultScrubber implements ContainerResponseFilter {
                         } else {
                             boolean recurse = field.name.endsWith(".*");
                             final String fieldName = recurse ? field.name.substring(0, field.name.length() - ".*".length()) : field.name;
-                            final Object thing = ReflectionUtil.get(entity, fieldName);
+                            final PropertyAccessors accessors = PropertyAccessors.forClass(entity.getClass());
+                            final Object thing = accessors.getter(fieldName).get(entity);
                             if (thing == null) continue;
                             if (!field.type.isAssignableFrom(thing.getClass()))
                                 die("scrub: incompatible types: " + thing.getClass().getName() + ", " + field.type.getName());
@@ -59,11 +59,11 @@ public abstract class ResultScrubber implements ContainerResponseFilter {
                                     die("scrub: neither collection nor array: " + fieldName + " (was " + thing.getClass() + ")");
                                 }
                             } else {
-                                setNull(entity, field.name, field.type);
+                                accessors.setter(field.name).setNull(entity, field.type);
                             }
                         }
                     } catch (Exception e) {
-                        log.warn("filter: Error calling ReflectionUtil.setNull(" + entity + ", " + field.name + ", " + field.type.getName() + "): " + e);
+                        log.warn("filter: Error calling setNull(" + entity + ", " + field.name + ", " + field.type.getName() + "): " + e);
                     }
                 }
             }
@@ -7,7 +7,10 @@ public class AnonScrubMain<OPT extends AnonScrubOptions> extends BaseMain<OPT> {
 
     @Override protected void run() throws Exception {
         final OPT options = getOptions();
-        final AnonScrubber scrubber = new AnonScrubber().setTables(options.getScrubs());
+        final AnonScrubber scrubber = new AnonScrubber()
+                .setTables(options.getScrubs())
+                .setParallelism(options.getParallelism())
+                .setBatchSize(options.getBatchSize());
         scrubber.anonymize(options.getDatabaseReadConfiguration(),
                            options.getDatabaseWriteConfiguration(),
                            options.isIgnoreUnknown());
@@ -2,6 +2,7 @@ package org.cobbzilla.wizard.main;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.cobbzilla.wizard.model.anon.AnonScrubber;
 import org.cobbzilla.wizard.model.anon.AnonTable;
 import org.kohsuke.args4j.Option;
 
@@ -22,6 +23,18 @@ public abstract class AnonScrubOptions extends DbMainOptions {
     @Option(name=OPT_SCRUB_FILE, aliases=LONGOPT_SCRUB_FILE, usage=USAGE_SCRUB_FILE)
     @Getter @Setter private File scrubFile = null;
 
+    public static final String USAGE_PARALLELISM = "Number of threads scrubbing each table, each with its own database connections. Default is "+AnonScrubber.DEFAULT_PARALLELISM;
+    public static final String OPT_PARALLELISM = "-P";
+    public static final String LONGOPT_PARALLELISM= "--parallelism";
+    @Option(name=OPT_PARALLELISM, aliases=LONGOPT_PARALLELISM, usage=USAGE_PARALLELISM)
+    @Getter @Setter private int parallelism = AnonScrubber.DEFAULT_PARALLELISM;
+
+    public static final String USAGE_BATCH_SIZE = "Rows per update batch and per commit. Default is "+AnonScrubber.DEFAULT_BATCH_SIZE;
+    public static final String OPT_BATCH_SIZE = "-B";
+    public static final String LONGOPT_BATCH_SIZE= "--batch-size";
+    @Option(name=OPT_BATCH_SIZE, aliases=LONGOPT_BATCH_SIZE, usage=USAGE_BATCH_SIZE)
+    @Getter @Setter private int batchSize = AnonScrubber.DEFAULT_BATCH_SIZE;
+
     public AnonTable[] getScrubs() {
         final String json = scrubFile != null ? toStringOrDie(scrubFile) : stream2string(DEFAULT_SCRUB_RESOURCE);
         return json(json, AnonTable[].class, FULL_MAPPER_ALLOW_COMMENTS);
@@ -1,12 +1,30 @@
 package org.cobbzilla.wizard.main;
 
 import lombok.Cleanup;
+import org.apache.commons.codec.binary.Hex;
 import org.cobbzilla.util.main.BaseMain;
+import org.cobbzilla.wizard.server.config.DatabaseConfiguration;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
 
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.io.FileUtil.*;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.time.TimeUtil.formatDurationFrom;
 
 public class CsvDumpMain<OPT extends CsvDumpOptions> extends BaseMain<OPT> {
 
@@ -35,9 +53,37 @@ public class CsvDumpMain<OPT extends CsvDumpOptions> extends BaseMain<OPT> {
             "end;\n" +
             "$$ LANGUAGE plpgsql;";
 
+    public static final String LIST_TABLES
+            = "SELECT (table_schema || '.' || table_name) AS schema_table " +
+            "FROM information_schema.tables t INNER JOIN information_schema.schemata s " +
+            "ON s.schema_name = t.table_schema " +
+            "WHERE t.table_schema NOT IN ('pg_catalog', 'information_schema', 'configuration') " +
+            "AND t.table_type NOT IN ('VIEW') " +
+            "ORDER BY schema_table";
+
+    // foreign keys as (referencing table, referenced table), named like LIST_TABLES names them
+    public static final String LIST_FOREIGN_KEYS
+            = "SELECT (cn.nspname || '.' || c.relname), (fn.nspname || '.' || f.relname) " +
+            "FROM pg_constraint k " +
+            "JOIN pg_class c ON c.oid = k.conrelid JOIN pg_namespace cn ON cn.oid = c.relnamespace " +
+            "JOIN pg_class f ON f.oid = k.confrelid JOIN pg_namespace fn ON fn.oid = f.relnamespace " +
+            "WHERE k.contype = 'f'";
+
+    public static final String MANIFEST = "manifest.json";
+    public static final String COPY_OPTIONS = " DELIMITER ';' CSV HEADER";
+    private static final int IO_BUFFER = 64 * 1024;
+
     @Override protected void run() throws Exception {
         final OPT options = getOptions();
+        switch (options.getMode()) {
+            case server:  serverDump(options); break;
+            case dump:    dump(options); break;
+            case restore: restore(options); break;
+            default: die("run: invalid mode: "+options.getMode());
+        }
+    }
 
+    protected void serverDump(OPT options) throws Exception {
         final String tableClause = options.hasTables() ? " AND t.table_name IN (" + options.getTableValues() + ")" : "";
         final String funcSql = CSV_DUMP_FUNCTION.replace(SUBST_TABLES, tableClause);
         @Cleanup final Connection c = options.getDatabaseConfiguration().getDatabase().getConnection();
@@ -47,4 +93,215 @@ public class CsvDumpMain<OPT extends CsvDumpOptions> extends BaseMain<OPT> {
         ds.execute();
     }
 
+    /**
+     * Stream each table to a local file with COPY TO STDOUT, several tables at a time. Every connection
+     * reads the same exported snapshot, so the files are consistent with each other.
+     */
+    protected void dump(OPT options) throws Exception {
+        final long start = now();
+        final DatabaseConfiguration db = options.getDatabaseConfiguration().getDatabase();
+        final File dir = mkdirOrDie(options.getOutputDir());
+        final boolean gzip = !options.isNoGzip();
+
+        @Cleanup final Connection coordinator = db.getConnection();
+        coordinator.setAutoCommit(false);
+        coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        final List<String> tables = listTables(coordinator, options);
+        final String snapshot;
+        {
+            @Cleanup final PreparedStatement s = coordinator.prepareStatement("SELECT pg_export_snapshot()");
+            @Cleanup final ResultSet rs = s.executeQuery();
+            snapshot = rs.next() ? rs.getString(1) : die("dump: pg_export_snapshot returned nothing");
+        }
+
+        final List<CsvDumpTable> manifest = runAll(options, tables, new TableTask() {
+            @Override public CsvDumpTable run(String table) throws Exception {
+                return dumpTable(db, snapshot, table, new File(dir, table + (gzip ? ".csv.gz" : ".csv")), gzip);
+            }
+        });
+        coordinator.commit();
+
+        toFileOrDie(new File(dir, MANIFEST), toJsonOrDie(manifest));
+        err("dump: wrote "+manifest.size()+" tables to "+abs(dir)+" in "+formatDurationFrom(start));
+    }
+
+    protected CsvDumpTable dumpTable(DatabaseConfiguration db, String snapshot, String table, File file, boolean gzip) throws Exception {
+        final long start = now();
+        @Cleanup final Connection c = db.getConnection();
+        c.setAutoCommit(false);
+        {
+            @Cleanup final PreparedStatement s = c.prepareStatement("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            s.execute();
+            @Cleanup final PreparedStatement snap = c.prepareStatement("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            snap.execute();
+        }
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final long[] bytes = {0};
+        final long rows;
+        try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER);
+             OutputStream compressed = gzip ? new GZIPOutputStream(fileOut, IO_BUFFER) : fileOut;
+             OutputStream csvOut = new DigestOutputStream(new FilterOutputStream(compressed) {
+                 @Override public void write(int b) throws IOException { out.write(b); bytes[0]++; }
+                 @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); bytes[0] += len; }
+             }, digest)) {
+            rows = new CopyManager((BaseConnection) c).copyOut("COPY " + table + " TO STDOUT" + COPY_OPTIONS, csvOut);
+        }
+        c.commit();
+        err("dump: "+table+": "+rows+" rows in "+formatDurationFrom(start));
+        return new CsvDumpTable()
+                .setTable(table)
+                .setFile(file.getName())
+                .setRows(rows)
+                .setSha256(Hex.encodeHexString(digest.digest()))
+                .setBytes(bytes[0])
+                .setMillis(now() - start);
+    }
+
+    /**
+     * Load the files listed in the manifest with COPY FROM STDIN, in foreign key order: a table is only loaded once
+     * every table it references has been, and tables that do not depend on each other are loaded several at a time.
+     * Each table is loaded in its own transaction, which is rolled back if the row count or checksum differs from
+     * the manifest. Tables whose foreign keys form a cycle are loaded last, together in one transaction with
+     * SET CONSTRAINTS ALL DEFERRED; that only works if those constraints are DEFERRABLE.
+     */
+    protected void restore(OPT options) throws Exception {
+        final long start = now();
+        final DatabaseConfiguration db = options.getDatabaseConfiguration().getDatabase();
+        final File dir = options.getOutputDir();
+        final CsvDumpTable[] entries = fromJsonOrDie(toStringOrDie(new File(dir, MANIFEST)), CsvDumpTable[].class);
+
+        final Map<String, CsvDumpTable> byTable = new LinkedHashMap<>();
+        final List<String> only = options.getTableList();
+        for (CsvDumpTable entry : entries) {
+            if (only.isEmpty() || only.contains(entry.getTable()) || only.contains(entry.getTable().substring(entry.getTable().indexOf('.')+1))) {
+                byTable.put(entry.getTable(), entry);
+            }
+        }
+
+        final Map<String, Set<String>> dependsOn;
+        {
+            @Cleanup final Connection c = db.getConnection();
+            dependsOn = listDependencies(c, byTable.keySet());
+        }
+
+        int count = 0;
+        final Set<String> remaining = new LinkedHashSet<>(byTable.keySet());
+        while (!remaining.isEmpty()) {
+            final List<String> ready = new ArrayList<>();
+            for (String table : remaining) {
+                if (Collections.disjoint(dependsOn.get(table), remaining)) ready.add(table);
+            }
+            if (ready.isEmpty()) {
+                final List<CsvDumpTable> cycle = new ArrayList<>();
+                for (String table : remaining) cycle.add(byTable.get(table));
+                err("restore: foreign keys form a cycle between "+remaining+", loading them together with deferred constraints");
+                count += restoreTogether(db, cycle, dir).size();
+                break;
+            }
+            count += runAll(options, ready, new TableTask() {
+                @Override public CsvDumpTable run(String table) throws Exception {
+                    return restoreTable(db, byTable.get(table), new File(dir, byTable.get(table).getFile()));
+                }
+            }).size();
+            remaining.removeAll(ready);
+        }
+        err("restore: loaded "+count+" tables from "+abs(dir)+" in "+formatDurationFrom(start));
+    }
+
+    /** @return for each table, the other tables (among those given) that it references */
+    protected Map<String, Set<String>> listDependencies(Connection c, Collection<String> tables) throws Exception {
+        final Map<String, Set<String>> dependsOn = new HashMap<>();
+        for (String table : tables) dependsOn.put(table, new HashSet<String>());
+        @Cleanup final PreparedStatement s = c.prepareStatement(LIST_FOREIGN_KEYS);
+        @Cleanup final ResultSet rs = s.executeQuery();
+        while (rs.next()) {
+            final String table = rs.getString(1);
+            final String referenced = rs.getString(2);
+            // a self-reference is checked at the end of the COPY, so it does not constrain the order
+            if (table.equals(referenced) || !dependsOn.containsKey(table) || !dependsOn.containsKey(referenced)) continue;
+            dependsOn.get(table).add(referenced);
+        }
+        return dependsOn;
+    }
+
+    protected CsvDumpTable restoreTable(DatabaseConfiguration db, CsvDumpTable entry, File file) throws Exception {
+        final long start = now();
+        @Cleanup final Connection c = db.getConnection();
+        c.setAutoCommit(false);
+        copyIn(c, entry, file);
+        c.commit();
+        err("restore: "+entry.getTable()+": "+entry.getRows()+" rows in "+formatDurationFrom(start));
+        return entry;
+    }
+
+    protected List<CsvDumpTable> restoreTogether(DatabaseConfiguration db, List<CsvDumpTable> entries, File dir) throws Exception {
+        final long start = now();
+        @Cleanup final Connection c = db.getConnection();
+        c.setAutoCommit(false);
+        {
+            @Cleanup final PreparedStatement s = c.prepareStatement("SET CONSTRAINTS ALL DEFERRED");
+            s.execute();
+        }
+        for (CsvDumpTable entry : entries) copyIn(c, entry, new File(dir, entry.getFile()));
+        c.commit();
+        err("restore: "+entries.size()+" tables in "+formatDurationFrom(start));
+        return entries;
+    }
+
+    // rolls back the connection's transaction if the rows or checksum differ from the manifest
+    private void copyIn(Connection c, CsvDumpTable entry, File file) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final long rows;
+        try (InputStream fileIn = new BufferedInputStream(new FileInputStream(file), IO_BUFFER);
+             InputStream uncompressed = file.getName().endsWith(".gz") ? new GZIPInputStream(fileIn, IO_BUFFER) : fileIn;
+             InputStream csvIn = new DigestInputStream(uncompressed, digest)) {
+            rows = new CopyManager((BaseConnection) c).copyIn("COPY " + entry.getTable() + " FROM STDIN" + COPY_OPTIONS, csvIn);
+        }
+        final String sha256 = Hex.encodeHexString(digest.digest());
+        if (rows != entry.getRows() || !sha256.equals(entry.getSha256())) {
+            c.rollback();
+            die("restore: "+entry.getTable()+": expected "+entry.getRows()+" rows with sha256 "+entry.getSha256()
+                    +", found "+rows+" rows with sha256 "+sha256+", rolled back");
+        }
+    }
+
+    protected List<String> listTables(Connection c, OPT options) throws Exception {
+        final List<String> only = options.getTableList();
+        final List<String> tables = new ArrayList<>();
+        @Cleanup final PreparedStatement s = c.prepareStatement(LIST_TABLES);
+        @Cleanup final ResultSet rs = s.executeQuery();
+        while (rs.next()) {
+            final String table = rs.getString(1);
+            if (only.isEmpty() || only.contains(table) || only.contains(table.substring(table.indexOf('.')+1))) tables.add(table);
+        }
+        return tables;
+    }
+
+    private interface TableTask { CsvDumpTable run(String table) throws Exception; }
+
+    private List<CsvDumpTable> runAll(OPT options, List<String> tables, final TableTask task) throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(options.getParallelism(), tables.size())));
+        try {
+            final List<Future<CsvDumpTable>> futures = new ArrayList<>();
+            for (final String table : tables) {
+                futures.add(pool.submit(new Callable<CsvDumpTable>() {
+                    @Override public CsvDumpTable call() throws Exception { return task.run(table); }
+                }));
+            }
+            final List<CsvDumpTable> results = new ArrayList<>();
+            for (Future<CsvDumpTable> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    for (Future<CsvDumpTable> other : futures) other.cancel(true);
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            return results;
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
 }
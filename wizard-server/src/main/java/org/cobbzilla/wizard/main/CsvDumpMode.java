@@ -0,0 +1,18 @@
+package org.cobbzilla.wizard.main;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+public enum CsvDumpMode {
+
+    /** COPY every table to files on the database server's own filesystem (requires superuser) */
+    server,
+
+    /** stream every table to local compressed files with COPY TO STDOUT, and write a manifest */
+    dump,
+
+    /** load local files written by dump with COPY FROM STDIN, verifying them against the manifest */
+    restore;
+
+    @JsonCreator public static CsvDumpMode create (String val) { return valueOf(val.toLowerCase()); }
+
+}
@@ -6,6 +6,8 @@ import org.cobbzilla.util.string.StringUtil;
 import org.kohsuke.args4j.Option;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
@@ -17,14 +19,34 @@ public abstract class CsvDumpOptions extends DbMainOptions {
     @Option(name=OPT_OUTPUT_DIR, aliases=LONGOPT_OUTPUT_DIR, usage=USAGE_OUTPUT_DIR)
     @Getter @Setter private File outputDir = new File(System.getProperty("user.dir"));
 
-    public static final String USAGE_TABLES = "Output directory. Default is current directory";
-    public static final String OPT_TABLES = "-o";
-    public static final String LONGOPT_TABLES= "--output-dir";
+    public static final String USAGE_TABLES = "Tables to dump or restore, separated by commas or spaces. Default is all tables";
+    public static final String OPT_TABLES = "-t";
+    public static final String LONGOPT_TABLES= "--tables";
     @Option(name=OPT_TABLES, aliases=LONGOPT_TABLES, usage=USAGE_TABLES)
     @Getter @Setter private String tables;
 
+    public static final String USAGE_MODE = "server: COPY to files on the database server. dump: stream to local compressed files. restore: load files written by dump. Default is server";
+    public static final String OPT_MODE = "-m";
+    public static final String LONGOPT_MODE= "--mode";
+    @Option(name=OPT_MODE, aliases=LONGOPT_MODE, usage=USAGE_MODE)
+    @Getter @Setter private CsvDumpMode mode = CsvDumpMode.server;
+
+    public static final String USAGE_PARALLELISM = "Number of tables dumped or restored at once, each on its own connection. Default is 4";
+    public static final String OPT_PARALLELISM = "-P";
+    public static final String LONGOPT_PARALLELISM= "--parallelism";
+    @Option(name=OPT_PARALLELISM, aliases=LONGOPT_PARALLELISM, usage=USAGE_PARALLELISM)
+    @Getter @Setter private int parallelism = 4;
+
+    public static final String USAGE_NO_GZIP = "Do not gzip dumped files. By default they are compressed";
+    public static final String OPT_NO_GZIP = "-Z";
+    public static final String LONGOPT_NO_GZIP= "--no-gzip";
+    @Option(name=OPT_NO_GZIP, aliases=LONGOPT_NO_GZIP, usage=USAGE_NO_GZIP)
+    @Getter @Setter private boolean noGzip = false;
+
     public boolean hasTables () { return !empty(tables); }
 
+    public List<String> getTableList() { return hasTables() ? StringUtil.split(tables, ", ") : new ArrayList<String>(); }
+
     public String getTableValues() {
         final StringBuilder b = new StringBuilder();
         for (String table : StringUtil.split(tables, ", ")) {
@@ -0,0 +1,21 @@
+package org.cobbzilla.wizard.main;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/** one entry in the manifest written by CsvDumpMain: a table, its file, and what was in it */
+@NoArgsConstructor @Accessors(chain=true)
+public class CsvDumpTable {
+
+    @Getter @Setter private String table;
+    @Getter @Setter private String file;
+    @Getter @Setter private long rows;
+
+    // sha256 of the uncompressed CSV
+    @Getter @Setter private String sha256;
+    @Getter @Setter private long bytes;
+    @Getter @Setter private long millis;
+
+}
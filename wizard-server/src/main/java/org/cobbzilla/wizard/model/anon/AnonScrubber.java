@@ -1,5 +1,6 @@
 package org.cobbzilla.wizard.model.anon;
 
+import lombok.AllArgsConstructor;
 import lombok.Cleanup;
 import lombok.Getter;
 import lombok.Setter;
@@ -13,27 +14,39 @@ import org.jasypt.hibernate4.encryptor.HibernatePBEStringEncryptor;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
-import static org.cobbzilla.util.jdbc.ResultSetBean.row2map;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.time.TimeUtil.formatDurationFrom;
 import static org.cobbzilla.wizard.model.ModelCryptUtil.getCryptor;
 
+/**
+ * Scrubs tables in place. Each table is split into up to parallelism ranges of its id column; each range
+ * is read through a server-side cursor and rewritten with batched updates on its own pair of connections,
+ * committing every batchSize rows.
+ */
 @Accessors(chain=true) @Slf4j
 public class AnonScrubber {
 
+    public static final int DEFAULT_PARALLELISM = 1;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
     @Getter @Setter private AnonTable[] tables;
+    @Getter @Setter private int parallelism = DEFAULT_PARALLELISM;
+    @Getter @Setter private int batchSize = DEFAULT_BATCH_SIZE;
 
     public void anonymize(HasDatabaseConfiguration readConfig,
                           HasDatabaseConfiguration writeConfig,
                           boolean ignoreUnknown) {
 
-        final HibernatePBEStringEncryptor decryptor = getCryptor(readConfig);
-        final HibernatePBEStringEncryptor encryptor = getCryptor(writeConfig);
-
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(parallelism, 1));
         try {
             @Cleanup final Connection connection = readConfig.getDatabase().getConnection();
             for (AnonTable table : tables) {
@@ -72,34 +85,156 @@ public class AnonScrubber {
                             continue;
                         }
                     }
-                    @Cleanup final PreparedStatement s = connection.prepareStatement(table.sqlSelect());
-                    @Cleanup final ResultSet rs = s.executeQuery();
-                    final ResultSetMetaData rsMetaData = rs.getMetaData();
-                    final int numColumns = rsMetaData.getColumnCount();
-                    final AnonColumn[] columns = table.getColumns();
-                    while (rs.next()) {
-                        final Map<String, Object> row = row2map(rs, rsMetaData, numColumns);
-                        @Cleanup final PreparedStatement update = connection.prepareStatement(table.sqlUpdate());
-                        for (int i=0; i <columns.length; i++) {
-                            final AnonColumn col = columns[i];
-                            final Object value = row.get(col.getName());
-                            try {
-                                col.setParam(update, decryptor, encryptor, i + 1, value == null ? null : value);
-                            } catch (Exception e) {
-                                final String errColumn = table + "." + col;
-                                die("anonymize: error handling table.column: " + errColumn, e);
-                            }
-                        }
-                        update.setString(columns.length + 1, row.get("uuid").toString());
-                        if (update.executeUpdate() != 1) {
-                            die("anonymize: error updating");
-                        }
-                    }
+                    anonymizeTable(pool, connection, table, readConfig, writeConfig);
                 }
             }
 
         } catch (Exception e) {
             die("anonymize: error scrubbing: "+e, e);
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void anonymizeTable(ExecutorService pool,
+                                Connection connection,
+                                AnonTable table,
+                                HasDatabaseConfiguration readConfig,
+                                HasDatabaseConfiguration writeConfig) throws Exception {
+        final long start = now();
+        final long total = count(connection, table);
+        final List<Object> bounds = partitionBounds(connection, table, total);
+        final TableProgress progress = new TableProgress(table.getTable(), total);
+
+        final List<Future<Long>> futures = new ArrayList<>();
+        for (int i=0; i<=bounds.size(); i++) {
+            final Object from = i == 0 ? null : bounds.get(i-1);
+            final Object to = i == bounds.size() ? null : bounds.get(i);
+            futures.add(pool.submit(new PartitionScrubber(table, from, to, readConfig, writeConfig, progress)));
+        }
+        try {
+            for (Future<Long> f : futures) f.get();
+        } catch (ExecutionException e) {
+            for (Future<Long> f : futures) f.cancel(true);
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        log.info("anonymize: "+table.getTable()+": scrubbed "+progress.done.get()+" rows in "+formatDurationFrom(start));
+    }
+
+    private long count(Connection connection, AnonTable table) throws Exception {
+        @Cleanup final PreparedStatement s = connection.prepareStatement("SELECT COUNT(*) FROM "+table.getTable());
+        @Cleanup final ResultSet rs = s.executeQuery();
+        return rs.next() ? rs.getLong(1) : 0;
+    }
+
+    // ids splitting the table into roughly equal ranges: partition i covers [bounds[i-1], bounds[i])
+    private List<Object> partitionBounds(Connection connection, AnonTable table, long total) throws Exception {
+        final List<Object> bounds = new ArrayList<>();
+        final long partitions = Math.min(Math.max(parallelism, 1), Math.max(total / Math.max(batchSize, 1), 1));
+        if (partitions <= 1) return bounds;
+        final String id = table.getId();
+        @Cleanup final PreparedStatement s = connection.prepareStatement("SELECT "+id+" FROM "+table.getTable()+" ORDER BY "+id+" OFFSET ? LIMIT 1");
+        for (long i=1; i<partitions; i++) {
+            s.setLong(1, i * total / partitions);
+            @Cleanup final ResultSet rs = s.executeQuery();
+            if (rs.next()) {
+                final Object bound = rs.getObject(1);
+                if (bounds.isEmpty() || !bounds.get(bounds.size()-1).equals(bound)) bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+
+    @AllArgsConstructor
+    private class PartitionScrubber implements Callable<Long> {
+
+        private final AnonTable table;
+        private final Object from;
+        private final Object to;
+        private final HasDatabaseConfiguration readConfig;
+        private final HasDatabaseConfiguration writeConfig;
+        private final TableProgress progress;
+
+        @Override public Long call() throws Exception {
+            // jasypt encryptors synchronize internally, so each worker gets its own
+            final HibernatePBEStringEncryptor decryptor = getCryptor(readConfig);
+            final HibernatePBEStringEncryptor encryptor = getCryptor(writeConfig);
+            final AnonColumn[] columns = table.getColumns();
+
+            // the cursor and the updates use separate connections, so commits do not close the cursor
+            @Cleanup final Connection reader = readConfig.getDatabase().getConnection();
+            @Cleanup final Connection writer = readConfig.getDatabase().getConnection();
+            reader.setAutoCommit(false);
+            writer.setAutoCommit(false);
+
+            @Cleanup final PreparedStatement select = reader.prepareStatement(sqlSelect(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            select.setFetchSize(batchSize);
+            int param = 1;
+            if (from != null) select.setObject(param++, from);
+            if (to != null) select.setObject(param, to);
+
+            @Cleanup final PreparedStatement update = writer.prepareStatement(table.sqlUpdate());
+            @Cleanup final ResultSet rs = select.executeQuery();
+            long count = 0;
+            int batched = 0;
+            while (rs.next()) {
+                if (Thread.currentThread().isInterrupted()) die("anonymize: interrupted");
+                for (int i=0; i<columns.length; i++) {
+                    final AnonColumn col = columns[i];
+                    try {
+                        col.setParam(update, decryptor, encryptor, i + 1, rs.getObject(i + 2));
+                    } catch (Exception e) {
+                        final String errColumn = table + "." + col;
+                        die("anonymize: error handling table.column: " + errColumn, e);
+                    }
+                }
+                update.setObject(columns.length + 1, rs.getObject(1));
+                update.addBatch();
+                count++;
+                if (++batched >= batchSize) {
+                    flush(writer, update, batched);
+                    batched = 0;
+                }
+            }
+            if (batched > 0) flush(writer, update, batched);
+            reader.commit();
+            return count;
+        }
+
+        private String sqlSelect() {
+            final String id = table.getId();
+            final StringBuilder b = new StringBuilder(table.sqlSelect());
+            if (from != null) b.append(" WHERE ").append(id).append(" >= ?");
+            if (to != null) b.append(from == null ? " WHERE " : " AND ").append(id).append(" < ?");
+            return b.toString();
+        }
+
+        private void flush(Connection writer, PreparedStatement update, int batched) throws Exception {
+            final int[] results = update.executeBatch();
+            for (int result : results) {
+                if (result != 1 && result != PreparedStatement.SUCCESS_NO_INFO) die("anonymize: error updating");
+            }
+            writer.commit();
+            progress.add(batched);
+        }
+    }
+
+    private static class TableProgress {
+
+        private final String table;
+        private final long total;
+        private final AtomicLong done = new AtomicLong();
+        private final AtomicLong lastReport = new AtomicLong(now());
+
+        TableProgress(String table, long total) { this.table = table; this.total = total; }
+
+        void add(long rows) {
+            final long count = done.addAndGet(rows);
+            final long last = lastReport.get();
+            if (now() - last > PROGRESS_INTERVAL && lastReport.compareAndSet(last, now())) {
+                log.info("anonymize: "+table+": "+count+"/"+total+" rows ("+(total == 0 ? 100 : count * 100 / total)+"%)");
+            }
         }
     }
 
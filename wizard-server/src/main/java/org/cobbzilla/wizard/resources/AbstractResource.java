@@ -1,15 +1,22 @@
 package org.cobbzilla.wizard.resources;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.collection.MapUtil;
+import org.cobbzilla.wizard.dao.AbstractCRUDDAO;
 import org.cobbzilla.wizard.dao.DAO;
+import org.cobbzilla.wizard.dao.EntityHandler;
+import org.cobbzilla.wizard.filters.ResultScrubber;
+import org.cobbzilla.wizard.filters.Scrubbable;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.cobbzilla.wizard.model.ResultPage;
+import org.cobbzilla.wizard.util.EntityStreamingOutput;
 
 import javax.validation.Valid;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Map;
@@ -25,6 +32,7 @@ public abstract class AbstractResource<T extends Identifiable> {
 
     public static final String UUID_PARAM = "uuid";
     public static final String UUID = "{"+UUID_PARAM+"}";
+    public static final String EXPORT = "export";
 
 //    protected abstract AbstractCRUDDAO<T> dao ();
     protected abstract DAO<T> dao ();
@@ -38,13 +46,34 @@ public abstract class AbstractResource<T extends Identifiable> {
                           @QueryParam(ResultPage.PARAM_SORT_FIELD) String sortField,
                           @QueryParam(ResultPage.PARAM_SORT_ORDER) String sortOrder,
                           @QueryParam(ResultPage.PARAM_FILTER) String filter,
-                          @QueryParam(ResultPage.PARAM_BOUNDS) String bounds) {
+                          @QueryParam(ResultPage.PARAM_BOUNDS) String bounds,
+                          @QueryParam(ResultPage.PARAM_CURSOR) String cursor,
+                          @QueryParam(ResultPage.PARAM_COUNT) String count) {
 
         if (usePagination == null || !usePagination) return findAll();
 
+        final ResultPage.CountStrategy countStrategy;
+        try {
+            countStrategy = empty(count) ? null : ResultPage.CountStrategy.create(count);
+        } catch (IllegalArgumentException e) {
+            return ResourceUtil.invalid("err.count.invalid", count);
+        }
+
         final DAO<T> dao = dao();
         final Map<String, String> boundsMap = parseBounds(bounds);
-        return Response.ok(dao.search(new ResultPage(pageNumber, pageSize, sortField, sortOrder, filter, boundsMap))).build();
+        final ResultPage page = new ResultPage(pageNumber, pageSize, sortField, sortOrder, filter, boundsMap)
+                .setCursor(cursor)
+                .setCount(countStrategy);
+        if (page.getHasCursor()) {
+            // a cursor is a position in the sort order, so it needs a sort field
+            if (!page.getHasSortField()) return ResourceUtil.invalid("err.cursor.invalid", cursor);
+            try {
+                page.getCursorValues();
+            } catch (Exception e) {
+                return ResourceUtil.invalid("err.cursor.invalid", cursor);
+            }
+        }
+        return Response.ok(dao.search(page)).build();
     }
 
     public static Map<String, String> parseBounds(String bounds) {
@@ -55,7 +84,41 @@ public abstract class AbstractResource<T extends Identifiable> {
         }
     }
 
-    protected Response findAll() { return Response.ok(dao().findAll()).build(); }
+    protected Response findAll() {
+        if (streamFindAll() && dao() instanceof AbstractCRUDDAO) return Response.ok(streamAll(false)).build();
+        return Response.ok(dao().findAll()).build();
+    }
+
+    /**
+     * When true and the DAO supports it, findAll writes entities as they are read rather than loading the whole
+     * table first. Off by default: streamed entities bypass the response filters (such as a ResultScrubber).
+     * Scrubbable entities are scrubbed of their own fieldsToScrub, anything else must be done in postProcess.
+     */
+    protected boolean streamFindAll() { return false; }
+
+    /**
+     * All entities as newline-delimited JSON, written as they are read. Not an endpoint by itself: a resource
+     * that wants one declares it (typically @GET @Path("/"+EXPORT)) with its own access checks, and calls this.
+     * The same caveat as for streamFindAll applies: response filters do not see the streamed entities.
+     */
+    protected Response streamExport() {
+        if (!(dao() instanceof AbstractCRUDDAO)) return ResourceUtil.invalid("err.export.notSupported");
+        return Response.ok(streamAll(true)).type(EntityStreamingOutput.NDJSON).build();
+    }
+
+    protected StreamingOutput streamAll(boolean ndjson) {
+        final AbstractCRUDDAO<T> dao = (AbstractCRUDDAO<T>) dao();
+        return new EntityStreamingOutput<T>(getStreamMapper(), ndjson) {
+            @Override protected void stream(EntityHandler<T> handler) { dao.streamAll(handler); }
+            @Override protected Object filter(T entity) {
+                final T thing = postProcess(entity);
+                if (thing instanceof Scrubbable) ResultScrubber.scrub(thing, ((Scrubbable) thing).fieldsToScrub());
+                return thing;
+            }
+        };
+    }
+
+    protected ObjectMapper getStreamMapper() { return NOTNULL_MAPPER; }
 
     @POST
     public Response create(@Valid T thing) {
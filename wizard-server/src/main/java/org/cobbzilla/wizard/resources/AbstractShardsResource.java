@@ -1,12 +1,16 @@
 package org.cobbzilla.wizard.resources;
 
 import com.sun.jersey.api.core.HttpContext;
+import org.cobbzilla.wizard.dao.shard.AbstractShardedDAO;
 import org.cobbzilla.wizard.dao.shard.ShardMapDAO;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.cobbzilla.wizard.model.shard.ShardMap;
+import org.cobbzilla.wizard.model.shard.ShardRebalanceRequest;
 import org.cobbzilla.wizard.model.shard.ShardSetStatus;
 import org.cobbzilla.wizard.server.config.HasDatabaseConfiguration;
+import org.cobbzilla.wizard.server.config.RestServerConfiguration;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
 
 import javax.validation.Valid;
 import javax.ws.rs.*;
@@ -145,4 +149,51 @@ public abstract class AbstractShardsResource<E extends ShardMap, A extends Ident
         getShardDAO().delete(uuid);
         return ok();
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the sharded DAO for the shard set. by default, the AbstractShardedDAO bean configured for the shard set
+     */
+    protected AbstractShardedDAO getShardedDAO(String shardSet) {
+        final ApplicationContext spring = ((RestServerConfiguration) configuration).getApplicationContext();
+        for (AbstractShardedDAO dao : spring.getBeansOfType(AbstractShardedDAO.class).values()) {
+            if (dao.getShardConfiguration().getName().equals(shardSet)) return dao;
+        }
+        throw notFoundEx(shardSet);
+    }
+
+    @GET
+    @Path("/{shardSet}/rebalance")
+    public Response findRebalances(@Context HttpContext context,
+                                   @PathParam("shardSet") String shardSet) {
+        final ShardContext ctx = new ShardContext(context, shardSet);
+        return ok(getShardedDAO(shardSet).getRebalancer().getStatuses());
+    }
+
+    @GET
+    @Path("/{shardSet}/rebalance/{id}")
+    public Response findRebalance(@Context HttpContext context,
+                                  @PathParam("shardSet") String shardSet,
+                                  @PathParam("id") String id) {
+        final ShardContext ctx = new ShardContext(context, shardSet);
+        return ok(getShardedDAO(shardSet).getRebalancer().getStatus(id));
+    }
+
+    @PUT
+    @Path("/{shardSet}/rebalance")
+    public Response startRebalance(@Context HttpContext context,
+                                   @PathParam("shardSet") String shardSet,
+                                   @Valid ShardRebalanceRequest request) {
+        final ShardContext ctx = new ShardContext(context, shardSet);
+        return ok(getShardedDAO(shardSet).getRebalancer().start(request));
+    }
+
+    @DELETE
+    @Path("/{shardSet}/rebalance/{id}")
+    public Response cancelRebalance(@Context HttpContext context,
+                                    @PathParam("shardSet") String shardSet,
+                                    @PathParam("id") String id) {
+        final ShardContext ctx = new ShardContext(context, shardSet);
+        return ok(getShardedDAO(shardSet).getRebalancer().cancel(id));
+    }
+
+}
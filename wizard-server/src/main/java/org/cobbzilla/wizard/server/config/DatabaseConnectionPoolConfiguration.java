@@ -16,6 +16,7 @@ public class DatabaseConnectionPoolConfiguration {
     protected int getDefaultMin() { return 5; }
     protected int getDefaultMax() { return 100; }
     protected int getDefaultIncrement() { return 5; }
+    protected int getDefaultStatementCacheSize() { return 100; }
 
     @Setter private Integer min;
     public Integer getMin() { return min != null ? min : getDefaultMin(); }
@@ -26,6 +27,10 @@ public class DatabaseConnectionPoolConfiguration {
     @Setter private Integer increment;
     public Integer getIncrement() { return increment != null ? increment : getDefaultMin(); }
 
+    // prepared statements kept open per pooled connection, so repeated queries are not re-parsed. 0 disables
+    @Setter private Integer statementCacheSize;
+    public Integer getStatementCacheSize() { return statementCacheSize != null ? statementCacheSize : getDefaultStatementCacheSize(); }
+
     @Getter @Setter private Integer idleTest;
     public boolean hasIdleTest () { return idleTest != null; }
 
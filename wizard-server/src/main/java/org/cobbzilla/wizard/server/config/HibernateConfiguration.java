@@ -17,6 +17,12 @@ public class HibernateConfiguration {
     @Getter @Setter private String validationMode;
     @Getter @Setter private boolean applyValidatorToDDL = true;
 
+    // JDBC batching of inserts/updates; ordering groups statements by entity so more of them can be batched
+    public static final int DEFAULT_JDBC_BATCH_SIZE = 50;
+    @Getter @Setter private int jdbcBatchSize = DEFAULT_JDBC_BATCH_SIZE;
+    @Getter @Setter private boolean orderInserts = true;
+    @Getter @Setter private boolean orderUpdates = true;
+
     public HibernateConfiguration(HibernateConfiguration other) { copy(this, other); }
 
 }
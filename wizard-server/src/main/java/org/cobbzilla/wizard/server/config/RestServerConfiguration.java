@@ -12,12 +12,15 @@ import org.cobbzilla.util.io.FileUtil;
 import org.cobbzilla.util.jdbc.ResultSetBean;
 import org.cobbzilla.util.string.StringUtil;
 import org.cobbzilla.wizard.dao.DAO;
+import org.cobbzilla.wizard.dao.sql.SQLRowHandler;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.cobbzilla.wizard.server.RestServer;
 import org.cobbzilla.wizard.util.SpringUtil;
 import org.cobbzilla.wizard.validation.Validator;
 import org.springframework.context.ApplicationContext;
 
+import javax.sql.DataSource;
+
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -98,20 +101,89 @@ public class RestServerConfiguration {
 
     public String getLoopbackApiBase() { return "http://127.0.0.1:" + getHttp().getPort() + getHttp().getBaseUri(); }
 
-    public ResultSetBean execSql(String sql, Object[] args) throws SQLException {
+    public static final int STREAM_FETCH_SIZE = 1000;
+
+    private volatile DataSource dataSource;
+    private volatile boolean noDataSource = false;
+
+    /** @return the pooled DataSource from the spring context, or null if there is none (yet) */
+    @JsonIgnore public DataSource getDataSource() {
+        if (dataSource == null && !noDataSource && applicationContext != null) {
+            try {
+                dataSource = getBean(DataSource.class);
+            } catch (Exception e) {
+                log.warn("getDataSource: no DataSource bean, execSql will open its own connections: "+e);
+                noDataSource = true;
+            }
+        }
+        return dataSource;
+    }
 
-        final HasDatabaseConfiguration config = validatePgConfig("execSql");
+    /** @return a pooled connection if the DataSource is available, otherwise a new one. Callers must close it. */
+    @JsonIgnore public Connection getConnection() throws SQLException {
+        final DataSource ds = getDataSource();
+        return ds != null ? ds.getConnection() : validatePgConfig("getConnection").getDatabase().getConnection();
+    }
 
-        @Cleanup Connection conn = config.getDatabase().getConnection();
+    public ResultSetBean execSql(String sql, Object[] args) throws SQLException {
+        @Cleanup Connection conn = getConnection();
         return execSql(conn, sql, args);
     }
 
     public ResultSetBean execSql(Connection conn, String sql, Object[] args) throws SQLException {
-        @Cleanup PreparedStatement ps = conn.prepareStatement(sql);
+        @Cleanup PreparedStatement ps = prepare(conn, sql, args);
+
+        final boolean isQuery = sql.toLowerCase().trim().startsWith("select");
+        if (isQuery) {
+            @Cleanup ResultSet rs = ps.executeQuery();
+            log.info("execSql (query): "+sql);
+            return new ResultSetBean(rs);
+        }
+
+        ps.executeUpdate();
+        log.info("execSql (update): "+sql);
+        return ResultSetBean.EMPTY;
+    }
+
+    /**
+     * Runs a query and passes each row to the handler as it is read, instead of collecting them all.
+     * @return the number of rows read
+     */
+    public int streamSql(String sql, Object[] args, SQLRowHandler handler) throws SQLException {
+        @Cleanup Connection conn = getConnection();
+        return streamSql(conn, sql, args, handler);
+    }
+
+    public int streamSql(Connection conn, String sql, Object[] args, SQLRowHandler handler) throws SQLException {
+        // postgres only fetches in batches (rather than all rows at once) inside a transaction
+        final boolean autoCommit = conn.getAutoCommit();
+        if (autoCommit) conn.setAutoCommit(false);
+        try {
+            @Cleanup PreparedStatement ps = prepare(conn, sql, args);
+            ps.setFetchSize(STREAM_FETCH_SIZE);
+            @Cleanup ResultSet rs = ps.executeQuery();
+            log.info("streamSql: "+sql);
+            int count = 0;
+            while (rs.next()) {
+                handler.row(rs);
+                count++;
+            }
+            return count;
+        } finally {
+            if (autoCommit) {
+                conn.rollback(); // read-only, nothing to commit
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private PreparedStatement prepare(Connection conn, String sql, Object[] args) throws SQLException {
+        final PreparedStatement ps = conn.prepareStatement(sql);
         if (args != null) {
             int i = 1;
             for (Object o : args) {
                 if (o == null) {
+                    ps.close();
                     die("null arguments not supported. null value at parameter index=" + i + ", sql=" + sql);
                 }
                 if (o instanceof String) {
@@ -121,21 +193,12 @@ public class RestServerConfiguration {
                 } else if (o instanceof Integer) {
                     ps.setInt(i++, (Integer) o);
                 } else {
+                    ps.close();
                     die("unsupported argument type: " + o.getClass().getName());
                 }
             }
         }
-
-        final boolean isQuery = sql.toLowerCase().trim().startsWith("select");
-        if (isQuery) {
-            @Cleanup ResultSet rs = ps.executeQuery();
-            log.info("execSql (query): "+sql);
-            return new ResultSetBean(rs);
-        }
-
-        ps.executeUpdate();
-        log.info("execSql (update): "+sql);
-        return ResultSetBean.EMPTY;
+        return ps;
     }
 
     public int rowCount(String table) throws SQLException {
@@ -2,6 +2,7 @@ package org.cobbzilla.wizard.server.config;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.cobbzilla.wizard.model.shard.ShardHash;
 
 import static org.cobbzilla.util.system.Bytes.KB;
 
@@ -15,4 +16,25 @@ public class ShardSetConfiguration {
 
     @Getter @Setter private int logicalShards = DEFAULT_LOGICAL_SHARDS;
 
+    // how ids map to logical shards. only new shard sets should use murmur3: changing the hash of a populated set loses its data
+    @Getter @Setter private ShardHash hash = ShardHash.sha256;
+
+    // in-process cache of deserialized entities in front of the redis shard cache. disabled when size is zero
+    @Getter @Setter private int nearCacheSize = 0;
+    @Getter @Setter private int nearCacheSeconds = 60;
+    public boolean hasNearCache () { return nearCacheSize > 0; }
+
+    // in-process bloom filter of keys known not to exist, instead of null markers in redis. disabled when size is zero.
+    // peers only learn of new entities via a pub/sub reset: if one is lost, they may miss the entity for up to the cache timeout
+    @Getter @Setter private int negativeCacheSize = 0;
+    @Getter @Setter private double negativeCacheFalsePositiveRate = 0.000001;
+
+    // when a cached entry is about to expire, refresh it early with a probability that rises as expiry nears.
+    // larger values refresh earlier; zero disables early refresh
+    @Getter @Setter private double earlyRefreshBeta = 1.0;
+
+    // when true, a short redis lock ensures only one node loads a missing key while the others wait for it
+    @Getter @Setter private boolean distributedCacheLock = false;
+    @Getter @Setter private long cacheLockMillis = 2000;
+
 }
@@ -44,6 +44,8 @@ public class RdbmsConfigCommon {
         cpds.setUser(dbConfiguration.getUser());
         cpds.setPassword(dbConfiguration.getPassword());
         final DatabaseConnectionPoolConfiguration pool = dbConfiguration.getPool();
+        // with the postgres driver, a cached statement is also prepared server-side once it has been reused a few times
+        cpds.setMaxStatementsPerConnection(pool.getStatementCacheSize());
         if (pool.isEnabled()) {
             cpds.setIdentityToken(pool.getName());
             cpds.setDataSourceName(pool.getName());
@@ -90,6 +92,9 @@ public class RdbmsConfigCommon {
         properties.put("hibernate.hbm2ddl.auto", hibernateConfiguration.getHbm2ddlAuto());
         properties.put("hibernate.validator.apply_to_ddl", hibernateConfiguration.isApplyValidatorToDDL());
         properties.put("javax.persistence.verification.mode", hibernateConfiguration.getValidationMode());
+        properties.put("hibernate.jdbc.batch_size", hibernateConfiguration.getJdbcBatchSize());
+        properties.put("hibernate.order_inserts", hibernateConfiguration.isOrderInserts());
+        properties.put("hibernate.order_updates", hibernateConfiguration.isOrderUpdates());
         return properties;
     }
 
@@ -0,0 +1,54 @@
+package org.cobbzilla.wizard.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import org.cobbzilla.wizard.dao.EntityHandler;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Writes entities to the response as they are read, either as one JSON array or as newline-delimited JSON.
+ * Subclasses supply the entities by calling the handler from stream, e.g. via AbstractDAO.stream.
+ */
+@AllArgsConstructor
+public abstract class EntityStreamingOutput<E> implements StreamingOutput {
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    private final ObjectMapper mapper;
+    private final boolean ndjson;
+
+    protected abstract void stream(EntityHandler<E> handler);
+
+    // subclasses may transform (e.g. scrub) each entity before it is written
+    protected Object filter(E entity) { return entity; }
+
+    @Override public void write(OutputStream out) throws IOException, WebApplicationException {
+        final JsonGenerator gen = mapper.getFactory().createGenerator(out);
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (ndjson) {
+            gen.setRootValueSeparator(null);
+        } else {
+            gen.writeStartArray();
+        }
+        stream(new EntityHandler<E>() {
+            @Override public void handle(E entity) {
+                try {
+                    gen.writeObject(filter(entity));
+                    if (ndjson) gen.writeRaw('\n');
+                } catch (IOException e) {
+                    die("write: "+e, e); // most likely the client went away; stop reading
+                }
+            }
+        });
+        if (!ndjson) gen.writeEndArray();
+        gen.close();
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.cobbzilla.model;
+
+import org.cobbzilla.wizard.model.ResultPage;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ResultPageTest {
+
+    public static final String UUID = "2a7e1c3b-4f5d-4e6a-9b8c-0d1e2f3a4b5c";
+
+    @Test public void testStringCursor () {
+        for (String sortValue : new String[] {"", "bob", "\u00e9t\u00e9", "quote\" and \\ slash", "a,b"}) {
+            final ResultPage page = new ResultPage().setCursor(ResultPage.cursor(sortValue, UUID));
+            assertTrue(page.getHasCursor());
+            assertEquals(sortValue, page.getCursorSortValue());
+            assertEquals(UUID, page.getCursorUuid());
+        }
+    }
+
+    @Test public void testIntegerCursor () {
+        for (int sortValue : new int[] {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            final ResultPage page = new ResultPage().setCursor(ResultPage.cursor(sortValue, UUID));
+            assertEquals(sortValue, page.getCursorSortValue());
+            assertEquals(UUID, page.getCursorUuid());
+        }
+    }
+
+    @Test public void testLongCursor () {
+        // a long that fits in an int comes back as an Integer: compare the numeric value
+        for (long sortValue : new long[] {0L, 1234L, 1500000000000L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            final ResultPage page = new ResultPage().setCursor(ResultPage.cursor(sortValue, UUID));
+            final Object value = page.getCursorSortValue();
+            assertTrue("not a number: "+value, value instanceof Number);
+            assertEquals(sortValue, ((Number) value).longValue());
+            assertEquals(UUID, page.getCursorUuid());
+        }
+        assertEquals(1500000000000L, new ResultPage().setCursor(ResultPage.cursor(1500000000000L, UUID)).getCursorSortValue());
+    }
+
+    @Test public void testCursorIsUrlSafe () {
+        final String cursor = ResultPage.cursor("???>>>~~~", UUID);
+        assertTrue("not url safe: "+cursor, cursor.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test public void testNoCursor () {
+        final ResultPage page = new ResultPage();
+        assertFalse(page.getHasCursor());
+        assertNull(page.getCursorValues());
+        assertEquals(0, page.getPageOffset());
+    }
+
+    public static final String[] INVALID_CURSORS = {
+            "not-base64!!", "e30", // {}
+            ResultPage.cursor(null, UUID),
+            ResultPage.cursor("x", null),
+    };
+
+    @Test public void testInvalidCursors () {
+        for (String cursor : INVALID_CURSORS) {
+            try {
+                final Object[] values = new ResultPage().setCursor(cursor).getCursorValues();
+                fail("expected cursor to be invalid: "+cursor+", got "+Arrays.toString(values));
+            } catch (Exception ignored) {}
+        }
+    }
+
+}
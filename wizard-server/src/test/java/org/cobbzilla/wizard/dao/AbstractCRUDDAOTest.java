@@ -0,0 +1,142 @@
+package org.cobbzilla.wizard.dao;
+
+import org.cobbzilla.wizard.model.Identifiable;
+import org.cobbzilla.wizard.model.IdentifiableBase;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+import org.springframework.orm.hibernate4.HibernateTemplate;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AbstractCRUDDAOTest {
+
+    public static final String[] NAMES = {"alice", "bob", "carol"};
+
+    @Test public void testCreateAllCallsCreateHooks () {
+        final ThingDAO single = new ThingDAO();
+        final List<Thing> created = new ArrayList<>();
+        for (String name : NAMES) created.add(single.create(new Thing(name)));
+
+        final ThingDAO bulk = new ThingDAO();
+        final List<Thing> createdAll = bulk.createAll(things(NAMES));
+
+        assertEquals(names(created), names(createdAll));
+        assertEquals(single.sortedCalls(), bulk.sortedCalls());
+    }
+
+    @Test public void testUpdateAllCallsUpdateHooks () {
+        final ThingDAO single = new ThingDAO();
+        final List<Thing> updated = new ArrayList<>();
+        for (Thing thing : withUuids(things(NAMES))) updated.add(single.update(thing));
+
+        final ThingDAO bulk = new ThingDAO();
+        final List<Thing> updatedAll = bulk.updateAll(withUuids(things(NAMES)));
+
+        assertEquals(names(updated), names(updatedAll));
+        assertEquals(single.sortedCalls(), bulk.sortedCalls());
+    }
+
+    public static class Thing extends IdentifiableBase {
+        private String name;
+        public Thing() {}
+        public Thing(String name) { this.name = name; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+    }
+
+    /** hooks that change the entity and pass a context from pre to post */
+    public static class ThingDAO extends AbstractCRUDDAO<Thing> {
+
+        private final List<String> calls = new ArrayList<>();
+
+        public ThingDAO() { setHibernateTemplate(new FakeHibernateTemplate()); }
+
+        @Override protected int getBatchSize() { return 2; } // more than one batch, and a partial one
+
+        @Override public Object preCreate(Thing entity) {
+            calls.add("preCreate:"+entity.getName());
+            entity.setName(entity.getName()+"+preCreate");
+            return "created-"+entity.getName();
+        }
+        @Override public Thing postCreate(Thing entity, Object context) {
+            calls.add("postCreate:"+entity.getName()+":"+context);
+            entity.setName(entity.getName()+"+postCreate");
+            return entity;
+        }
+
+        @Override public Object preUpdate(Thing entity) {
+            calls.add("preUpdate:"+entity.getName());
+            entity.setName(entity.getName()+"+preUpdate");
+            return "updated-"+entity.getName();
+        }
+        @Override public Thing postUpdate(Thing entity, Object context) {
+            calls.add("postUpdate:"+entity.getName()+":"+context);
+            entity.setName(entity.getName()+"+postUpdate");
+            return entity;
+        }
+
+        // the single and bulk paths call the hooks in a different order: pre, post, pre, post vs pre, pre, post, post
+        public List<String> sortedCalls() {
+            final List<String> sorted = new ArrayList<>(calls);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /** saves and merges nothing: save returns the uuid set by beforeCreate, merge returns the entity */
+    public static class FakeHibernateTemplate extends HibernateTemplate {
+
+        private final Session session = proxy(Session.class, new InvocationHandler() {
+            @Override public Object invoke(Object p, Method m, Object[] args) {
+                final Object entity = args == null ? null : args[args.length-1];
+                switch (m.getName()) {
+                    case "save": return ((Identifiable) entity).getUuid();
+                    case "merge": return entity;
+                    default: return null;
+                }
+            }
+        });
+
+        private final SessionFactory factory = proxy(SessionFactory.class, new InvocationHandler() {
+            @Override public Object invoke(Object p, Method m, Object[] args) {
+                return m.getName().equals("getCurrentSession") ? session : null;
+            }
+        });
+
+        @Override public SessionFactory getSessionFactory() { return factory; }
+        @Override public Serializable save(Object entity) { return ((Identifiable) entity).getUuid(); }
+        @Override public <T> T merge(T entity) { return entity; }
+        @Override public void flush() {}
+    }
+
+    private static List<Thing> things(String[] names) {
+        final List<Thing> things = new ArrayList<>();
+        for (String name : names) things.add(new Thing(name));
+        return things;
+    }
+
+    private static List<Thing> withUuids(List<Thing> things) {
+        for (Thing thing : things) thing.setUuid("uuid-"+thing.getName());
+        return things;
+    }
+
+    private static List<String> names(List<Thing> things) {
+        final List<String> names = new ArrayList<>();
+        for (Thing thing : things) names.add(thing.getName());
+        return names;
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(AbstractCRUDDAOTest.class.getClassLoader(), new Class[] {type}, handler));
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import org.cobbzilla.wizard.model.shard.ShardMap;
+import org.cobbzilla.wizard.model.shard.ShardRange;
+import org.junit.Test;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardReadPlanTest {
+
+    public static final int LOGICAL_SHARDS = 100;
+
+    @Test public void testRemainder () {
+        final ShardRange whole = new ShardRange(0, 100);
+        assertEquals(asList(new ShardRange(0, 40), new ShardRange(60, 100)), ShardRebalanceJob.remainder(whole, new ShardRange(40, 60)));
+        assertEquals(asList(new ShardRange(50, 100)), ShardRebalanceJob.remainder(whole, new ShardRange(0, 50)));
+        assertEquals(asList(new ShardRange(0, 50)), ShardRebalanceJob.remainder(whole, new ShardRange(50, 100)));
+        assertTrue(ShardRebalanceJob.remainder(new ShardRange(40, 60), new ShardRange(30, 70)).isEmpty());
+        assertEquals(asList(new ShardRange(0, 40)), ShardRebalanceJob.remainder(new ShardRange(0, 50), new ShardRange(40, 60)));
+    }
+
+    @Test public void testReplicas () {
+        final ShardReadPlan plan = new ShardReadPlan(asList(map("u", 0, 100), map("v", 0, 100)), LOGICAL_SHARDS);
+        assertEquals(1, plan.getGroups().size());
+        assertEquals(2, plan.getGroups().get(0).getMaps().size());
+        assertEquals(asList(new ShardRange(0, 100)), plan.getGroups().get(0).getRanges());
+    }
+
+    @Test public void testMiddleRangeMovedAfterFlip () {
+        // "u" served 0-100; 40-60 moved to "t", leaving "u" with two maps on the same database
+        final ShardReadPlan plan = new ShardReadPlan(asList(map("u", 0, 40), map("u", 60, 100), map("t", 40, 60)), LOGICAL_SHARDS);
+        assertEquals(2, plan.getGroups().size());
+
+        final ShardReadPlan.Group u = group(plan, "u");
+        assertEquals(1, u.getMaps().size()); // queried once, not once per map
+        assertEquals(asList(new ShardRange(0, 40), new ShardRange(60, 100)), u.getRanges());
+
+        final ShardReadPlan.Group t = group(plan, "t");
+        assertEquals(asList(new ShardRange(40, 60)), t.getRanges());
+
+        // before cleanup "u" still holds the moved rows: every row must be read exactly once
+        final Map<String, List<Integer>> databases = new HashMap<>();
+        databases.put("u", range(0, 100));
+        databases.put("t", range(40, 60));
+        assertEquals(range(0, 100), read(plan, databases));
+
+        // and after cleanup
+        databases.put("u", range(0, 40));
+        databases.get("u").addAll(range(60, 100));
+        assertEquals(range(0, 100), read(plan, databases));
+    }
+
+    @Test public void testMiddleRangeMovedBeforeNarrowing () {
+        // the target is readable but this node still sees the source's full range
+        final ShardReadPlan plan = new ShardReadPlan(asList(map("u", 0, 100), map("t", 40, 60)), LOGICAL_SHARDS);
+        assertEquals(2, plan.getGroups().size());
+        for (ShardReadPlan.Group group : plan.getGroups()) {
+            if (group.getMaps().size() == 2) {
+                assertEquals(asList(new ShardRange(40, 60)), group.getRanges());
+            } else {
+                assertEquals("u", group.getMaps().get(0).getUrl());
+                assertEquals(asList(new ShardRange(0, 40), new ShardRange(60, 100)), group.getRanges());
+            }
+        }
+        final Map<String, List<Integer>> databases = new HashMap<>();
+        databases.put("u", range(0, 100));
+        databases.put("t", range(40, 60));
+        assertEquals(range(0, 100), read(plan, databases));
+    }
+
+    @Test public void testUnservedRange () {
+        final ShardReadPlan plan = new ShardReadPlan(asList(map("u", 0, 40), map("v", 60, 100)), LOGICAL_SHARDS);
+        assertEquals(2, plan.getGroups().size());
+        for (ShardReadPlan.Group group : plan.getGroups()) {
+            for (int i=40; i<60; i++) assertTrue(!group.owns(i));
+        }
+    }
+
+    // a fan-out over fake databases holding rows identified by their logical shard: one query per group
+    private List<Integer> read(ShardReadPlan plan, Map<String, List<Integer>> databases) {
+        final List<Integer> found = new ArrayList<>();
+        for (ShardReadPlan.Group group : plan.getGroups()) {
+            for (Integer row : databases.get(group.getMaps().get(0).getUrl())) if (group.owns(row)) found.add(row);
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private ShardReadPlan.Group group(ShardReadPlan plan, String url) {
+        for (ShardReadPlan.Group group : plan.getGroups()) {
+            if (group.getMaps().get(0).getUrl().equals(url)) return group;
+        }
+        throw new AssertionError("no group for "+url);
+    }
+
+    private List<Integer> range(int start, int end) {
+        final List<Integer> list = new ArrayList<>();
+        for (int i=start; i<end; i++) list.add(i);
+        return list;
+    }
+
+    private ShardMap map(String url, int start, int end) {
+        return new ShardMap().setShardSet("test").setUrl(url).setRange(new ShardRange(start, end)).setAllowRead(true);
+    }
+
+}
@@ -0,0 +1,178 @@
+package org.cobbzilla.wizard.model.anon;
+
+import org.cobbzilla.wizard.server.config.DatabaseConfiguration;
+import org.cobbzilla.wizard.server.config.HasDatabaseConfiguration;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AnonScrubberTest {
+
+    public static final String[][] ROWS = {
+            { "u1", "alice", "5551234567", "alice@corp.com" },
+            { "u2", "bob",   "5559876543", "bob@example.com" },
+            { "u3", "carol", "5550000000", "carol@corp.com" },
+            { "u4", "dave",  "5551111111", "dave@example.com" },
+            { "u5", "erin",  "5552222222", "erin@corp.com" },
+    };
+
+    @Test public void testScrubColumnsWithoutSkipPatterns () {
+        final FakeTable table = new FakeTable(ROWS);
+        scrubber(1, 1000).anonymize(config(table), config(table), false);
+        for (int i=0; i<ROWS.length; i++) {
+            assertEquals("anon", table.rows.get(i)[1]);
+            assertEquals("8005551212", table.rows.get(i)[2]);
+        }
+    }
+
+    @Test public void testParallelScrubWithSkipPatterns () {
+        final FakeTable table = new FakeTable(ROWS);
+        scrubber(3, 1).anonymize(config(table), config(table), false);
+        for (int i=0; i<ROWS.length; i++) {
+            final Object[] row = table.rows.get(i);
+            assertEquals("anon", row[1]);
+            assertEquals("8005551212", row[2]);
+            if (ROWS[i][3].endsWith("@example.com")) {
+                assertEquals(ROWS[i][3], row[3]);
+            } else {
+                assertFalse(ROWS[i][3].equals(row[3]));
+            }
+        }
+    }
+
+    private AnonScrubber scrubber(int parallelism, int batchSize) {
+        return new AnonScrubber()
+                .setTables(new AnonTable[] {
+                        AnonTable.table("account",
+                                new AnonColumn().setName("name").setValue("anon"),
+                                new AnonColumn().setName("phone").setType(AnonType.phone),
+                                new AnonColumn().setName("email").setType(AnonType.email).setSkip(new String[] {"@example\\.com$"}))
+                })
+                .setParallelism(parallelism)
+                .setBatchSize(batchSize);
+    }
+
+    private HasDatabaseConfiguration config(final FakeTable table) {
+        final DatabaseConfiguration database = new DatabaseConfiguration() {
+            @Override public Connection getConnection() { return table.connect(); }
+        };
+        return new HasDatabaseConfiguration() {
+            @Override public DatabaseConfiguration getDatabase() { return database; }
+            @Override public void setDatabase(DatabaseConfiguration config) {}
+            @Override public Map<String, String> getEnvironment() { return Collections.emptyMap(); }
+        };
+    }
+
+    /** just enough JDBC for AnonScrubber: the first column is the id, rows are kept in id order */
+    private static class FakeTable {
+
+        private final List<Object[]> rows = new ArrayList<>();
+
+        FakeTable(String[][] data) {
+            for (String[] row : data) rows.add(Arrays.copyOf(row, row.length, Object[].class));
+        }
+
+        Connection connect() {
+            return proxy(Connection.class, new InvocationHandler() {
+                @Override public Object invoke(Object p, Method m, Object[] args) {
+                    if (m.getName().equals("prepareStatement")) return statement((String) args[0]);
+                    return defaultValue(m.getReturnType());
+                }
+            });
+        }
+
+        private PreparedStatement statement(final String sql) {
+            final Map<Integer, Object> params = new HashMap<>();
+            final List<Map<Integer, Object>> batches = new ArrayList<>();
+            return proxy(PreparedStatement.class, new InvocationHandler() {
+                @Override public Object invoke(Object p, Method m, Object[] args) {
+                    final String name = m.getName();
+                    if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                        params.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+                        return null;
+                    }
+                    switch (name) {
+                        case "addBatch": batches.add(new HashMap<>(params)); return null;
+                        case "executeBatch": return update(batches);
+                        case "executeQuery": return query(sql, params);
+                        default: return defaultValue(m.getReturnType());
+                    }
+                }
+            });
+        }
+
+        private synchronized int[] update(List<Map<Integer, Object>> batches) {
+            final int[] results = new int[batches.size()];
+            for (int b=0; b<batches.size(); b++) {
+                final Map<Integer, Object> params = batches.get(b);
+                final Object id = params.get(params.size());
+                for (Object[] row : rows) {
+                    if (!row[0].equals(id)) continue;
+                    for (int i=1; i<params.size(); i++) row[i] = params.get(i);
+                    results[b]++;
+                }
+            }
+            batches.clear();
+            return results;
+        }
+
+        private synchronized ResultSet query(String sql, Map<Integer, Object> params) {
+            final List<Object[]> results = new ArrayList<>();
+            if (sql.startsWith("SELECT COUNT(*)")) {
+                results.add(new Object[] {(long) rows.size()});
+
+            } else if (sql.contains(" OFFSET ?")) {
+                final int offset = ((Long) params.get(1)).intValue();
+                if (offset < rows.size()) results.add(new Object[] {rows.get(offset)[0]});
+
+            } else {
+                int param = 1;
+                final String from = sql.contains(">= ?") ? (String) params.get(param++) : null;
+                final String to = sql.contains("< ?") ? (String) params.get(param) : null;
+                for (Object[] row : rows) {
+                    final String id = (String) row[0];
+                    if ((from == null || id.compareTo(from) >= 0) && (to == null || id.compareTo(to) < 0)) results.add(row.clone());
+                }
+            }
+            return resultSet(results);
+        }
+
+        private ResultSet resultSet(final List<Object[]> results) {
+            final Iterator<Object[]> iter = results.iterator();
+            final Object[][] current = new Object[1][];
+            return proxy(ResultSet.class, new InvocationHandler() {
+                @Override public Object invoke(Object p, Method m, Object[] args) {
+                    switch (m.getName()) {
+                        case "next":
+                            current[0] = iter.hasNext() ? iter.next() : null;
+                            return current[0] != null;
+                        case "getObject": return current[0][(Integer) args[0] - 1];
+                        case "getLong": return ((Number) current[0][(Integer) args[0] - 1]).longValue();
+                        default: return defaultValue(m.getReturnType());
+                    }
+                }
+            });
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(AnonScrubberTest.class.getClassLoader(), new Class[] {type}, handler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+}
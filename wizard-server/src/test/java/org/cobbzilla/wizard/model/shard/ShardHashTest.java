@@ -0,0 +1,68 @@
+package org.cobbzilla.wizard.model.shard;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardHashTest {
+
+    // murmur3_32 (seed 0) of the UTF-16LE bytes of each string, and that hash mapped onto 1024 shards
+    public static final Object[][] MURMUR3_VECTORS = {
+            { "", 0, 0 },
+            { "a", 1867108634, 282 },
+            { "ab", 374890698, 202 },
+            { "abc", 1118836419, 707 },
+            { "hello", -675079799, 393 },
+            { "\u00e9t\u00e9", -1181403715, 445 },
+            { "2a7e1c3b-4f5d-4e6a-9b8c-0d1e2f3a4b5c", -1121956240, 624 },
+    };
+
+    // these must never change: existing sha256 shard sets depend on them
+    public static final Object[][] SHA256_VECTORS = {
+            { "a", 17, 0 },
+            { "hello", 219, 2 },
+            { "\u00e9t\u00e9", 198, 3 },
+            { "2a7e1c3b-4f5d-4e6a-9b8c-0d1e2f3a4b5c", 239, 4 },
+    };
+
+    @Test public void testMurmur3Vectors () {
+        for (Object[] test : MURMUR3_VECTORS) {
+            final String id = (String) test[0];
+            assertEquals("murmur3_32("+id+")", test[1], ShardHash.murmur3_32(id));
+            assertEquals("logicalShard("+id+")", test[2], ShardHash.murmur3.logicalShard(id, 1024));
+        }
+    }
+
+    @Test public void testSha256Vectors () {
+        for (Object[] test : SHA256_VECTORS) {
+            final String id = (String) test[0];
+            assertEquals("logicalShard("+id+", 1024)", test[1], ShardHash.sha256.logicalShard(id, 1024));
+            assertEquals("logicalShard("+id+", 7)", test[2], ShardHash.sha256.logicalShard(id, 7));
+        }
+    }
+
+    @Test public void testCreate () {
+        assertEquals(ShardHash.murmur3, ShardHash.create("MURMUR3"));
+        assertEquals(ShardHash.sha256, ShardHash.create("sha256"));
+    }
+
+    @Test public void testDistribution () {
+        final int shards = 16;
+        final int perShard = 1000;
+        for (ShardHash hash : ShardHash.values()) {
+            final int[] counts = new int[shards];
+            for (int i=0; i<shards*perShard; i++) {
+                final int shard = hash.logicalShard(UUID.randomUUID().toString(), shards);
+                assertTrue(hash+": shard "+shard+" out of range", shard >= 0 && shard < shards);
+                counts[shard]++;
+            }
+            for (int i=0; i<shards; i++) {
+                assertTrue(hash+": shard "+i+" got "+counts[i]+" of "+perShard+" expected", Math.abs(counts[i] - perShard) < perShard / 5);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.cobbzilla.wizard.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.cobbzilla.wizard.util.LatencyHistogram.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static final double MAX_ERROR = 1.0 / SUB_BUCKETS;
+
+    @Test public void testLinearBuckets () {
+        for (int v=0; v<LINEAR; v++) {
+            assertEquals(v, index(v));
+            assertEquals(v, lowerBound(v));
+            assertEquals(v, upperBound(v));
+        }
+        assertEquals(0, index(-5));
+    }
+
+    @Test public void testBucketBounds () {
+        for (int i=0; i<BUCKETS; i++) {
+            assertEquals("lowerBound of bucket "+i, i, index(lowerBound(i)));
+            assertEquals("upperBound of bucket "+i, i, index(upperBound(i)));
+            if (i < BUCKETS - 1) assertEquals("buckets "+i+" and "+(i+1)+" are not adjacent", upperBound(i) + 1, lowerBound(i + 1));
+            if (i >= LINEAR) {
+                final double width = upperBound(i) - lowerBound(i) + 1;
+                assertTrue("bucket "+i+" is too wide", width / lowerBound(i) <= MAX_ERROR);
+            }
+        }
+        assertEquals(LINEAR, index(LINEAR));
+        assertEquals(BUCKETS - 1, index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, upperBound(BUCKETS - 1));
+    }
+
+    @Test public void testEmpty () {
+        final LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMin());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(50));
+    }
+
+    @Test public void testUniformPercentiles () {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (long v=1; v<=100000; v++) h.record(v);
+        assertEquals(100000, h.getCount());
+        assertEquals(1, h.getMin());
+        assertEquals(100000, h.getMax());
+        assertEquals(50000.5, h.getMean(), 0.001);
+        for (double p : new double[] {1, 50, 90, 99, 99.9}) {
+            assertWithinError(p, (long) Math.ceil(100000 * p / 100.0), h.getPercentile(p));
+        }
+        assertEquals(100000, h.getPercentile(100));
+    }
+
+    @Test public void testRandomPercentiles () {
+        final Random random = new Random(42);
+        final LatencyHistogram h = new LatencyHistogram();
+        final long[] values = new long[50000];
+        for (int i=0; i<values.length; i++) {
+            // roughly log-normal, from a few units to a few million
+            values[i] = (long) Math.exp(random.nextGaussian() * 2 + 8);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[] {10, 50, 75, 95, 99, 99.99}) {
+            final long exact = values[(int) Math.ceil(values.length * p / 100.0) - 1];
+            assertWithinError(p, exact, h.getPercentile(p));
+        }
+    }
+
+    @Test public void testAdd () {
+        final LatencyHistogram a = new LatencyHistogram();
+        final LatencyHistogram b = new LatencyHistogram();
+        for (long v=1; v<=100; v++) a.record(v);
+        for (long v=1001; v<=1100; v++) b.record(v);
+        a.add(b);
+        assertEquals(200, a.getCount());
+        assertEquals(1, a.getMin());
+        assertEquals(1100, a.getMax());
+        assertEquals(100, a.getPercentile(50));
+        assertWithinError(75, 1050, a.getPercentile(75));
+    }
+
+    @Test public void testDecay () {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (int i=0; i<4; i++) h.record(10);
+        h.record(5000);
+        h.decay();
+        assertEquals(2, h.getCount());
+        assertEquals(10, h.getMin());
+        assertEquals(10, h.getMax());
+        assertEquals(10, h.getPercentile(99));
+    }
+
+    private void assertWithinError(double p, long exact, long reported) {
+        assertTrue("p"+p+": reported "+reported+" is below "+exact, reported >= exact);
+        assertTrue("p"+p+": reported "+reported+" is too far above "+exact, reported <= exact + exact * MAX_ERROR);
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.cobbzilla.wizard.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PropertyAccessorsTest {
+
+    public static class Bean {
+        private String name;
+        private long size;
+        private boolean active;
+        private Integer count;
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public long getSize() { return size; }
+        public void setSize(long size) { this.size = size; }
+        public boolean isActive() { return active; }
+        public void setActive(boolean active) { this.active = active; }
+        public Integer getCount() { return count; }
+        public void setCount(Integer count) { this.count = count; }
+    }
+
+    public static class SubBean extends Bean {
+        @Override public String getName() { return "sub:" + super.getName(); }
+    }
+
+    // not public: the accessors must still be usable
+    static class HiddenBean {
+        private String secret;
+        public String getSecret() { return secret; }
+        public void setSecret(String secret) { this.secret = secret; }
+    }
+
+    @Test public void testGetAndSet () {
+        final Bean bean = new Bean();
+        PropertyAccessors.set(bean, "name", "bob");
+        PropertyAccessors.set(bean, "size", 42L);
+        PropertyAccessors.set(bean, "active", true);
+        PropertyAccessors.set(bean, "count", 7);
+        assertEquals("bob", bean.getName());
+        assertEquals(42L, bean.getSize());
+        assertTrue(bean.isActive());
+        assertEquals(Integer.valueOf(7), bean.getCount());
+
+        assertEquals("bob", PropertyAccessors.get(bean, "name"));
+        assertEquals(42L, PropertyAccessors.get(bean, "size"));
+        assertEquals(Boolean.TRUE, PropertyAccessors.get(bean, "active"));
+        assertEquals(7, PropertyAccessors.get(bean, "count"));
+    }
+
+    @Test public void testNulls () {
+        final Bean bean = new Bean();
+        bean.setName("bob");
+        bean.setCount(7);
+        PropertyAccessors.set(bean, "name", null);
+        PropertyAccessors.setNull(bean, "count", Integer.class);
+        assertNull(bean.getName());
+        assertNull(bean.getCount());
+        assertNull(PropertyAccessors.get(bean, "name"));
+    }
+
+    @Test public void testSubclass () {
+        final SubBean bean = new SubBean();
+        PropertyAccessors.set(bean, "name", "alice");
+        assertEquals("sub:alice", PropertyAccessors.get(bean, "name"));
+        assertEquals("sub:alice", PropertyAccessors.forClass(Bean.class).getter("name").get(bean));
+    }
+
+    @Test public void testNonPublicClass () {
+        final HiddenBean bean = new HiddenBean();
+        PropertyAccessors.set(bean, "secret", "shh");
+        assertEquals("shh", bean.getSecret());
+        assertEquals("shh", PropertyAccessors.get(bean, "secret"));
+    }
+
+    @Test public void testShared () {
+        assertSame(PropertyAccessors.forClass(Bean.class), PropertyAccessors.forClass(Bean.class));
+        final PropertyAccessors accessors = PropertyAccessors.forClass(Bean.class);
+        assertSame(accessors.getter("name"), accessors.getter("name"));
+        assertSame(accessors.setter("size"), accessors.setter("size"));
+    }
+
+}